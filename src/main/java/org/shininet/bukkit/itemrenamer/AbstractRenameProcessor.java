@@ -1,5 +1,8 @@
 package org.shininet.bukkit.itemrenamer;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.InventoryView;
@@ -7,11 +10,13 @@ import org.bukkit.inventory.ItemStack;
 import org.shininet.bukkit.itemrenamer.api.RenamerSnapshot;
 import org.shininet.bukkit.itemrenamer.meta.CompoundStore;
 import org.shininet.bukkit.itemrenamer.utils.StackUtils;
+import org.shininet.bukkit.itemrenamer.wrappers.StackFingerprint;
 
 import com.comphenix.protocol.wrappers.nbt.NbtBase;
 import com.comphenix.protocol.wrappers.nbt.NbtCompound;
 import com.comphenix.protocol.wrappers.nbt.NbtFactory;
 import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
 
 public abstract class AbstractRenameProcessor {
 	/**
@@ -89,6 +94,73 @@ public abstract class AbstractRenameProcessor {
 		return null;
 	}
 
+	/**
+	 * Apply a custom modification to a slot in a window that is being sent to a player.
+	 * @param player - the receiving player.
+	 * @param windowId - the window ID.
+	 * @param input - the item to process.
+	 * @param slot - the slot index in the window.
+	 * @return The processed item stack.
+	 */
+	public ItemStack processWindow(Player player, int windowId, ItemStack input, int slot) {
+		ItemStack[] temporary = new ItemStack[] { input };
+		return processWindow(player, windowId, temporary, slot)[0];
+	}
+	
+	/**
+	 * Apply a custom modification to the slots of a window that is being sent to a player.
+	 * <p>
+	 * Implementations may reuse the output of slots that have not changed since they were last sent.
+	 * @param player - the receiving player.
+	 * @param windowId - the window ID.
+	 * @param input - the items to process.
+	 * @param offset - the slot index of the first item in the window.
+	 * @return The processed item stacks.
+	 */
+	public ItemStack[] processWindow(Player player, int windowId, ItemStack[] input, int offset) {
+		if (input != null) {
+			return process(player, player.getOpenInventory(), input, offset);
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieve the rename pack that is applied to items sent to the given player.
+	 * @param player - the receiving player.
+	 * @return The name of the rename pack, or NULL if there is none.
+	 */
+	public String getPack(Player player) {
+		return null;
+	}
+	
+	/**
+	 * Determine if the output only depends on the input stacks, the rename pack and the rule version.
+	 * <p>
+	 * This is not the case if other plugins may modify the output.
+	 * @return TRUE if the output may be cached, FALSE otherwise.
+	 */
+	public boolean isCacheable() {
+		return false;
+	}
+	
+	/**
+	 * Retrieve the version of the rules that are currently applied.
+	 * <p>
+	 * Output that was cached under a different version may be stale.
+	 * @return The current rule version.
+	 */
+	public long getRuleVersion() {
+		return 0;
+	}
+	
+	/**
+	 * Retrieve the key of the custom NBT tag that stores the original item stack.
+	 * @return The compound key.
+	 */
+	public String getCompoundKey() {
+		return compoundKey;
+	}
+	
 	/**
 	 * Apply a custom modification to the given item stacks.
 	 * @param view - the current inventory view.
@@ -97,22 +169,50 @@ public abstract class AbstractRenameProcessor {
 	 * @return The processed item.
 	 */
 	public ItemStack[] process(Player player, InventoryView view, ItemStack[] input, int offset) {
+		return process(player, view, input, offset, null);
+	}
+	
+	/**
+	 * Apply a custom modification to the given item stacks, reusing fingerprints that have already been computed.
+	 * @param view - the current inventory view.
+	 * @param input - the item to process.
+	 * @param offset - the current offset.
+	 * @param fingerprints - the fingerprint of each slot, which may be NULL if it must be computed.
+	 * @return The processed item.
+	 */
+	protected ItemStack[] process(Player player, InventoryView view, ItemStack[] input, int offset, StackFingerprint[] fingerprints) {
 		final RenamerSnapshot snapshot = new RenamerSnapshot(input, view, offset);
-		final NbtCompound[] original = getCompounds(input);
+		
+		if (fingerprints == null)
+			fingerprints = new StackFingerprint[input.length];
+		final OriginalStacks original = new OriginalStacks(input, findDuplicates(input, fingerprints), fingerprints);
 		
 		// Just return it - for chaining
-		processSnapshot(player, snapshot);
+		processSnapshot(player, snapshot, original);
 		
 		// Save the original NBT tag
 		// Add a simple marker allowing us to restore the item stack
-		for (int i = 0; i < original.length; i++) {
+		for (int i = 0; i < input.length; i++) {
+			NbtCompound originalCompound = original.getCompound(i);
+			
+			// Copy the result of an identical slot
+			if (original.isShared(i)) {
+				ItemStack copy = input[original.getDuplicate(i)].clone();
+				copy.setAmount(input[i].getAmount());
+				input[i] = copy;
+				continue;
+			}
+			
+			// Slots that have not been captured are left untouched
+			if (originalCompound == null)
+				continue;
 			ItemStack converted = snapshot.getSlot(i);
 			
 			// Ensure that we are dealing with a CraftItemStack
 			if (isNotEmpty(converted)) {
 				converted = StackUtils.getCraftItemStack(converted);
 			} else {
-				if (!Objects.equal(original[i], compoundAir)) {
+				if (!Objects.equal(originalCompound, compoundAir)) {
 					throw new IllegalStateException(
 						"Attempted to destroy an ItemStack at slot " + i + ": " + converted);
 				}
@@ -125,38 +225,160 @@ public abstract class AbstractRenameProcessor {
 			// Store extra NBT data
 			if (extra != null) 
 				storeExtra(extra, tag, converted);
-			if (hasChanged(original[i], converted, tag)) 
-				converted = CompoundStore.getNativeStore(converted, compoundKey).saveCompound(original[i]);
+			if (hasChanged(originalCompound, converted, tag)) 
+				converted = CompoundStore.getNativeStore(converted, compoundKey).saveCompound(originalCompound);
 			input[i] = converted;	
 		}
 		return input;
 	}
-
+	
 	/**
-	 * Retrieve the respective NBT compounds of each item stack in the array.
-	 * @param input - the items.
-	 * @return The compounds.
+	 * Locate slots that contain the same item stack as an earlier slot, disregarding the count.
+	 * <p>
+	 * Missing fingerprints of non-empty slots are computed and stored in the given array.
+	 * @param input - the slots to search.
+	 * @param fingerprints - the fingerprint of each slot, or NULL if it has not been computed.
+	 * @return The index of the first identical slot for every slot, or -1 if it is the first. NULL if there are no duplicates.
 	 */
-	private NbtCompound[] getCompounds(ItemStack[] input) {
-		NbtCompound[] original = new NbtCompound[input.length];
+	private int[] findDuplicates(ItemStack[] input, StackFingerprint[] fingerprints) {
+		if (input.length < 2)
+			return null;
+		Map<StackFingerprint, Integer> first = Maps.newHashMap();
+		int[] duplicates = null;
 		
-		for (int i = 0; i < original.length; i++) {
-			if (input[i] != null) {
-				original[i] = itemSerializer.save(input[i]);
+		for (int i = 0; i < input.length; i++) {
+			if (!isNotEmpty(input[i]))
+				continue;
+			// The fingerprints are only valid until the stacks are modified
+			if (fingerprints[i] == null)
+				fingerprints[i] = StackFingerprint.fromStack(input[i]);
+			StackFingerprint fingerprint = fingerprints[i];
+			Integer previous = first.get(fingerprint);
+			
+			if (previous != null) {
+				if (duplicates == null) {
+					duplicates = new int[input.length];
+					Arrays.fill(duplicates, -1);
+				}
+				duplicates[i] = previous;
 			} else {
-				original[i] = compoundAir;
+				first.put(fingerprint, i);
+			}
+		}
+		return duplicates;
+	}
+
+	/**
+	 * Represents the serialized original content of the slots that may be modified.
+	 * <p>
+	 * A slot must be captured before it is modified, or the modification will not be reversible.
+	 * @author Kristian
+	 */
+	protected class OriginalStacks {
+		private final ItemStack[] input;
+		private final NbtCompound[] original;
+		
+		// Identical slots
+		private final int[] duplicates;
+		private boolean[] shared;
+		
+		// Fingerprint of the unmodified slots
+		private final StackFingerprint[] fingerprints;
+		
+		private OriginalStacks(ItemStack[] input, int[] duplicates, StackFingerprint[] fingerprints) {
+			this.input = input;
+			this.original = new NbtCompound[input.length];
+			this.duplicates = duplicates;
+			this.fingerprints = fingerprints;
+		}
+		
+		/**
+		 * Retrieve the fingerprint of the given slot, if it has already been computed.
+		 * <p>
+		 * The fingerprint refers to the original stack, and is only valid until the slot has been modified.
+		 * @param index - the slot index.
+		 * @return The fingerprint, or NULL if it has not been computed.
+		 */
+		public StackFingerprint getFingerprint(int index) {
+			return fingerprints[index];
+		}
+		
+		/**
+		 * Retrieve the first slot that contained the same item stack as the given slot, disregarding the count.
+		 * <p>
+		 * This reflects the content of the slots before they were processed.
+		 * @param index - the slot index.
+		 * @return The index of the earlier identical slot, or -1 if not found.
+		 */
+		public int getDuplicate(int index) {
+			return duplicates != null ? duplicates[index] : -1;
+		}
+		
+		/**
+		 * Mark the given slot as a copy of its duplicate, disregarding the count.
+		 * <p>
+		 * The slot will receive the final content of the duplicate slot instead of being processed. This may only be used
+		 * if the duplicate slot has been captured, and neither slot will be modified by anyone else.
+		 * @param index - the slot index.
+		 */
+		public void share(int index) {
+			int duplicate = getDuplicate(index);
+			
+			if (duplicate < 0 || original[duplicate] == null)
+				throw new IllegalStateException("Slot " + index + " has no captured duplicate.");
+			if (shared == null)
+				shared = new boolean[input.length];
+			shared[index] = true;
+		}
+		
+		/**
+		 * Determine if the given slot is a copy of its duplicate slot.
+		 * @param index - the slot index.
+		 * @return TRUE if it is, FALSE otherwise.
+		 */
+		public boolean isShared(int index) {
+			return shared != null && shared[index];
+		}
+		
+		/**
+		 * Capture the current content of the given slot, if it hasn't already been captured.
+		 * @param index - the slot index.
+		 */
+		public void capture(int index) {
+			if (original[index] == null) {
+				original[index] = input[index] != null ? itemSerializer.save(input[index]) : compoundAir;
+			}
+		}
+		
+		/**
+		 * Capture the current content of every slot.
+		 */
+		public void captureAll() {
+			for (int i = 0; i < original.length; i++) {
+				capture(i);
 			}
 		}
-		return original;
+		
+		/**
+		 * Retrieve the serialized original content of a given slot.
+		 * @param index - the slot index.
+		 * @return The serialized content, or NULL if it has not been captured.
+		 */
+		public NbtCompound getCompound(int index) {
+			return original[index];
+		}
 	}
 
 	/**
 	 * Apply a custom modification to a set of item stacks.
+	 * <p>
+	 * Every slot that may be modified must be captured in the original stacks before it is changed. Slots
+	 * that are never captured are sent as is.
 	 * @param player - the current player.
 	 * @param snapshot - the items to modify,
-	 * @return The modified items.
+	 * @param original - the original content of each slot.
 	 */
-	protected abstract void processSnapshot(Player player, RenamerSnapshot snapshot);
+	protected abstract void processSnapshot(Player player, RenamerSnapshot snapshot, OriginalStacks original);
 	
 	/**
 	 * Determine if a givne item stack is empty nor not.
@@ -202,7 +424,8 @@ public abstract class AbstractRenameProcessor {
 	 * @return TRUE if we removed the rename and lore, FALSE otherwise.
 	 */
 	public boolean unprocess(ItemStack input) {
-		if (input != null) {
+		// Stacks without a tag cannot contain the original
+		if (input != null && input.hasItemMeta()) {
 			// This will only be invoked for creative players
 			NbtCompound saved = CompoundStore.getNativeStore(input, compoundKey).loadCompound();
 	
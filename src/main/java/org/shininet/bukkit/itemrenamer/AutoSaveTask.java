@@ -0,0 +1,101 @@
+package org.shininet.bukkit.itemrenamer;
+
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.shininet.bukkit.itemrenamer.api.ConfigurationChangeEvent;
+import org.shininet.bukkit.itemrenamer.configuration.ItemRenamerConfiguration;
+
+import com.google.common.eventbus.Subscribe;
+
+/**
+ * Represents a task that saves the configuration once the rename packs have stopped changing.
+ * <p>
+ * Every change postpones the save until no changes have been made for the configured delay, but a save is never
+ * postponed for more than {@link #MAX_DELAY_FACTOR} times the delay.
+ */
+class AutoSaveTask implements Runnable {
+	private static final int TICKS_PER_SECOND = 20;
+
+	/**
+	 * The maximum delay after the first unsaved change, as a multiple of the configured delay.
+	 */
+	private static final int MAX_DELAY_FACTOR = 4;
+
+	private int taskID = -1;
+
+	// When the first and last unsaved changes were made, in milliseconds
+	private long firstChange;
+	private long lastChange;
+
+	private final ItemRenamerConfiguration config;
+	private final BukkitScheduler scheduler;
+	private final Plugin plugin;
+
+	/**
+	 * Construct a new automatic save task.
+	 * @param scheduler - the scheduler to use.
+	 * @param plugin - the owner plugin.
+	 * @param config - the configuration to save.
+	 */
+	public AutoSaveTask(BukkitScheduler scheduler, Plugin plugin, ItemRenamerConfiguration config) {
+		this.scheduler = scheduler;
+		this.plugin = plugin;
+		this.config = config;
+	}
+
+	public void start() {
+		config.getChangeBus().register(this);
+	}
+
+	public void stop() {
+		config.getChangeBus().unregister(this);
+		cancel();
+	}
+
+	/**
+	 * Invoked when a rename pack or rule has changed.
+	 * @param event - the change.
+	 */
+	@Subscribe
+	public void onConfigurationChanged(ConfigurationChangeEvent event) {
+		int delay = config.getAutoSaveDelay();
+
+		if (delay <= 0)
+			return;
+		lastChange = System.currentTimeMillis();
+
+		// The running task will postpone itself
+		if (taskID < 0) {
+			firstChange = lastChange;
+			schedule(delay * TICKS_PER_SECOND);
+		}
+	}
+
+	@Override
+	public void run() {
+		long delay = config.getAutoSaveDelay() * 1000L;
+		long now = System.currentTimeMillis();
+		long remaining = Math.min(lastChange + delay, firstChange + delay * MAX_DELAY_FACTOR) - now;
+		taskID = -1;
+
+		if (remaining > 0 && delay > 0) {
+			schedule(Math.max(1, remaining * TICKS_PER_SECOND / 1000));
+		} else {
+			config.save();
+		}
+	}
+
+	/**
+	 * Cancel the pending save, if any.
+	 */
+	private void cancel() {
+		if (taskID >= 0) {
+			scheduler.cancelTask(taskID);
+			taskID = -1;
+		}
+	}
+
+	private void schedule(long ticks) {
+		taskID = scheduler.scheduleSyncDelayedTask(plugin, this, ticks);
+	}
+}
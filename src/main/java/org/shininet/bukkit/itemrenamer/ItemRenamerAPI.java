@@ -96,4 +96,16 @@ class ItemRenamerAPI extends RenamerAPI {
 	public boolean removeListeners(@Nonnull Plugin plugin) {
 		return processor.getListenerMananger().removeListeners(plugin);
 	}
+	
+	@Override
+	public void registerChangeListener(@Nonnull Object listener) {
+		Preconditions.checkNotNull(listener, "listener cannot be NULL.");
+		config.getChangeBus().register(listener);
+	}
+	
+	@Override
+	public void unregisterChangeListener(@Nonnull Object listener) {
+		Preconditions.checkNotNull(listener, "listener cannot be NULL.");
+		config.getChangeBus().unregister(listener);
+	}
 }
@@ -23,6 +23,7 @@ import org.shininet.bukkit.itemrenamer.configuration.ConfigParsers;
 import org.shininet.bukkit.itemrenamer.configuration.DamageLookup;
 import org.shininet.bukkit.itemrenamer.configuration.DamageValues;
 import org.shininet.bukkit.itemrenamer.configuration.ItemRenamerConfiguration;
+import org.shininet.bukkit.itemrenamer.configuration.RenameConfiguration;
 import org.shininet.bukkit.itemrenamer.configuration.RenameProcessorFactory;
 import org.shininet.bukkit.itemrenamer.configuration.RenameRule;
 import org.shininet.bukkit.itemrenamer.serialization.DamageSerializer;
@@ -55,6 +56,7 @@ class ItemRenamerCommands implements CommandExecutor {
 		SET_WORLD_PACK,
 		GET_ITEM,
 		GET_SELECTED,
+		GET_MEMORY,
 		ADD_PACK,
 		DELETE_PACK,
 		SELECT_PACK,
@@ -114,6 +116,7 @@ class ItemRenamerCommands implements CommandExecutor {
 		output.registerCommand(Commands.SET_DEFAULT_PACK, PERM_SET, "set", "default");
 		output.registerCommand(Commands.ADD_PACK, PERM_SET, "add", "pack");
 		output.registerCommand(Commands.GET_SELECTED, PERM_GET, "get", "selected");
+		output.registerCommand(Commands.GET_MEMORY, PERM_GET, "get", "memory");
 		output.registerCommand(Commands.DELETE_PACK, PERM_SET, "delete", "pack");
 		output.registerCommand(Commands.SELECT_PACK, PERM_SET, "select", "pack");
 		output.registerCommand(Commands.SELECT_HAND, PERM_SET, "select", "hand");
@@ -148,6 +151,9 @@ class ItemRenamerCommands implements CommandExecutor {
 				try {
 					String result = performCommand(sender, node.getCommand(), input);
 					
+					// Publish any changes to the packet listeners
+					config.getRenameConfig().commit();
+					
 					if (result != null)
 						sender.sendMessage(ChatColor.GOLD + result);
 				} catch (CommandErrorException e) {
@@ -204,6 +210,9 @@ class ItemRenamerCommands implements CommandExecutor {
 					return deselectWorldPack(sender) + (deselectedItem != null ? ". " + deselectedItem : "");
 				case GET_SELECTED:
 					return printSelected(sender);
+				case GET_MEMORY:
+					expectCommandCount(args, 0, "No arguments needed.");
+					return getMemory();
 				case GET_ITEM:
 					return getItem(sender, args);
 				case SET_NAME:
@@ -273,6 +282,18 @@ class ItemRenamerCommands implements CommandExecutor {
 		}
 	}
 
+	/**
+	 * Print the number of loaded rename packs and their estimated memory usage.
+	 * @return The lines to print.
+	 */
+	private String getMemory() {
+		RenameConfiguration renameConfig = config.getRenameConfig();
+		
+		return String.format("Loaded %s of %s packs, using about %s KB.\nLoaded %s times, evicted %s times.",
+				renameConfig.getResidentPackCount(), renameConfig.getPacks().size(), 
+				renameConfig.getResidentSize() / 1024, renameConfig.getLoadCount(), renameConfig.getEvictionCount());
+	}
+	
 	/**
 	 * Print the currently selected item and pack.
 	 * @param sender - the command sender.
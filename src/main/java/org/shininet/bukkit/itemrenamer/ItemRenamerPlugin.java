@@ -5,6 +5,8 @@
 package org.shininet.bukkit.itemrenamer;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -13,6 +15,7 @@ import net.milkbowl.vault.chat.Chat;
 
 import org.bukkit.Bukkit;
 import org.bukkit.World;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.RegisteredServiceProvider;
 import org.bukkit.plugin.java.JavaPlugin;
@@ -23,7 +26,9 @@ import org.shininet.bukkit.itemrenamer.component.ToggleComponent;
 import org.shininet.bukkit.itemrenamer.configuration.ItemRenamerConfiguration;
 import org.shininet.bukkit.itemrenamer.listeners.DisguiseComponent;
 import org.shininet.bukkit.itemrenamer.listeners.ListenerCleanupComponent;
+import org.shininet.bukkit.itemrenamer.listeners.PackCacheComponent;
 import org.shininet.bukkit.itemrenamer.listeners.ProtocolComponent;
+import org.shininet.bukkit.itemrenamer.listeners.SentWindowComponent;
 import org.shininet.bukkit.itemrenamer.listeners.UpdateNotifierComponent;
 import org.shininet.bukkit.itemrenamer.listeners.StackRestrictorComponent;
 import org.shininet.bukkit.itemrenamer.metrics.BukkitMetrics;
@@ -31,6 +36,7 @@ import org.shininet.bukkit.itemrenamer.metrics.Updater;
 import org.shininet.bukkit.itemrenamer.metrics.Updater.UpdateResult;
 
 import com.comphenix.protocol.ProtocolLibrary;
+import com.google.common.collect.Lists;
 import com.google.common.eventbus.EventBus;
 
 public class ItemRenamerPlugin extends JavaPlugin {
@@ -55,6 +61,7 @@ public class ItemRenamerPlugin extends JavaPlugin {
 	
 	private Logger logger;
     private RefreshInventoryTask refreshTask;
+    private AutoSaveTask autoSaveTask;
 
     private ItemRenamerConfiguration config;
     private RenameProcessor processor;
@@ -91,8 +98,21 @@ public class ItemRenamerPlugin extends JavaPlugin {
 		logger = getLogger();
 		config = new ItemRenamerConfiguration(this, new File(getDataFolder(), "config.yml").getAbsolutePath()) {
 			protected void onSynchronized() {
+				// Reloading changes the world pack version, which refreshes every player
 				lastSaveCount = getModificationCount();
-				refreshTask.forceRefresh();
+			}
+			
+			@Override
+			protected Collection<String> getPlayerPacks() {
+				List<String> packs = Lists.newArrayList();
+				
+				// Not yet initialized during the first load
+				if (processor != null) {
+					for (Player player : getServer().getOnlinePlayers()) {
+						packs.add(processor.getPack(player));
+					}
+				}
+				return packs;
 			}
 		};
 		
@@ -102,7 +122,7 @@ public class ItemRenamerPlugin extends JavaPlugin {
 		
 		// Initialize helpers
 		listenerManager = new RenameListenerManager(this);
-        processor = new RenameProcessor(listenerManager, config, chat);
+        processor = new RenameProcessor(this, listenerManager, config, chat);
 		selectedTracker = new SelectedItemTracker();
 		
 		// The stack restrictor that can be enabled or disabled
@@ -117,8 +137,11 @@ public class ItemRenamerPlugin extends JavaPlugin {
 		refreshStackRestrictor();
 		
 		// Packet and Bukkit listeners
-        ProtocolComponent listenerPacket = new ProtocolComponent(processor, ProtocolLibrary.getProtocolManager(), logger);
+        ProtocolComponent listenerPacket = new ProtocolComponent(processor, ProtocolLibrary.getProtocolManager(), logger, 
+        		config.isAsyncProcessing() ? config.getAsyncThreads() : 0);
 		ListenerCleanupComponent cleanupComponent = new ListenerCleanupComponent(this);
+		PackCacheComponent packCacheComponent = new PackCacheComponent(processor.getPackCache());
+		SentWindowComponent sentWindowComponent = new SentWindowComponent(processor.getSentWindows(), processor.getViewIndex());
         updateNotifyComponent = new UpdateNotifierComponent(this);
         
         // Components that will only be enabled if a corresponding plugin is enabled
@@ -127,7 +150,7 @@ public class ItemRenamerPlugin extends JavaPlugin {
         
         // Every component
         compositeComponent = Components.asComposite(toggleRestrictor, listenerPacket, 
-        		updateNotifyComponent, cleanupComponent, pluginComponent);	
+        		updateNotifyComponent, cleanupComponent, packCacheComponent, sentWindowComponent, pluginComponent);	
         		
 		// Initialize the API
 		RENAMER_API = new ItemRenamerAPI(config, processor);
@@ -147,9 +170,15 @@ public class ItemRenamerPlugin extends JavaPlugin {
 		getCommand("ItemRenamer").setExecutor(commandExecutor);
         
 		// Tasks
-		refreshTask = new RefreshInventoryTask(getServer().getScheduler(), this, config);
+		refreshTask = new RefreshInventoryTask(getServer().getScheduler(), this, config, processor);
 		refreshTask.start();
+		autoSaveTask = new AutoSaveTask(getServer().getScheduler(), this, config);
+		autoSaveTask.start();
+		config.startWatcher();
 		checkWorlds();
+		
+		// Players may already be online
+		config.loadActivePacks();
 	}
 	
 	private void checkWorlds() {
@@ -237,11 +266,14 @@ public class ItemRenamerPlugin extends JavaPlugin {
 
 	@Override
 	public void onDisable() {
+		autoSaveTask.stop();
+		
 		// Save all changes if anything has changed
 		if (config.getModificationCount() != lastSaveCount) {
 			config.save();
 			logger.info("Saving configuration.");
 		}
+		config.close();
 		
 		compositeComponent.unregister(this);
 		refreshTask.stop();
@@ -0,0 +1,197 @@
+package org.shininet.bukkit.itemrenamer;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Represents an index of the item ID in every slot that has been sent to each player.
+ * <p>
+ * Only the player inventory and the most recent container window are indexed. This is used to determine which
+ * players and slots are affected when the rename rules of an item change.
+ */
+public class OpenViewIndex {
+	/**
+	 * The window ID of the player inventory.
+	 */
+	public static final int PLAYER_WINDOW = 0;
+
+	/**
+	 * The maximum number of slots to index per window.
+	 */
+	private static final int MAX_SLOTS = 256;
+
+	/**
+	 * Represents the item IDs in the slots of a window. Empty slots are zero.
+	 */
+	private static class WindowSlots {
+		private final int windowId;
+		private int[] ids = new int[0];
+
+		public WindowSlots(int windowId) {
+			this.windowId = windowId;
+		}
+
+		public void set(int slot, int id) {
+			if (slot >= ids.length) {
+				// Empty slots don't have to be stored
+				if (id == 0)
+					return;
+				ids = Arrays.copyOf(ids, Math.max(slot + 1, ids.length * 2));
+			}
+			ids[slot] = id;
+		}
+	}
+
+	/**
+	 * Represents the indexed windows of a player.
+	 */
+	private static class PlayerViews {
+		private final WindowSlots inventory = new WindowSlots(PLAYER_WINDOW);
+		private WindowSlots container;
+	}
+
+	// The indexed windows by player name
+	private final ConcurrentMap<String, PlayerViews> players = Maps.newConcurrentMap();
+
+	/**
+	 * Record the content of the given slots in a window.
+	 * @param player - the receiving player.
+	 * @param windowId - the window ID.
+	 * @param input - the content of each slot.
+	 * @param offset - the slot index of the first item in the window.
+	 * @param replace - whether or not the input replaces every slot in the window.
+	 */
+	public void update(Player player, int windowId, ItemStack[] input, int offset, boolean replace) {
+		if (windowId < 0 || offset < 0)
+			return;
+		PlayerViews views = getViews(player);
+
+		synchronized (views) {
+			WindowSlots window = windowId == PLAYER_WINDOW ? views.inventory : views.container;
+
+			// A new container has been opened
+			if (window == null || window.windowId != windowId) {
+				window = views.container = new WindowSlots(windowId);
+			}
+			if (replace) {
+				window.ids = new int[0];
+			}
+			for (int i = 0; i < input.length && offset + i < MAX_SLOTS; i++) {
+				window.set(offset + i, input[i] != null ? input[i].getTypeId() : 0);
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the ID of the container window that was most recently sent to a player.
+	 * @param player - the player.
+	 * @return The window ID, or -1 if the player has no open container.
+	 */
+	public int getContainerWindow(Player player) {
+		PlayerViews views = players.get(player.getName());
+
+		if (views != null) {
+			synchronized (views) {
+				if (views.container != null)
+					return views.container.windowId;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Retrieve every slot in a window that contains one of the given item IDs.
+	 * @param player - the player.
+	 * @param windowId - the window ID.
+	 * @param ids - the item IDs to search for.
+	 * @return The matching slots, in ascending order.
+	 */
+	public int[] getSlots(Player player, int windowId, Set<Integer> ids) {
+		PlayerViews views = players.get(player.getName());
+		int[] result = new int[0];
+
+		if (views != null) {
+			synchronized (views) {
+				WindowSlots window = windowId == PLAYER_WINDOW ? views.inventory : views.container;
+
+				if (window != null && window.windowId == windowId) {
+					int[] slots = new int[window.ids.length];
+					int count = 0;
+
+					for (int slot = 0; slot < window.ids.length; slot++) {
+						if (window.ids[slot] != 0 && ids.contains(window.ids[slot]))
+							slots[count++] = slot;
+					}
+					result = Arrays.copyOf(slots, count);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Determine if any indexed window of the given player contains one of the given item IDs.
+	 * @param player - the player.
+	 * @param ids - the item IDs to search for.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	public boolean containsAny(Player player, Set<Integer> ids) {
+		PlayerViews views = players.get(player.getName());
+
+		if (views != null) {
+			synchronized (views) {
+				for (WindowSlots window : new WindowSlots[] { views.inventory, views.container }) {
+					if (window == null)
+						continue;
+					for (int id : window.ids) {
+						if (id != 0 && ids.contains(id))
+							return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the container window of a player.
+	 * @param player - the player whose container has been closed.
+	 */
+	public void closeWindows(Player player) {
+		PlayerViews views = players.get(player.getName());
+
+		if (views != null) {
+			synchronized (views) {
+				views.container = null;
+			}
+		}
+	}
+
+	/**
+	 * Remove every indexed window of a player.
+	 * @param player - the player to remove.
+	 */
+	public void invalidate(Player player) {
+		players.remove(player.getName());
+	}
+
+	private PlayerViews getViews(Player player) {
+		PlayerViews views = players.get(player.getName());
+
+		if (views == null) {
+			PlayerViews created = new PlayerViews();
+			views = players.putIfAbsent(player.getName(), created);
+
+			if (views == null) {
+				views = created;
+			}
+		}
+		return views;
+	}
+}
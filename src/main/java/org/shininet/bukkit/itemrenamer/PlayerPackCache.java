@@ -0,0 +1,185 @@
+package org.shininet.bukkit.itemrenamer;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import net.milkbowl.vault.chat.Chat;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.shininet.bukkit.itemrenamer.configuration.ItemRenamerConfiguration;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Represents a cache of the resolved rename pack of every online player.
+ * <p>
+ * Entries are immutable and stored in a concurrent map, so they can be read from packet threads without locking.
+ * An entry is resolved again if the player has changed world, if the world packs have been modified or
+ * reloaded, or when the Vault refresh interval has elapsed.
+ * <p>
+ * Vault is not thread safe, so entries are only resolved on the main thread. Packet threads are served the 
+ * outdated entry while the main thread resolves it again.
+ */
+public class PlayerPackCache {
+	/**
+	 * Represents a resolved rename pack.
+	 */
+	private static class PackEntry {
+		private final String pack;
+		private final String world;
+		private final int version;
+		private final long expires;
+
+		public PackEntry(String pack, String world, int version, long expires) {
+			this.pack = pack;
+			this.world = world;
+			this.version = version;
+			this.expires = expires;
+		}
+
+		/**
+		 * Determine if this entry is still valid.
+		 * @param world - the current world of the player.
+		 * @param version - the current world pack version.
+		 * @param time - the current time in milliseconds.
+		 * @return TRUE if it is, FALSE otherwise.
+		 */
+		public boolean isValid(String world, int version, long time) {
+			return this.version == version && this.world.equals(world) && time < expires;
+		}
+	}
+
+	// Every resolved pack by player name
+	private final ConcurrentMap<String, PackEntry> entries = Maps.newConcurrentMap();
+
+	private final ItemRenamerConfiguration config;
+
+	// Players that will be resolved on the main thread
+	private final Set<String> pending = Sets.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+
+	private final Plugin plugin;
+
+	// Vault
+	private final Chat chat;
+
+	/**
+	 * Construct a new pack cache.
+	 * @param plugin - the plugin that schedules refreshes on the main thread.
+	 * @param config - the current configuration.
+	 * @param chat - the current Vault chat abstraction layer, or NULL.
+	 */
+	public PlayerPackCache(Plugin plugin, ItemRenamerConfiguration config, Chat chat) {
+		this.plugin = plugin;
+		this.config = config;
+		this.chat = chat;
+	}
+
+	/**
+	 * Retrieve the rename pack of the given player, resolving it if the cached value is missing or outdated.
+	 * <p>
+	 * On other threads, the outdated value is returned and the pack is resolved later on the main thread.
+	 * @param player - the player to look up.
+	 * @return The name of the rename pack, or NULL.
+	 */
+	public String getPack(Player player) {
+		PackEntry entry = entries.get(player.getName());
+		String world = player.getWorld().getName();
+
+		if (entry != null && entry.isValid(world, config.getWorldPackVersion(), System.currentTimeMillis())) {
+			return entry.pack;
+		}
+		if (plugin.getServer().isPrimaryThread()) {
+			return resolve(player).pack;
+		}
+		scheduleRefresh(player);
+
+		// Use the world pack until Vault has been consulted
+		return entry != null ? entry.pack : config.getEffectiveWorldPack(world);
+	}
+
+	/**
+	 * Resolve and cache the rename pack of the given player.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param player - the player to update.
+	 */
+	public void refresh(Player player) {
+		resolve(player);
+	}
+
+	/**
+	 * Resolve the rename pack of the given player on the main thread, unless it has already been scheduled.
+	 * @param player - the player to update.
+	 */
+	private void scheduleRefresh(final Player player) {
+		if (!pending.add(player.getName()))
+			return;
+		
+		try {
+			plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+				@Override
+				public void run() {
+					pending.remove(player.getName());
+					
+					// Don't resurrect players that have left
+					if (player.isOnline()) {
+						resolve(player);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// The plugin may have been disabled
+			pending.remove(player.getName());
+		}
+	}
+
+	/**
+	 * Remove the cached rename pack of the given player.
+	 * @param player - the player to remove.
+	 */
+	public void invalidate(Player player) {
+		entries.remove(player.getName());
+	}
+
+	/**
+	 * Remove every cached rename pack.
+	 */
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	/**
+	 * Resolve the current rename pack of a given player and store it in the cache.
+	 * <p>
+	 * This must be called on the main thread, as Vault is not thread safe.
+	 * @param player - the player to look up.
+	 * @return The new cache entry.
+	 */
+	private PackEntry resolve(Player player) {
+		// Read the version first, in case the world packs change while we resolve the pack
+		int version = config.getWorldPackVersion();
+		String world = player.getWorld().getName();
+		String pack = null;
+		long expires = Long.MAX_VALUE;
+
+		if (chat != null) {
+			int refresh = config.getVaultRefreshInterval();
+			pack = chat.getPlayerInfoString(player, "itempack", null);
+
+			// Vault may change without notice
+			if (refresh > 0) {
+				expires = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(refresh);
+			}
+		}
+		if (pack == null || pack.length() == 0) {
+			pack = config.getEffectiveWorldPack(world);
+		}
+
+		PackEntry entry = new PackEntry(pack, world, version, expires);
+		entries.put(player.getName(), entry);
+		return entry;
+	}
+}
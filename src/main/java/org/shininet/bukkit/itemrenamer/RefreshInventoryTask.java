@@ -1,58 +1,254 @@
 package org.shininet.bukkit.itemrenamer;
 
+import java.lang.reflect.InvocationTargetException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.bukkit.World;
 import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.inventory.InventoryView;
+import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitScheduler;
+import org.shininet.bukkit.itemrenamer.api.ConfigurationChangeEvent;
 import org.shininet.bukkit.itemrenamer.configuration.ItemRenamerConfiguration;
+import org.shininet.bukkit.itemrenamer.configuration.RenameConfiguration;
+import org.shininet.bukkit.itemrenamer.configuration.RuleChanges;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.events.PacketContainer;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.Subscribe;
 
+/**
+ * Represents a task that resends the inventory of players that are affected by a configuration change.
+ * <p>
+ * Refreshes are queued and spread over several ticks, and only the slots that contain a changed item are resent
+ * when possible.
+ */
 class RefreshInventoryTask implements Runnable {
-	private static final int TICKS_PER_SECOND = 20;
-	private static final int DELAY = TICKS_PER_SECOND * 2;	
-	
-	private int lastModCount = -1;
+	/**
+	 * Number of ticks between each time unused rename packs are evicted.
+	 */
+	private static final int EVICTION_INTERVAL = 600;
+
 	private int taskID;
-	
+	private int ticks;
+	private int lastWorldPackVersion;
+
+	// Whether or not a rename pack has changed since the last tick
+	private boolean changed;
+
+	// Pending refreshes by player name - NULL means the whole inventory
+	private final Map<String, Set<Integer>> pending = Maps.newLinkedHashMap();
+
 	private final ItemRenamerConfiguration config;
 	private final BukkitScheduler scheduler;
 	private final Plugin plugin;
-	
+	private final RenameProcessor processor;
+
 	/**
 	 * Construct a new refresh inventory task.
 	 * @param scheduler - the scheduler to use.
 	 * @param plugin - the owner plugin.
 	 * @param config - the configuration.
+	 * @param processor - the rename processor.
 	 */
-	public RefreshInventoryTask(BukkitScheduler scheduler, Plugin plugin, ItemRenamerConfiguration config) {
+	public RefreshInventoryTask(BukkitScheduler scheduler, Plugin plugin, ItemRenamerConfiguration config, RenameProcessor processor) {
 		this.config = config;
 		this.scheduler = scheduler;
 		this.plugin = plugin;
+		this.processor = processor;
+		this.lastWorldPackVersion = config.getWorldPackVersion();
 	}
 
 	public void start() {
-		taskID = scheduler.scheduleSyncRepeatingTask(plugin, this, DELAY, DELAY);
-		
+		taskID = scheduler.scheduleSyncRepeatingTask(plugin, this, 1, 1);
+
 		if (taskID < 0)
 			throw new IllegalStateException("Unable to start refresh inventory task.");
+		config.getChangeBus().register(this);
 	}
-	
+
 	public void stop() {
+		config.getChangeBus().unregister(this);
 		scheduler.cancelTask(taskID);
 	}
-	
-	@SuppressWarnings("deprecation")
+
+	/**
+	 * Invoked when a rename pack or rule has changed.
+	 * @param event - the change.
+	 */
+	@Subscribe
+	public void onConfigurationChanged(ConfigurationChangeEvent event) {
+		changed = true;
+	}
+
+	/**
+	 * Queue a refresh of the whole inventory of every online player.
+	 */
 	public void forceRefresh() {
 		for (Player player : plugin.getServer().getOnlinePlayers()) {
-			player.updateInventory();
+			pending.put(player.getName(), null);
+		}
+		lastWorldPackVersion = config.getWorldPackVersion();
+	}
+
+	/**
+	 * Queue a refresh of every player that has been sent one of the changed items.
+	 * @param changes - the changed packs and items.
+	 */
+	public void refresh(RuleChanges changes) {
+		OpenViewIndex index = processor.getViewIndex();
+
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			String pack = processor.getPack(player);
+
+			if (!changes.affectsPack(pack))
+				continue;
+			Set<Integer> items = changes.getItems(pack);
+
+			if (items == null) {
+				pending.put(player.getName(), null);
+			} else if (index.containsAny(player, items)) {
+				queueItems(player.getName(), items);
+			}
+		}
+	}
+
+	/**
+	 * Queue a refresh of the slots that contain one of the given items.
+	 * @param player - the player name.
+	 * @param items - the item IDs.
+	 */
+	private void queueItems(String player, Set<Integer> items) {
+		if (pending.containsKey(player)) {
+			Set<Integer> current = pending.get(player);
+
+			// Already refreshing the whole inventory
+			if (current != null)
+				current.addAll(items);
+		} else {
+			pending.put(player, Sets.newHashSet(items));
 		}
-		
-		// Don't refresh automatically again
-		lastModCount = config.getModificationCount();
 	}
 
 	@Override
 	public void run() {
-		if (lastModCount != config.getModificationCount()) {
+		if (lastWorldPackVersion != config.getWorldPackVersion()) {
 			forceRefresh();
-		}		
+		}
+		// Load packs that were missing when a packet was sent
+		if (config.getRenameConfig().loadRequestedPacks()) {
+			changed = true;
+		}
+		if (++ticks % EVICTION_INTERVAL == 0) {
+			evictPacks();
+		}
+		if (changed || config.getRenameConfig().hasUncommittedChanges()) {
+			changed = false;
+
+			// Publish changes made through the API or reloaded from disk
+			config.getRenameConfig().commit();
+			RuleChanges changes = config.getRenameConfig().pollChanges();
+
+			if (!changes.isEmpty()) {
+				refresh(changes);
+			}
+		}
+		processPending(config.getRefreshBudget());
+	}
+
+	/**
+	 * Evict every unused rename pack if the loaded packs use more memory than permitted.
+	 */
+	private void evictPacks() {
+		long limit = config.getPackMemoryLimit();
+
+		if (limit <= 0)
+			return;
+		Set<String> inUse = Sets.newHashSet();
+
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			inUse.add(processor.getPack(player));
+		}
+		for (World world : plugin.getServer().getWorlds()) {
+			inUse.add(config.getEffectiveWorldPack(world.getName()));
+		}
+		RenameConfiguration renameConfig = config.getRenameConfig();
+		int count = renameConfig.evictPacks(inUse, limit);
+
+		// Remove them from the published snapshot
+		if (count > 0) {
+			changed = true;
+			plugin.getLogger().fine("Evicted " + count + " rename packs. " + renameConfig.getResidentPackCount() + 
+					" packs remain loaded, using about " + renameConfig.getResidentSize() / 1024 + " KB.");
+		}
+	}
+
+	/**
+	 * Refresh a limited number of the pending players.
+	 * @param budget - the maximum number of players to refresh.
+	 */
+	@SuppressWarnings("deprecation")
+	private void processPending(int budget) {
+		for (Iterator<Entry<String, Set<Integer>>> it = pending.entrySet().iterator(); it.hasNext() && budget > 0; ) {
+			Entry<String, Set<Integer>> entry = it.next();
+			Player player = plugin.getServer().getPlayerExact(entry.getKey());
+			it.remove();
+
+			if (player == null)
+				continue;
+			if (entry.getValue() == null || !resendItems(player, entry.getValue())) {
+				player.updateInventory();
+			}
+			budget--;
+		}
+	}
+
+	/**
+	 * Resend every slot in the open window of a player that contains one of the given items.
+	 * @param player - the player.
+	 * @param items - the item IDs.
+	 * @return TRUE if the slots were resent, FALSE if the whole inventory must be refreshed instead.
+	 */
+	private boolean resendItems(Player player, Set<Integer> items) {
+		ProtocolManager manager = ProtocolLibrary.getProtocolManager();
+		InventoryView view = player.getOpenInventory();
+		InventoryType type = view.getType();
+		int windowId = OpenViewIndex.PLAYER_WINDOW;
+
+		// Determine the window ID of the open container
+		if (type != InventoryType.CRAFTING && type != InventoryType.CREATIVE) {
+			windowId = processor.getViewIndex().getContainerWindow(player);
+
+			if (windowId < 0)
+				return false;
+		}
+
+		for (int slot : processor.getViewIndex().getSlots(player, windowId, items)) {
+			if (slot >= view.countSlots())
+				continue;
+			ItemStack stack = view.getItem(slot);
+			PacketContainer packet = manager.createPacket(PacketType.Play.Server.SET_SLOT);
+
+			// The stack may be a mirror of the server item
+			packet.getIntegers().write(0, windowId).write(1, slot);
+			packet.getItemModifier().write(0, stack != null ? stack.clone() : null);
+
+			try {
+				manager.sendServerPacket(player, packet);
+			} catch (InvocationTargetException e) {
+				plugin.getLogger().log(Level.WARNING, "Cannot resend slot " + slot + " to " + player.getName(), e);
+			}
+		}
+		return true;
 	}
 }
@@ -69,7 +69,6 @@ class RenameListenerManager {
 	
 	// The renamer
 	private Plugin renamerPlugin;
-	private ItemsListener renamerListener;
 	
 	public RenameListenerManager(Plugin renamerPlugin) {
 		this.renamerPlugin = renamerPlugin;
@@ -121,12 +120,23 @@ class RenameListenerManager {
 		return result;
 	}
 	
+	/**
+	 * Determine if any other plugin has registered a listener.
+	 * @return TRUE if it has, FALSE otherwise.
+	 */
+	public boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+	
 	/**
 	 * Invoke the current listeners.
+	 * <p>
+	 * The renamer listener is supplied by the caller, so this method may be invoked concurrently.
 	 * @param player - current player.
 	 * @param snapshot - the snapshot.
+	 * @param renamerListener - the ItemRenamer listener that will be executed explicitly.
 	 */
-	public void invokeListeners(Player player, RenamerSnapshot snapshot) {
+	public void invokeListeners(Player player, RenamerSnapshot snapshot, ItemsListener renamerListener) {
 		boolean executedRenamer = false;
 		
 		for (ListenerContainer container : listeners) {
@@ -148,12 +158,4 @@ class RenameListenerManager {
 			renamerListener.onItemsSending(player, snapshot);
 		}
 	}
-	
-	/**
-	 * Set the ItemRenamer listener that will be executed explicitly.
-	 * @param renamerListener - the renamer listener.
-	 */
-	public void setRenamerListener(ItemsListener renamerListener) {
-		this.renamerListener = renamerListener;
-	}
 }
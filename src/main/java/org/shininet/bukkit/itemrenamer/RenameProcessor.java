@@ -1,23 +1,23 @@
 package org.shininet.bukkit.itemrenamer;
 
-import java.util.List;
+import java.util.Arrays;
+
 import net.milkbowl.vault.chat.Chat;
 
-import org.bukkit.ChatColor;
+import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+import org.shininet.bukkit.itemrenamer.RenderCache.RenderedStack;
 import org.shininet.bukkit.itemrenamer.SerializeItemStack.StackField;
 import org.shininet.bukkit.itemrenamer.api.ItemsListener;
 import org.shininet.bukkit.itemrenamer.api.RenamerSnapshot;
-import org.shininet.bukkit.itemrenamer.configuration.DamageLookup;
 import org.shininet.bukkit.itemrenamer.configuration.ItemRenamerConfiguration;
-import org.shininet.bukkit.itemrenamer.configuration.RenameConfiguration;
 import org.shininet.bukkit.itemrenamer.configuration.RenameRule;
+import org.shininet.bukkit.itemrenamer.configuration.RuleSnapshot;
+import org.shininet.bukkit.itemrenamer.configuration.RuleSnapshot.PackSnapshot;
 import org.shininet.bukkit.itemrenamer.meta.NiceBookMeta;
-import org.shininet.bukkit.itemrenamer.meta.NiceItemMeta;
-import org.shininet.bukkit.itemrenamer.wrappers.LeveledEnchantment;
-
-import com.google.common.collect.Lists;
+import org.shininet.bukkit.itemrenamer.wrappers.StackFingerprint;
 
 public class RenameProcessor extends AbstractRenameProcessor {
 	/**
@@ -28,25 +28,38 @@ public class RenameProcessor extends AbstractRenameProcessor {
 	// Configuration
 	private final ItemRenamerConfiguration config;
 	
-	// Vault
-	private final Chat chat;
+	// The resolved pack of each player
+	private final PlayerPackCache packCache;
 	
 	// Listeners
 	private RenameListenerManager listenerMananger;
 	
+	// Previously rendered item stacks
+	private final RenderCache renderCache;
+	
+	// Previously sent windows
+	private final SentWindowCache sentWindows;
+	
+	// The item IDs that have been sent to each player
+	private final OpenViewIndex viewIndex;
+	
 	/**
 	 * Construct a new rename processor.
 	 * <p>
 	 * The Vault chat layer is used to retrieve per-player configuration.
+	 * @param plugin - the owner plugin.
 	 * @param listenerManager - the listener manager.
 	 * @param config - the current configuration.
 	 * @param chat - the current Vault chat abstraction layer.
 	 */
-	RenameProcessor(RenameListenerManager listenerMananger, ItemRenamerConfiguration config, Chat chat) {
+	RenameProcessor(Plugin plugin, RenameListenerManager listenerMananger, ItemRenamerConfiguration config, Chat chat) {
 		super(KEY_ORIGINAL);
 		this.listenerMananger = listenerMananger;
 		this.config = config;
-		this.chat = chat;
+		this.packCache = new PlayerPackCache(plugin, config, chat);
+		this.renderCache = new RenderCache(config.getRenderCacheEntries(), config.getRenderCacheWeight());
+		this.sentWindows = new SentWindowCache();
+		this.viewIndex = new OpenViewIndex();
 	}
 	
 	/**
@@ -68,67 +81,79 @@ public class RenameProcessor extends AbstractRenameProcessor {
 	}
 	
 	/**
-	 * Process the name on the given item meta.
-	 * @param itemMeta - the item meta.
-	 * @param rule - the name rule to apply.
+	 * Retrieve the cache of the resolved rename pack of every player.
+	 * @return The pack cache.
 	 */
-	private void packName(NiceItemMeta itemMeta, RenameRule rule) {
-		if (rule.getName() != null) {
-			itemMeta.setDisplayName(ChatColor.RESET + 
-					ChatColor.translateAlternateColorCodes('&', rule.getName()) + ChatColor.RESET);
-		}
+	public PlayerPackCache getPackCache() {
+		return packCache;
 	}
 	
 	/**
-	 * Process lore on the given item meta.
-	 * @param itemMeta - the item meta.
-	 * @param rule - the lore rule to apply.
+	 * Retrieve the cache of rendered item stacks.
+	 * @return The render cache.
 	 */
-	private void packLore(NiceItemMeta itemMeta, RenameRule rule) {
-		// Don't process empty rules
-		if (rule.getLoreSections().size() == 0)
-			return;
-		
-		List<String> output = Lists.newArrayList(rule.getLoreSections());
-		
-		// Translate color codes as well
-		for (int i = 0; i < output.size(); i++) {
-			output.set(i, ChatColor.translateAlternateColorCodes('&', output.get(i)) + ChatColor.RESET);
-		}
-		itemMeta.setLore(output);
+	public RenderCache getRenderCache() {
+		return renderCache;
 	}
-
+	
+	/**
+	 * Retrieve the last processed slots of every window that has been sent to each player.
+	 * @return The sent window cache.
+	 */
+	public SentWindowCache getSentWindows() {
+		return sentWindows;
+	}
+	
+	/**
+	 * Retrieve the index of the item IDs in the windows that have been sent to each player.
+	 * @return The view index.
+	 */
+	public OpenViewIndex getViewIndex() {
+		return viewIndex;
+	}
+	
+	@Override
+	public long getRuleVersion() {
+		return config.getRenameConfig().getSnapshot().getVersion();
+	}
+	
+	@Override
+	public boolean isCacheable() {
+		return !listenerMananger.hasListeners();
+	}
+	
 	/**
 	 * Retrieve the associated rule for the given pack and item stack.
 	 * <p>
-	 * This will first look for exact rules, then damage lookup rules.
+	 * This will first look for exact rules, then damage lookup rules. Rules that have not been 
+	 * committed yet are not visible.
 	 * @param pack - the rename pack.
 	 * @param input - the item stack.
 	 * @return The associated rule, or NULL if not found.
 	 */
 	public RenameRule getRule(String pack, ItemStack input) {
+		PackSnapshot packRules = getPackRules(config.getRenameConfig().getSnapshot(), pack);
+		
 		// They have no rule
-		if (pack == null || input == null)
+		if (packRules == null || input == null)
 			return null;
-		RenameConfiguration renameConfig = config.getRenameConfig();
+		return packRules.getRule(input);
+	}
+	
+	/**
+	 * Retrieve the rules of the given pack from a snapshot, and request that the pack is loaded if it is missing.
+	 * @param ruleSnapshot - the snapshot.
+	 * @param pack - the rename pack, or NULL.
+	 * @return The rules of the pack, or NULL if the pack is missing or not loaded.
+	 */
+	private PackSnapshot getPackRules(RuleSnapshot ruleSnapshot, String pack) {
+		PackSnapshot packRules = ruleSnapshot.getPack(pack);
 		
-		// Make sure there is an associated pack
-		if (renameConfig.hasPack(pack)) {
-			RenameRule exactRule = renameConfig.getExact(pack).getRule(input);
-			
-			// Exact item stacks has priority
-			if (exactRule != null) {
-				return exactRule;
-			}
-			
-			// Next look at ranged rename rules
-			DamageLookup lookup = renameConfig.getLookup(pack, input.getTypeId());
-
-			if (lookup != null) {
-				return lookup.getRule(input.getDurability());
-			}
+		// The pack may not have been loaded yet
+		if (packRules == null && pack != null) {
+			config.getRenameConfig().requestPack(pack);
 		}
-		return null;
+		return packRules;
 	}
 	
 	/**
@@ -138,65 +163,205 @@ public class RenameProcessor extends AbstractRenameProcessor {
 	 * @return The renamed item stacks.
 	 */
 	public ItemStack processRule(ItemStack stack, RenameRule rule) {
-		NiceItemMeta niceMeta = NiceItemMeta.fromStack(stack);
-		
 		// Fix a client bug
-		if (niceMeta instanceof NiceBookMeta) {
-			NiceBookMeta bookMeta = (NiceBookMeta) niceMeta;
+		if (stack.getType() == Material.WRITTEN_BOOK || stack.getType() == Material.BOOK_AND_QUILL) {
+			NiceBookMeta bookMeta = NiceBookMeta.fromStack(stack);
 
 			// Create the pages NBT tag
 			if (bookMeta.getPageCount() == 0) {
 				bookMeta.setPages("");
 			}
+			stack = bookMeta.getStack();
 		}
 		
 		// No need to rename these types
 		if (rule == null)
 			return stack;
-		if (rule.isSkippingCustomNamed() && (niceMeta.hasDisplayName()) || (niceMeta.hasLore())) 
-			return stack;
+		return rule.getPatch().apply(stack);
+	}
+	
+	/**
+	 * Rename or append lore to the given item stack, reusing the result of identical item stacks in the same pack.
+	 * @param pack - the rename pack.
+	 * @param version - the version of the rename pack.
+	 * @param stack - the item stack.
+	 * @param rule - the rename rule to apply.
+	 * @param fingerprint - the fingerprint of the unmodified stack, or NULL if it must be computed.
+	 * @return The renamed item stack.
+	 */
+	private ItemStack renderRule(String pack, long version, ItemStack stack, RenameRule rule, 
+			StackFingerprint fingerprint) {
+		if (pack == null || rule == null || stack.getType() == Material.AIR)
+			return processRule(stack, rule);
 		
-		// Don't overwrite custom NBT tags if we can help it
-		packName(niceMeta, rule);
-		packLore(niceMeta, rule);
-		stack = niceMeta.getStack();
+		// The fingerprint refers to the tag of the input stack
+		if (fingerprint == null)
+			fingerprint = StackFingerprint.fromStack(stack);
+		RenderedStack cached = renderCache.get(pack, version, fingerprint, rule);
 		
-		// Remove or add enchantments
-		for (LeveledEnchantment removed : rule.getDechantments()) {
-			stack = removed.getEnchanter().disenchant(stack);
-		}
-		for (LeveledEnchantment added : rule.getEnchantments()) {
-			stack = added.getEnchanter().enchant(stack);
+		if (cached != null) {
+			return cached.applyTo(stack);
 		}
+		
+		// Must be copied before the stack is modified
+		fingerprint = fingerprint.copy();
+		stack = processRule(stack, rule);
+		renderCache.put(pack, version, fingerprint, RenderedStack.fromStack(rule, stack));
 		return stack;
 	}
 	
+	/**
+	 * Determine if the given item stack will be modified by the given rule.
+	 * <p>
+	 * Books are always processed in order to fix a client bug.
+	 * @param stack - the item stack.
+	 * @param rule - the rename rule, or NULL.
+	 * @return TRUE if it may be modified, FALSE otherwise.
+	 */
+	private boolean isModified(ItemStack stack, RenameRule rule) {
+		if (stack == null)
+			return false;
+		return !RenameRule.isIdentity(rule) || 
+				stack.getType() == Material.WRITTEN_BOOK || stack.getType() == Material.BOOK_AND_QUILL;
+	}
+	
 	@Override
-	protected void processSnapshot(Player player, RenamerSnapshot snapshot) {		
+	public ItemStack[] processWindow(Player player, int windowId, ItemStack[] input, int offset) {
+		if (input == null)
+			return null;
+		
+		// Window packets contain every slot, while slot packets contain a single item
+		viewIndex.update(player, windowId, input, offset, input.length > 1);
+		
+		// Other plugins may depend on more than the content of each slot
+		if (windowId < 0 || listenerMananger.hasListeners()) {
+			return super.processWindow(player, windowId, input, offset);
+		}
+		String pack = getPack(player);
+		RuleSnapshot ruleSnapshot = config.getRenameConfig().getSnapshot();
+		PackSnapshot packRules = getPackRules(ruleSnapshot, pack);
+		
+		// Unchanged packs keep their version
+		long version = packRules != null ? packRules.getVersion() : ruleSnapshot.getVersion();
+		
+		StackFingerprint[] fingerprints = new StackFingerprint[input.length];
+		StackFingerprint[] live = new StackFingerprint[input.length];
+		int[] missing = new int[input.length];
+		int missCount = 0;
+		
+		// Reuse the output of slots that have not changed
+		for (int i = 0; i < input.length; i++) {
+			ItemStack stack = input[i];
+			int slot = offset + i;
+			
+			// Empty slots are never modified
+			if (stack == null || stack.getType() == Material.AIR) {
+				sentWindows.remove(player, windowId, slot);
+				continue;
+			}
+			StackFingerprint fingerprint = StackFingerprint.fromStack(stack);
+			ItemStack output = sentWindows.get(player, windowId, slot, pack, version, fingerprint);
+			
+			if (output != null) {
+				output.setAmount(stack.getAmount());
+				input[i] = output;
+			} else {
+				// Must be copied before the stack is modified
+				if (SentWindowCache.isCacheable(windowId, slot))
+					fingerprints[i] = fingerprint.copy();
+				live[missCount] = fingerprint;
+				missing[missCount++] = i;
+			}
+		}
+		if (missCount == 0) {
+			return input;
+		}
+		
+		// Process the remaining slots
+		ItemStack[] remaining = input;
+		
+		if (missCount < input.length) {
+			remaining = new ItemStack[missCount];
+			live = Arrays.copyOf(live, missCount);
+			
+			for (int i = 0; i < missCount; i++) {
+				remaining[i] = input[missing[i]];
+			}
+		}
+		process(player, player.getOpenInventory(), remaining, remaining == input ? offset : 0, live);
+		
+		for (int i = 0; i < missCount; i++) {
+			int index = missing[i];
+			input[index] = remaining[i];
+			
+			if (fingerprints[index] != null) {
+				sentWindows.put(player, windowId, offset + index, pack, version, fingerprints[index], input[index]);
+			}
+		}
+		return input;
+	}
+	
+	@Override
+	protected void processSnapshot(Player player, RenamerSnapshot snapshot, final OriginalStacks original) {		
 		final RenameRule[] rules = new RenameRule[snapshot.size()];
 		final String pack = getPack(player);
+		RuleSnapshot ruleSnapshot = config.getRenameConfig().getSnapshot();
+		PackSnapshot packRules = getPackRules(ruleSnapshot, pack);
+		final boolean hasListeners = listenerMananger.hasListeners();
+		boolean hasWork = false;
+		
+		// Rendered stacks of older pack versions are never reused
+		final long version = packRules != null ? packRules.getVersion() : ruleSnapshot.getVersion();
 		
 		// Retrieve the rename rule for each item stack
-		for (int i = 0; i < rules.length; i++) {
-			rules[i] = getRule(pack, snapshot.getSlot(i));
+		if (packRules != null) {
+			for (int i = 0; i < rules.length; i++) {
+				int duplicate = original.getDuplicate(i);
+				rules[i] = duplicate >= 0 ? rules[duplicate] : packRules.getRule(snapshot.getSlot(i));
+			}
+		}
+		for (int i = 0; i < rules.length && !hasWork; i++) {
+			hasWork = isModified(snapshot.getSlot(i), rules[i]);
+		}
+		
+		// Nothing will be modified - leave every slot as is
+		if (!hasWork && !hasListeners) {
+			return;
+		}
+		// We don't know which slots other plugins will modify
+		if (hasListeners) {
+			original.captureAll();
 		}
 	
-		listenerMananger.setRenamerListener(new ItemsListener() {
+		// Passed on the stack, as packets may be processed concurrently
+		ItemsListener renamerListener = new ItemsListener() {
 			@Override
 			public void onItemsSending(Player player, RenamerSnapshot snapshot) {
 				for (int i = 0; i < rules.length; i++) {
 					ItemStack input = snapshot.getSlot(i);
 					RenameRule rule = rules[i];
 					
-					if (input != null) {
-						snapshot.setSlot(i, processRule(input, rule));
+					// Skip slots that will not be modified
+					if (isModified(input, rule)) {
+						int duplicate = original.getDuplicate(i);
+						
+						// Render identical stacks once, unless other plugins must see every slot
+						if (!hasListeners && duplicate >= 0 && rules[duplicate] == rule) {
+							original.share(i);
+							continue;
+						}
+						// Other plugins may have modified the slot since it was fingerprinted
+						StackFingerprint fingerprint = hasListeners ? null : original.getFingerprint(i);
+						
+						original.capture(i);
+						snapshot.setSlot(i, renderRule(pack, version, input, rule, fingerprint));
 					}
 				}
 			}
-		});
+		};
 		
 		// Invoke other plugins
-		listenerMananger.invokeListeners(player, snapshot);
+		listenerMananger.invokeListeners(player, snapshot, renamerListener);
 	}
 	
 	/**
@@ -206,14 +371,8 @@ public class RenameProcessor extends AbstractRenameProcessor {
 	 * @param player - the player to look up.
 	 * @return The name of the rename pack.
 	 */
+	@Override
 	public String getPack(Player player) {
-		if (chat != null) {
-			String pack = chat.getPlayerInfoString(player, "itempack", null);
-
-			// Use this pack instead
-			if (pack != null && pack.length() > 0)
-				return pack;
-		}
-		return config.getEffectiveWorldPack(player.getWorld().getName());
+		return packCache.getPack(player);
 	}
 }
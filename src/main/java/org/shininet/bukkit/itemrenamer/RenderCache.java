@@ -0,0 +1,307 @@
+package org.shininet.bukkit.itemrenamer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.configuration.RenameRule;
+import org.shininet.bukkit.itemrenamer.utils.NbtStructures;
+import org.shininet.bukkit.itemrenamer.utils.StackUtils;
+import org.shininet.bukkit.itemrenamer.wrappers.StackFingerprint;
+
+import com.comphenix.protocol.wrappers.nbt.NbtCompound;
+import com.comphenix.protocol.wrappers.nbt.NbtFactory;
+import com.google.common.base.Objects;
+
+/**
+ * Represents a bounded cache of rendered item stacks, keyed by rename pack and item fingerprint.
+ * <p>
+ * The cache is bounded both by the number of entries and by their total weight, which is the estimated
+ * size of every rendered tag. The least recently used entries are evicted first. Entries are keyed by the version of
+ * their pack, so changes to other packs never invalidate them.
+ */
+public class RenderCache {
+	/**
+	 * Represents the rendered output of a rename rule, ready to be spliced into an outgoing stack.
+	 */
+	public static class RenderedStack {
+		private final RenameRule rule;
+		private final short damage;
+		
+		// NULL if the rendered stack has no tag
+		private final NbtCompound tag;
+		private final int weight;
+
+		private RenderedStack(RenameRule rule, short damage, NbtCompound tag) {
+			this.rule = rule;
+			this.damage = damage;
+			this.tag = tag;
+			this.weight = 1 + NbtStructures.weigh(tag);
+		}
+
+		/**
+		 * Capture the rendered state of the given stack.
+		 * @param rule - the rule that was applied.
+		 * @param rendered - the rendered stack.
+		 * @return The rendered state.
+		 */
+		public static RenderedStack fromStack(RenameRule rule, ItemStack rendered) {
+			ItemStack craft = StackUtils.getCraftItemStack(rendered);
+			NbtCompound tag = null;
+			
+			if (craft.hasItemMeta()) {
+				tag = NbtFactory.asCompound(NbtFactory.fromItemTag(craft).deepClone());
+			}
+			return new RenderedStack(rule, craft.getDurability(), tag);
+		}
+
+		/**
+		 * Splice the rendered damage value and tag into the given stack, preserving its count.
+		 * <p>
+		 * If the rendered stack has no tag, the tag of the given stack is removed.
+		 * @param stack - the stack to modify.
+		 * @return The modified stack, which may be a new CraftItemStack.
+		 */
+		public ItemStack applyTo(ItemStack stack) {
+			ItemStack craft = StackUtils.getCraftItemStack(stack);
+
+			craft.setDurability(damage);
+			
+			// The rule may have removed every tag (such as a dechant-only rule)
+			if (tag != null) {
+				NbtFactory.setItemTag(craft, NbtFactory.asCompound(tag.deepClone()));
+			} else if (craft.hasItemMeta()) {
+				NbtFactory.setItemTag(craft, null);
+			}
+			return craft;
+		}
+
+		/**
+		 * Retrieve the rule that was used to render this stack.
+		 * @return The rename rule.
+		 */
+		public RenameRule getRule() {
+			return rule;
+		}
+
+		/**
+		 * Retrieve the estimated size of the rendered tag.
+		 * @return The weight of the rendered stack.
+		 */
+		public int getWeight() {
+			return weight;
+		}
+	}
+
+	/**
+	 * Represents a pack version and item fingerprint.
+	 */
+	private static class CacheKey {
+		private final String pack;
+		private final long version;
+		private final StackFingerprint fingerprint;
+
+		public CacheKey(String pack, long version, StackFingerprint fingerprint) {
+			this.pack = pack;
+			this.version = version;
+			this.fingerprint = fingerprint;
+		}
+
+		@Override
+		public int hashCode() {
+			return (pack.hashCode() * 31 + (int) (version ^ (version >>> 32))) * 31 + fingerprint.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof CacheKey) {
+				CacheKey other = (CacheKey) obj;
+				return version == other.version && pack.equals(other.pack) && fingerprint.equals(other.fingerprint);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Represents an independently locked part of the cache, with its share of the size and weight limits.
+	 */
+	private static class Stripe {
+		// Least recently used first
+		private final LinkedHashMap<CacheKey, RenderedStack> entries = new LinkedHashMap<CacheKey, RenderedStack>(16, 0.75f, true);
+		private long weight;
+	}
+
+	// Number of stripes - must be a power of two
+	private static final int STRIPE_COUNT = 16;
+
+	private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+	private final int maximumSize;
+	private final long maximumWeight;
+
+	// Statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Construct a new render cache.
+	 * <p>
+	 * The limits are divided evenly between a fixed number of stripes, so concurrent lookups rarely contend on the
+	 * same lock. Each stripe evicts its own least recently used entries.
+	 * @param maximumSize - the maximum number of entries.
+	 * @param maximumWeight - the maximum total weight of every entry.
+	 */
+	public RenderCache(int maximumSize, long maximumWeight) {
+		this.maximumSize = maximumSize > 0 ? (maximumSize + STRIPE_COUNT - 1) / STRIPE_COUNT : 0;
+		this.maximumWeight = maximumWeight > 0 ? (maximumWeight + STRIPE_COUNT - 1) / STRIPE_COUNT : 0;
+
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Retrieve the stripe that holds the given key.
+	 * @param key - the key.
+	 * @return The stripe.
+	 */
+	private Stripe getStripe(CacheKey key) {
+		int hash = key.hashCode();
+
+		// Spread the high bits
+		hash ^= (hash >>> 16);
+		hash ^= (hash >>> 7);
+		return stripes[hash & (STRIPE_COUNT - 1)];
+	}
+
+	/**
+	 * Retrieve a rendered stack from the cache.
+	 * <p>
+	 * Entries of older versions of a pack are never returned, and are eventually evicted.
+	 * @param pack - the rename pack.
+	 * @param version - the version of the pack.
+	 * @param fingerprint - the fingerprint of the input stack.
+	 * @param rule - the rule that is about to be applied.
+	 * @return The rendered stack, or NULL if not found.
+	 */
+	public RenderedStack get(String pack, long version, StackFingerprint fingerprint, RenameRule rule) {
+		CacheKey key = new CacheKey(pack, version, fingerprint);
+		Stripe stripe = getStripe(key);
+		RenderedStack result;
+
+		synchronized (stripe) {
+			result = stripe.entries.get(key);
+		}
+		if (result != null && Objects.equal(result.getRule(), rule)) {
+			hits.incrementAndGet();
+			return result;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Associate a rendered stack with a given pack version and fingerprint.
+	 * @param pack - the rename pack.
+	 * @param version - the version of the pack.
+	 * @param fingerprint - an immutable fingerprint of the input stack.
+	 * @param rendered - the rendered stack.
+	 */
+	public void put(String pack, long version, StackFingerprint fingerprint, RenderedStack rendered) {
+		// Don't cache items that would evict everything
+		if (rendered.getWeight() > maximumWeight || maximumSize <= 0)
+			return;
+
+		CacheKey key = new CacheKey(pack, version, fingerprint);
+		Stripe stripe = getStripe(key);
+
+		synchronized (stripe) {
+			RenderedStack previous = stripe.entries.put(key, rendered);
+
+			if (previous != null)
+				stripe.weight -= previous.getWeight();
+			stripe.weight += rendered.getWeight();
+
+			// Evict the least recently used entries
+			for (Iterator<RenderedStack> it = stripe.entries.values().iterator();
+					it.hasNext() && (stripe.entries.size() > maximumSize || stripe.weight > maximumWeight); ) {
+				stripe.weight -= it.next().getWeight();
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Remove every entry in the cache.
+	 */
+	public void invalidateAll() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.entries.clear();
+				stripe.weight = 0;
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the number of times a lookup found a rendered stack.
+	 * @return The number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Retrieve the number of times a lookup didn't find a rendered stack.
+	 * @return The number of misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Retrieve the number of entries that have been evicted due to the size or weight limit.
+	 * @return The number of evictions.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Retrieve the current number of entries.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		int size = 0;
+
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.entries.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Retrieve the current total weight of every entry.
+	 * @return The total weight.
+	 */
+	public long getWeight() {
+		long weight = 0;
+
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				weight += stripe.weight;
+			}
+		}
+		return weight;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RenderCache[size: %s, weight: %s, hits: %s, misses: %s, evictions: %s]",
+				size(), getWeight(), getHits(), getMisses(), getEvictions());
+	}
+}
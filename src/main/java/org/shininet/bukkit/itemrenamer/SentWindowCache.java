@@ -0,0 +1,216 @@
+package org.shininet.bukkit.itemrenamer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.wrappers.StackFingerprint;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+
+/**
+ * Represents the last processed content of every slot in the windows that have been sent to each player.
+ * <p>
+ * This allows packets that resend unchanged slots to reuse the previous output. Every window is tied to the
+ * rename pack and rule version it was processed with, and is discarded when either of them change.
+ */
+public class SentWindowCache {
+	/**
+	 * The window ID of the player inventory.
+	 */
+	public static final int PLAYER_WINDOW = 0;
+
+	/**
+	 * The maximum number of windows to remember per player.
+	 */
+	private static final int MAX_WINDOWS = 4;
+
+	/**
+	 * The maximum number of slots to remember per window.
+	 */
+	private static final int MAX_SLOTS = 128;
+
+	/**
+	 * Represents the input fingerprint and processed output of a slot.
+	 */
+	private static class SentSlot {
+		private final StackFingerprint input;
+		private final ItemStack output;
+
+		public SentSlot(StackFingerprint input, ItemStack output) {
+			this.input = input;
+			this.output = output;
+		}
+	}
+
+	/**
+	 * Represents the sent slots of a window.
+	 */
+	private static class SentWindow {
+		private final String pack;
+		private final long version;
+		private final SentSlot[] slots = new SentSlot[MAX_SLOTS];
+
+		public SentWindow(String pack, long version) {
+			this.pack = pack;
+			this.version = version;
+		}
+
+		public boolean isValid(String pack, long version) {
+			return this.version == version && Objects.equal(this.pack, pack);
+		}
+	}
+
+	/**
+	 * Represents the sent windows of a player, least recently used first.
+	 */
+	private static class PlayerWindows extends LinkedHashMap<Integer, SentWindow> {
+		private static final long serialVersionUID = 1L;
+
+		public PlayerWindows() {
+			super(MAX_WINDOWS + 1, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Entry<Integer, SentWindow> eldest) {
+			return size() > MAX_WINDOWS;
+		}
+	}
+
+	// The sent windows by player name
+	private final ConcurrentMap<String, PlayerWindows> players = Maps.newConcurrentMap();
+
+	/**
+	 * Determine if the given slot can be stored in the cache.
+	 * @param windowId - the window ID.
+	 * @param slot - the slot index.
+	 * @return TRUE if it can, FALSE otherwise.
+	 */
+	public static boolean isCacheable(int windowId, int slot) {
+		return windowId >= 0 && slot >= 0 && slot < MAX_SLOTS;
+	}
+
+	/**
+	 * Retrieve a copy of the previous output of a slot, if its input has not changed.
+	 * @param player - the receiving player.
+	 * @param windowId - the window ID.
+	 * @param slot - the slot index.
+	 * @param pack - the current rename pack.
+	 * @param version - the current rule version.
+	 * @param input - the fingerprint of the current input.
+	 * @return A copy of the previous output, or NULL if not found.
+	 */
+	public ItemStack get(Player player, int windowId, int slot, String pack, long version, StackFingerprint input) {
+		PlayerWindows windows = players.get(player.getName());
+		SentSlot sent = null;
+
+		if (windows == null || !isCacheable(windowId, slot))
+			return null;
+
+		synchronized (windows) {
+			SentWindow window = windows.get(windowId);
+
+			if (window != null && window.isValid(pack, version)) {
+				sent = window.slots[slot];
+			}
+		}
+		if (sent != null && sent.input.equals(input)) {
+			return sent.output.clone();
+		}
+		return null;
+	}
+
+	/**
+	 * Store the output of a slot.
+	 * @param player - the receiving player.
+	 * @param windowId - the window ID.
+	 * @param slot - the slot index.
+	 * @param pack - the rename pack that was used.
+	 * @param version - the rule version that was used.
+	 * @param input - a stored fingerprint of the input.
+	 * @param output - the output, which will be copied.
+	 */
+	public void put(Player player, int windowId, int slot, String pack, long version, StackFingerprint input, ItemStack output) {
+		if (!isCacheable(windowId, slot))
+			return;
+		PlayerWindows windows = players.get(player.getName());
+
+		if (windows == null) {
+			PlayerWindows created = new PlayerWindows();
+			windows = players.putIfAbsent(player.getName(), created);
+
+			if (windows == null) {
+				windows = created;
+			}
+		}
+		SentSlot sent = new SentSlot(input, output.clone());
+
+		synchronized (windows) {
+			SentWindow window = windows.get(windowId);
+
+			// Discard windows from an older configuration
+			if (window == null || !window.isValid(pack, version)) {
+				windows.put(windowId, window = new SentWindow(pack, version));
+			}
+			window.slots[slot] = sent;
+		}
+	}
+
+	/**
+	 * Remove the stored slot of a given window.
+	 * @param player - the receiving player.
+	 * @param windowId - the window ID.
+	 * @param slot - the slot index.
+	 */
+	public void remove(Player player, int windowId, int slot) {
+		PlayerWindows windows = players.get(player.getName());
+
+		if (windows == null || !isCacheable(windowId, slot))
+			return;
+
+		synchronized (windows) {
+			SentWindow window = windows.get(windowId);
+
+			if (window != null) {
+				window.slots[slot] = null;
+			}
+		}
+	}
+
+	/**
+	 * Remove every window of a player, except the player inventory.
+	 * @param player - the player whose windows have been closed.
+	 */
+	public void closeWindows(Player player) {
+		PlayerWindows windows = players.get(player.getName());
+
+		if (windows != null) {
+			synchronized (windows) {
+				for (Iterator<Integer> it = windows.keySet().iterator(); it.hasNext(); ) {
+					if (it.next() != PLAYER_WINDOW) {
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove every window of a player.
+	 * @param player - the player to remove.
+	 */
+	public void invalidate(Player player) {
+		players.remove(player.getName());
+	}
+
+	/**
+	 * Remove every window of every player.
+	 */
+	public void invalidateAll() {
+		players.clear();
+	}
+}
@@ -0,0 +1,27 @@
+package org.shininet.bukkit.itemrenamer.api;
+
+/**
+ * Represents a change to the rename packs in the configuration.
+ * <p>
+ * Change events are posted on the main thread as soon as the configuration has been modified, but the change will
+ * not be visible to outgoing packets until the configuration has been committed. Subscribe to this class in order to
+ * receive every kind of change.
+ * @see RenamerAPI#registerChangeListener(Object)
+ */
+public abstract class ConfigurationChangeEvent {
+	private final String pack;
+
+	protected ConfigurationChangeEvent(String pack) {
+		if (pack == null)
+			throw new IllegalArgumentException("pack cannot be NULL.");
+		this.pack = pack;
+	}
+
+	/**
+	 * Retrieve the name of the rename pack that has changed.
+	 * @return The name of the pack.
+	 */
+	public String getPack() {
+		return pack;
+	}
+}
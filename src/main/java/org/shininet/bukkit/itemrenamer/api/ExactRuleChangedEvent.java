@@ -0,0 +1,41 @@
+package org.shininet.bukkit.itemrenamer.api;
+
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Represents a change to the rename rule of a specific item stack.
+ */
+public class ExactRuleChangedEvent extends ConfigurationChangeEvent {
+	private final ItemStack stack;
+
+	/**
+	 * Construct a new exact rule change event.
+	 * @param pack - the rename pack.
+	 * @param stack - the item stack whose rule has changed. This will be cloned.
+	 */
+	public ExactRuleChangedEvent(String pack, ItemStack stack) {
+		super(pack);
+		this.stack = stack.clone();
+	}
+
+	/**
+	 * Retrieve the ID of the item whose rule has changed.
+	 * @return The item ID.
+	 */
+	public int getItemID() {
+		return stack.getTypeId();
+	}
+
+	/**
+	 * Retrieve a copy of the item stack whose rule has changed.
+	 * @return The item stack.
+	 */
+	public ItemStack getStack() {
+		return stack.clone();
+	}
+
+	@Override
+	public String toString() {
+		return "ExactRuleChangedEvent[pack: " + getPack() + ", stack: " + stack + "]";
+	}
+}
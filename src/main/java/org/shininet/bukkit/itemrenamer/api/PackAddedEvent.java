@@ -0,0 +1,15 @@
+package org.shininet.bukkit.itemrenamer.api;
+
+/**
+ * Represents a rename pack that has been added to the configuration.
+ */
+public class PackAddedEvent extends ConfigurationChangeEvent {
+	public PackAddedEvent(String pack) {
+		super(pack);
+	}
+
+	@Override
+	public String toString() {
+		return "PackAddedEvent[pack: " + getPack() + "]";
+	}
+}
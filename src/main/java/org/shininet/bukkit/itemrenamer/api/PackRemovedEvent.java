@@ -0,0 +1,15 @@
+package org.shininet.bukkit.itemrenamer.api;
+
+/**
+ * Represents a rename pack that has been removed from the configuration.
+ */
+public class PackRemovedEvent extends ConfigurationChangeEvent {
+	public PackRemovedEvent(String pack) {
+		super(pack);
+	}
+
+	@Override
+	public String toString() {
+		return "PackRemovedEvent[pack: " + getPack() + "]";
+	}
+}
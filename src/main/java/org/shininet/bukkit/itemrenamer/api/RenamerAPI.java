@@ -70,6 +70,22 @@ public abstract class RenamerAPI {
 	 */
 	public abstract boolean removeListeners(@Nonnull Plugin plugin);
 	
+	/**
+	 * Register an object that will be notified whenever a rename pack or rule has changed.
+	 * <p>
+	 * Every public method annotated with {@link com.google.common.eventbus.Subscribe Subscribe} that accepts a 
+	 * {@link ConfigurationChangeEvent}, or one of its subclasses, will be invoked on the main thread 
+	 * after the change has been made.
+	 * @param listener - the change listener.
+	 */
+	public abstract void registerChangeListener(@Nonnull Object listener);
+	
+	/**
+	 * Unregister a change listener that was registered with {@link #registerChangeListener(Object)}.
+	 * @param listener - the change listener.
+	 */
+	public abstract void unregisterChangeListener(@Nonnull Object listener);
+	
 	/**
 	 * Retrieve the rename pack a given player is associated with.
 	 * <p>
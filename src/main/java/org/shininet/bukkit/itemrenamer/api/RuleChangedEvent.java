@@ -0,0 +1,46 @@
+package org.shininet.bukkit.itemrenamer.api;
+
+import com.google.common.collect.Range;
+
+/**
+ * Represents a change to the rename rules of a range of damage values of an item.
+ */
+public class RuleChangedEvent extends ConfigurationChangeEvent {
+	private final int itemID;
+	private final Range<Integer> damage;
+
+	/**
+	 * Construct a new rule change event.
+	 * @param pack - the rename pack.
+	 * @param itemID - the item ID.
+	 * @param damage - the damage values whose rule may have changed.
+	 */
+	public RuleChangedEvent(String pack, int itemID, Range<Integer> damage) {
+		super(pack);
+		this.itemID = itemID;
+		this.damage = damage;
+	}
+
+	/**
+	 * Retrieve the ID of the item whose rules have changed.
+	 * @return The item ID.
+	 */
+	public int getItemID() {
+		return itemID;
+	}
+
+	/**
+	 * Retrieve the damage values whose rule may have changed.
+	 * <p>
+	 * This is unbounded if the ALL or OTHER rule has changed.
+	 * @return The changed damage values.
+	 */
+	public Range<Integer> getDamage() {
+		return damage;
+	}
+
+	@Override
+	public String toString() {
+		return "RuleChangedEvent[pack: " + getPack() + ", item: " + itemID + ", damage: " + damage + "]";
+	}
+}
@@ -0,0 +1,189 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.io.Closeables;
+
+/**
+ * Represents a watcher that detects when the configuration file has been modified by another program.
+ * <p>
+ * The folder of the file is watched with a {@link WatchService} on a background thread. Changes are checked on the
+ * thread of the configuration writer, so writes made by the plugin itself are never mistaken for external changes as
+ * long as {@link #setKnownHash(byte[])} is called after each write. External changes are then loaded on a separate
+ * thread, so a large file never delays a pending save.
+ */
+abstract class ConfigurationWatcher {
+	private final File file;
+	private final ConfigurationWriter writer;
+	private final Logger logger;
+
+	// The watch thread and the load thread
+	private final ExecutorService watchExecutor;
+	private final ExecutorService loadExecutor;
+	private WatchService watchService;
+
+	// Hash of the file content that is already loaded
+	private volatile byte[] knownHash;
+
+	/**
+	 * Construct a new configuration watcher.
+	 * @param file - the configuration file to watch.
+	 * @param writer - the writer that saves the configuration file.
+	 * @param logger - the logger that will receive every error.
+	 */
+	public ConfigurationWatcher(File file, ConfigurationWriter writer, Logger logger) {
+		this.file = file.getAbsoluteFile();
+		this.writer = writer;
+		this.logger = logger;
+		this.watchExecutor = createExecutor("ItemRenamer Watch Thread");
+		this.loadExecutor = createExecutor("ItemRenamer Reload Thread");
+	}
+
+	/**
+	 * Create a single daemon thread executor.
+	 * @param name - the name of the thread.
+	 * @return The executor.
+	 */
+	private static ExecutorService createExecutor(final String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start watching the configuration file.
+	 * @param delay - the number of milliseconds to wait for further changes before the file is checked.
+	 * @throws IOException If the folder of the configuration file cannot be watched.
+	 */
+	public void start(final long delay) throws IOException {
+		Path folder = file.getParentFile().toPath();
+
+		watchService = folder.getFileSystem().newWatchService();
+		folder.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+
+		watchExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				watch(delay);
+			}
+		});
+	}
+
+	/**
+	 * Stop watching the configuration file.
+	 */
+	public void stop() {
+		watchExecutor.shutdownNow();
+		loadExecutor.shutdownNow();
+		Closeables.closeQuietly(watchService);
+	}
+
+	/**
+	 * Set the hash of the file content that has been loaded or written by the plugin.
+	 * @param hash - the new hash.
+	 */
+	public void setKnownHash(byte[] hash) {
+		this.knownHash = hash;
+	}
+
+	/**
+	 * Queue a check of the file content whenever the file has been touched, until the watcher is stopped.
+	 * @param delay - the number of milliseconds to wait for further changes.
+	 */
+	private void watch(long delay) {
+		try {
+			while (true) {
+				if (!isChanged(watchService.take()))
+					continue;
+
+				// Editors may write the file in several steps
+				for (WatchKey key; (key = watchService.poll(delay, TimeUnit.MILLISECONDS)) != null; ) {
+					isChanged(key);
+				}
+
+				// Wait for pending writes
+				writer.execute(new Runnable() {
+					@Override
+					public void run() {
+						check();
+					}
+				});
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		}
+	}
+
+	/**
+	 * Determine if the given key has any events for the configuration file, and reset it.
+	 * @param key - the signalled key.
+	 * @return TRUE if the configuration file may have changed, FALSE otherwise.
+	 */
+	private boolean isChanged(WatchKey key) {
+		boolean changed = false;
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			// Events may have been lost
+			if (event.kind() == OVERFLOW || file.getName().equals(String.valueOf(event.context())))
+				changed = true;
+		}
+		if (!key.reset()) {
+			logger.warning("Cannot watch " + file.getParentFile() + " any longer.");
+		}
+		return changed;
+	}
+
+	/**
+	 * Load the file on the load thread if its content differs from the known content.
+	 */
+	private void check() {
+		final byte[] hash = PackCache.hash(file);
+
+		if (hash == null || Arrays.equals(hash, knownHash) || loadExecutor.isShutdown())
+			return;
+		knownHash = hash;
+
+		loadExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					onChanged(hash);
+				} catch (Exception e) {
+					logger.log(Level.WARNING, "Cannot load changes to " + file, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Invoked on a background thread when the configuration file has been modified by another program.
+	 * <p>
+	 * This is never invoked on the thread of the configuration writer.
+	 * @param hash - the hash of the modified file.
+	 */
+	protected abstract void onChanged(byte[] hash);
+}
@@ -0,0 +1,312 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Represents a background thread that writes configuration snapshots to disk.
+ * <p>
+ * Every write replaces the file atomically, after the previous version has been copied to the backup folder.
+ * Snapshots that are submitted while a write is pending replace the pending snapshot, so only the latest
+ * snapshot is written.
+ */
+class ConfigurationWriter {
+	/**
+	 * The prefix of every backup file.
+	 */
+	private static final String BACKUP_PREFIX = "config";
+
+	/**
+	 * The extension of compressed backups.
+	 */
+	private static final String COMPRESSED_EXTENSION = ".gz";
+
+	// The file to write
+	private final File file;
+	private final File backupFolder;
+	private final Logger logger;
+
+	// The single writer thread
+	private final ExecutorService executor;
+
+	/**
+	 * Represents a snapshot that is waiting to be written.
+	 */
+	private static class PendingWrite {
+		private final YamlConfiguration snapshot;
+		private final Runnable onWritten;
+
+		public PendingWrite(YamlConfiguration snapshot, Runnable onWritten) {
+			this.snapshot = snapshot;
+			this.onWritten = onWritten;
+		}
+	}
+
+	// The snapshot that is waiting to be written, if any
+	private final AtomicReference<PendingWrite> pending = new AtomicReference<PendingWrite>();
+	private volatile Future<?> lastWrite;
+
+	// Backup settings
+	private volatile int backupRetention;
+	private volatile boolean backupCompression;
+
+	/**
+	 * Construct a new configuration writer.
+	 * @param file - the configuration file to write.
+	 * @param logger - the logger that will receive every error.
+	 */
+	public ConfigurationWriter(File file, Logger logger) {
+		this.file = file;
+		this.backupFolder = new File(file.getParentFile(), "backup");
+		this.logger = logger;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ItemRenamer Save Thread");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Set how many backups to keep, and whether or not they should be compressed.
+	 * @param retention - the maximum number of backups, or zero to disable backups.
+	 * @param compression - TRUE to compress new backups, FALSE otherwise.
+	 */
+	public void setBackupPolicy(int retention, boolean compression) {
+		this.backupRetention = retention;
+		this.backupCompression = compression;
+	}
+
+	/**
+	 * Write the given snapshot on the background thread.
+	 * <p>
+	 * The snapshot must not be modified after it has been submitted.
+	 * @param snapshot - the snapshot to write.
+	 */
+	public void write(YamlConfiguration snapshot) {
+		write(snapshot, null);
+	}
+
+	/**
+	 * Write the given snapshot on the background thread.
+	 * <p>
+	 * The snapshot must not be modified after it has been submitted. If a newer snapshot is submitted before 
+	 * this snapshot has been written, only the newer snapshot and its callback are used.
+	 * @param snapshot - the snapshot to write.
+	 * @param onWritten - invoked on the background thread once the snapshot has been written, or NULL.
+	 */
+	public void write(YamlConfiguration snapshot, Runnable onWritten) {
+		// Only schedule a write if the previous snapshot has been picked up
+		if (pending.getAndSet(new PendingWrite(snapshot, onWritten)) == null) {
+			lastWrite = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					PendingWrite current = pending.getAndSet(null);
+
+					try {
+						if (current != null) {
+							writeSnapshot(current.snapshot);
+							
+							if (current.onWritten != null) 
+								current.onWritten.run();
+						}
+					} catch (Throwable e) {
+						logger.log(Level.SEVERE, "Cannot save configuration to " + file, e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Execute a task on the background thread, after every snapshot that has already been submitted.
+	 * @param task - the task to execute.
+	 */
+	public void execute(final Runnable task) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (Throwable e) {
+					logger.log(Level.SEVERE, "Cannot execute background task.", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait until every submitted snapshot has been written.
+	 * @param timeout - the maximum number of milliseconds to wait.
+	 * @return TRUE if every snapshot was written, FALSE if we timed out.
+	 */
+	public boolean flush(long timeout) {
+		Future<?> future = lastWrite;
+
+		if (future == null)
+			return true;
+		try {
+			future.get(timeout, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Already logged
+			return true;
+		} catch (TimeoutException e) {
+			// Still writing
+		}
+		return false;
+	}
+
+	/**
+	 * Write every pending snapshot and stop the background thread.
+	 * @param timeout - the maximum number of milliseconds to wait.
+	 * @return TRUE if every snapshot was written, FALSE otherwise.
+	 */
+	public boolean shutdown(long timeout) {
+		executor.shutdown();
+
+		try {
+			return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Backup the current file, and replace it with the given snapshot.
+	 * @param snapshot - the snapshot to write.
+	 * @throws IOException If the file could not be written.
+	 */
+	private void writeSnapshot(YamlConfiguration snapshot) throws IOException {
+		long start = System.nanoTime();
+		String data = snapshot.saveToString();
+		File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+
+		if (file.exists() && backupRetention > 0) {
+			backup();
+		}
+		FileOutputStream stream = new FileOutputStream(temporary);
+
+		try {
+			// Same encoding as FileConfiguration.save()
+			Writer writer = new OutputStreamWriter(stream, Charset.defaultCharset());
+			writer.write(data);
+			writer.flush();
+			stream.getFD().sync();
+		} finally {
+			Closeables.closeQuietly(stream);
+		}
+
+		// Replace the file - Windows will not rename over an existing file
+		if (!temporary.renameTo(file)) {
+			if (!file.delete() || !temporary.renameTo(file)) {
+				throw new IOException("Cannot rename " + temporary + " to " + file);
+			}
+		}
+		logger.fine("Saved configuration in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+	}
+
+	/**
+	 * Copy the current file to the backup folder, and delete the oldest backups.
+	 * @throws IOException If the backup could not be created.
+	 */
+	private void backup() throws IOException {
+		boolean compress = backupCompression;
+		String name = BACKUP_PREFIX + System.currentTimeMillis() + ".yml" + (compress ? COMPRESSED_EXTENSION : "");
+
+		if (!backupFolder.exists() && !backupFolder.mkdirs()) {
+			throw new IOException("Cannot create backup folder " + backupFolder);
+		}
+		InputStream input = new FileInputStream(file);
+		OutputStream output = null;
+
+		try {
+			output = new FileOutputStream(new File(backupFolder, name));
+
+			if (compress) {
+				output = new GZIPOutputStream(output);
+			}
+			ByteStreams.copy(input, output);
+		} finally {
+			Closeables.closeQuietly(input);
+			Closeables.closeQuietly(output);
+		}
+		rotateBackups();
+	}
+
+	/**
+	 * Delete every backup except the most recent ones.
+	 */
+	private void rotateBackups() {
+		File[] backups = backupFolder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(BACKUP_PREFIX) &&
+					  (name.endsWith(".yml") || name.endsWith(".yml" + COMPRESSED_EXTENSION));
+			}
+		});
+
+		if (backups == null || backups.length <= backupRetention)
+			return;
+
+		// Oldest first
+		Arrays.sort(backups, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.valueOf(getTimestamp(a)).compareTo(getTimestamp(b));
+			}
+		});
+		for (int i = 0; i < backups.length - backupRetention; i++) {
+			if (!backups[i].delete()) {
+				logger.warning("Cannot delete old backup " + backups[i]);
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the time a backup was created, from its file name.
+	 * @param backup - the backup file.
+	 * @return The creation time, or the last modified time if the file name is invalid.
+	 */
+	private static long getTimestamp(File backup) {
+		String name = backup.getName();
+		int end = name.indexOf('.');
+
+		try {
+			return Long.parseLong(name.substring(BACKUP_PREFIX.length(), end));
+		} catch (RuntimeException e) {
+			return backup.lastModified();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.wrappers.ExactItemKey;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Represents an immutable copy of an exact lookup that can be read from any thread.
+ */
+public class ExactTable {
+	// Item IDs that have at least one rule
+	private final BitSet definedTypes = new BitSet();
+	private final ImmutableMap<Integer, ImmutableMap<ExactItemKey, RenameRule>> rules;
+	
+	/**
+	 * Construct an immutable copy of the given exact lookup.
+	 * @param lookup - the exact lookup to copy.
+	 */
+	public ExactTable(ExactLookup lookup) {
+		this(lookup.toLookup());
+	}
+	
+	/**
+	 * Construct an exact table from every stack and its associated rule.
+	 * @param lookup - every stack and rule.
+	 */
+	private ExactTable(Map<ItemStack, RenameRule> lookup) {
+		Map<Integer, Map<ExactItemKey, RenameRule>> partitions = Maps.newHashMap();
+		ImmutableMap.Builder<Integer, ImmutableMap<ExactItemKey, RenameRule>> builder = ImmutableMap.builder();
+		
+		for (Entry<ItemStack, RenameRule> entry : lookup.entrySet()) {
+			ExactItemKey key = ExactItemKey.of(entry.getKey());
+			Map<ExactItemKey, RenameRule> partition = partitions.get(key.getId());
+			
+			if (partition == null) {
+				partitions.put(key.getId(), partition = Maps.newHashMap());
+				
+				if (key.getId() >= 0)
+					definedTypes.set(key.getId());
+			}
+			partition.put(key, entry.getValue());
+		}
+		for (Entry<Integer, Map<ExactItemKey, RenameRule>> entry : partitions.entrySet()) {
+			builder.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue()));
+		}
+		this.rules = builder.build();
+	}
+	
+	/**
+	 * Get the defined rename rule for a given item stack.
+	 * @param stack - the item stack.
+	 * @return A rule, or NULL if not found.
+	 */
+	public RenameRule getRule(ItemStack stack) {
+		int id = stack.getTypeId();
+		
+		// Most items don't have any exact rules
+		if (id < 0 || !definedTypes.get(id))
+			return null;
+		
+		ImmutableMap<ExactItemKey, RenameRule> partition = rules.get(id);
+		return partition != null ? partition.get(ExactItemKey.probe(stack)) : null;
+	}
+}
@@ -1,10 +1,40 @@
 package org.shininet.bukkit.itemrenamer.configuration;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.MemoryConfiguration;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.shininet.bukkit.itemrenamer.ItemRenamerPlugin;
+import org.shininet.bukkit.itemrenamer.api.ConfigurationChangeEvent;
+import org.shininet.bukkit.itemrenamer.utils.ConfigurationUtils;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.EventBus;
+import com.google.common.io.Closeables;
 
 /**
  * Represents a item renamer configuration file.
@@ -17,8 +47,66 @@ public class ItemRenamerConfiguration {
 	private static final String STACK_RESTRICTOR = "stackrestrictor";
 	private static final String WORLD_PACKS = "worlds";
 	private static final String DEFAULT_PACK = "default";
+	private static final String RENDER_CACHE_ENTRIES = "rendercache.entries";
+	private static final String RENDER_CACHE_WEIGHT = "rendercache.weight";
+	private static final String VAULT_REFRESH = "vaultrefresh";
+	private static final String ASYNC_ENABLED = "async.enabled";
+	private static final String ASYNC_THREADS = "async.threads";
+	private static final String REFRESH_BUDGET = "refreshbudget";
+	private static final String AUTOSAVE_DELAY = "autosave.delay";
+	private static final String BACKUP_RETENTION = "backup.retention";
+	private static final String BACKUP_COMPRESS = "backup.compress";
+	private static final String JOURNAL_ENABLED = "journal.enabled";
+	private static final String JOURNAL_SYNC = "journal.sync";
+	private static final String PACK_CACHE = "packcache";
+	private static final String PACK_MEMORY = "packmemory";
+	private static final String LOADER_THREADS = "loaderthreads";
+	private static final String WATCH_ENABLED = "watch.enabled";
+	private static final String WATCH_DELAY = "watch.delay";
+	private static final String PACKS = "packs";
+	
+	// Default render cache limits
+	private static final int DEFAULT_RENDER_CACHE_ENTRIES = 4096;
+	private static final int DEFAULT_RENDER_CACHE_WEIGHT = 262144;
+	
+	// Default number of seconds between each Vault lookup
+	private static final int DEFAULT_VAULT_REFRESH = 60;
+	
+	// Default number of players to refresh per tick
+	private static final int DEFAULT_REFRESH_BUDGET = 20;
+	
+	// Number of seconds without changes before the configuration is saved
+	private static final int DEFAULT_AUTOSAVE_DELAY = 30;
+	
+	// Number of backups to keep
+	private static final int DEFAULT_BACKUP_RETENTION = 10;
+	
+	// Number of milliseconds between each time the journal is forced to disk
+	private static final int DEFAULT_JOURNAL_SYNC = 1000;
+	
+	// Number of bytes in a megabyte
+	private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+	
+	// Number of milliseconds to wait for further changes to the configuration file
+	private static final int DEFAULT_WATCH_DELAY = 1000;
+	
+	// Maximum number of milliseconds to wait for the configuration to be written
+	private static final long WRITE_TIMEOUT = 10000;
+	
+	/**
+	 * Represents an immutable copy of the default and world packs.
+	 */
+	private static class WorldPacks {
+		private final String defaultPack;
+		private final ImmutableMap<String, String> worlds;
+		
+		public WorldPacks(String defaultPack, ImmutableMap<String, String> worlds) {
+			this.defaultPack = defaultPack;
+			this.worlds = worlds;
+		}
+	}
 	
-	private RenameConfiguration renameConfig;
+	private volatile RenameConfiguration renameConfig;
 	private FileConfiguration config;
 	private final ItemRenamerPlugin plugin;
 	
@@ -28,6 +116,33 @@ public class ItemRenamerConfiguration {
 	// Number of times it has changed
 	private int modCount;
 	
+	// Number of times the world or default packs have changed
+	private volatile int worldPackVersion;
+	
+	// Copy of the world and default packs that can be read by packet threads
+	private volatile WorldPacks worldPacks = new WorldPacks(null, ImmutableMap.<String, String>of());
+	
+	// Receives every change to the rename packs, across reloads
+	private final EventBus changeBus = new EventBus("ItemRenamer");
+	
+	// Writes the configuration in the background
+	private final ConfigurationWriter writer;
+	
+	// Records every rule change until it has been saved, or NULL if disabled
+	private RuleJournal journal;
+	
+	// The compiled rename packs
+	private final PackCache packCache;
+	
+	// Detects changes made by other programs, or NULL if disabled
+	private volatile ConfigurationWatcher watcher;
+	
+	// Parses the rename packs with the current number of threads
+	private volatile PackLoader loader;
+	
+	// Copy of every pack section in the last saved snapshot, reused until the pack is rewritten
+	private Map<String, ConfigurationSection> packSnapshots = ImmutableMap.of();
+	
 	/**
 	 * Construct a new renamer configuration.
 	 * @param plugin - the renamer plugin.
@@ -36,13 +151,30 @@ public class ItemRenamerConfiguration {
 	public ItemRenamerConfiguration(ItemRenamerPlugin plugin, String path) {
 		this.plugin = plugin;
 		this.path = path;
+		this.writer = new ConfigurationWriter(getFile(), plugin.getLogger());
+		this.packCache = new PackCache(new File(getFile().getParentFile(), "packs.cache"), plugin.getLogger());
 		
 		// Copy over default values if it doesn't already exist
 		if (!getFile().exists()) {
-			plugin.getConfig().options().copyDefaults(true);
 			plugin.saveDefaultConfig();
 		}
 		initializeConfig();
+		
+		if (isJournalEnabled()) {
+			journal = new RuleJournal(getFile().getParentFile(), plugin.getLogger());
+			journal.start(getJournalSyncInterval());
+			changeBus.register(journal);
+		}
+		
+		// Apply every change that was not saved before the server stopped
+		if (journal != null) {
+			int count = journal.replay(renameConfig);
+			
+			if (count > 0) {
+				plugin.getLogger().info("Replayed " + count + " unsaved rule changes from the journal.");
+				save();
+			}
+		}
 	}
 	
 	/**
@@ -55,34 +187,256 @@ public class ItemRenamerConfiguration {
 	
 	/**
 	 * Save the current configuration to disk.
+	 * <p>
+	 * Only the packs that have changed are serialized and copied on the calling thread. The file itself is written on a 
+	 * background thread, after the previous version has been copied to the backup folder.
 	 */
 	public void save() {
-		// Backup the current configuration
-		File currentFile = new File(path);
-		File backupFolder = new File(currentFile.getParentFile(), "backup");
-		File backupFile = new File(backupFolder, "config" + System.currentTimeMillis() + ".yml");
-		
-		// Don't overwrite - rename
-		if ((backupFolder.exists() || backupFolder.mkdirs()) && currentFile.renameTo(backupFile)) {
-			// Save and reload
-			modCount = 0;
-			onSynchronized();
+		try {
+			renameConfig.saveChanges();
+		} catch (IllegalStateException e) {
+			// Never overwrite a pack that cannot be read
+			plugin.getLogger().log(Level.SEVERE, "Cannot save " + path, e);
+			packCache.invalidate();
+			return;
+		}
+		
+		// The writer must not see any later changes
+		YamlConfiguration snapshot = new YamlConfiguration();
+		snapshot.options().header(config.options().header());
+		Set<String> rewritten = renameConfig.pollRewrittenPacks();
+		
+		for (String key : config.getKeys(false)) {
+			if (key.equals(PACKS) && config.isConfigurationSection(PACKS))
+				copyPacks(snapshot.createSection(PACKS), rewritten);
+			else
+				ConfigurationUtils.copyValue(key, config.get(key), snapshot);
+		}
+		
+		writer.setBackupPolicy(getBackupRetention(), isBackupCompressed());
+		
+		// Every journaled change is now part of the snapshot
+		final long lastSegment = journal != null ? journal.rotate() : -1;
+		final List<byte[]> compiled = isPackCacheEnabled() ? renameConfig.compilePacks() : null;
+		
+		writer.write(snapshot, new Runnable() {
+			@Override
+			public void run() {
+				byte[] hash = PackCache.hash(getFile());
+				ConfigurationWatcher current = watcher;
+				
+				if (journal != null)
+					journal.truncate(lastSegment);
+				if (compiled != null)
+					packCache.write(hash, compiled);
+				
+				// This is not an external change
+				if (current != null)
+					current.setKnownHash(hash);
+			}
+		});
+		
+		modCount = 0;
+		onSynchronized();
+	}
+	
+	/**
+	 * Copy every pack section to a snapshot, reusing the copy of each pack that has not been rewritten since the 
+	 * previous snapshot.
+	 * @param destination - the packs section of the snapshot.
+	 * @param rewritten - every pack that has been rewritten.
+	 */
+	private void copyPacks(ConfigurationSection destination, Set<String> rewritten) {
+		ConfigurationSection packs = config.getConfigurationSection(PACKS);
+		Map<String, ConfigurationSection> copies = Maps.newHashMap();
+		
+		for (String pack : packs.getKeys(false)) {
+			Object value = packs.get(pack);
 			
-			renameConfig.saveAll();
-			plugin.saveConfig();
-			config = plugin.getConfig();
-		} else {
-			throw new RuntimeException("Cannot rename " + currentFile + " to " + backupFile + " for backup.");
+			if (value instanceof ConfigurationSection) {
+				ConfigurationSection copy = packSnapshots.get(pack);
+				
+				// Copies are never modified, so every snapshot can share them
+				if (copy == null || rewritten.contains(pack)) {
+					copy = ConfigurationUtils.copySection((ConfigurationSection) value, new MemoryConfiguration());
+				}
+				destination.set(pack, copy);
+				copies.put(pack, copy);
+			} else {
+				ConfigurationUtils.copyValue(pack, value, destination);
+			}
 		}
+		packSnapshots = copies;
+	}
+	
+	/**
+	 * Wait for every pending save to be written, and stop the background writer.
+	 * <p>
+	 * The configuration can no longer be saved after it has been closed.
+	 */
+	public void close() {
+		if (watcher != null) {
+			watcher.stop();
+			watcher = null;
+		}
+		if (journal != null) {
+			changeBus.unregister(journal);
+			journal.close();
+		}
+		if (!writer.shutdown(WRITE_TIMEOUT)) {
+			plugin.getLogger().warning("Timed out while writing " + path);
+		}
+	}
+	
+	/**
+	 * Start reloading the rename packs automatically whenever the configuration file is modified by another program,
+	 * if this has been enabled.
+	 * <p>
+	 * The modified file is parsed on a background thread, separate from the thread that saves the configuration. Only 
+	 * packs that have changed are replaced, along with the world and default packs. Other settings still require a 
+	 * full reload.
+	 */
+	public void startWatcher() {
+		if (!isWatchEnabled() || watcher != null)
+			return;
+		watcher = new ConfigurationWatcher(getFile(), writer, plugin.getLogger()) {
+			@Override
+			protected void onChanged(byte[] hash) {
+				loadExternalChanges();
+			}
+		};
+		watcher.setKnownHash(PackCache.hash(getFile()));
+		
+		try {
+			watcher.start(getWatchDelay());
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Cannot watch " + path + " for changes.", e);
+			watcher.stop();
+			watcher = null;
+		}
+	}
+	
+	/**
+	 * Stream and compile every pack in the configuration file after it has been modified by another program, and 
+	 * apply the changes on the main thread.
+	 * <p>
+	 * This is called on a background thread. Each pack is compiled as soon as it has been read, so the whole 
+	 * document is never loaded into memory. The packs that differ from the current packs are decoded on this thread 
+	 * as well, so the main thread only has to swap them in.
+	 */
+	private void loadExternalChanges() {
+		final RenameConfiguration target = renameConfig;
+		final PackLoader.StreamedPacks streamed;
+		
+		try {
+			streamed = streamFile(loader, true);
+		} catch (YAMLException e) {
+			plugin.getLogger().warning("Ignoring changes to " + path + ": " + e.getMessage());
+			return;
+		} catch (IllegalArgumentException e) {
+			plugin.getLogger().warning("Ignoring changes to " + path + ": " + e.getMessage());
+			return;
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Cannot read changes to " + path, e);
+			return;
+		}
+		
+		// Never apply a partial edit
+		if (hasFailedPacks(streamed)) {
+			return;
+		} else if (streamed.isEmpty()) {
+			plugin.getLogger().warning("Ignoring changes to " + path + ": No packs found.");
+			return;
+		}
+		final PackDiff diff;
+		
+		try {
+			diff = PackDiff.compute(target.getCompiledPacks(), streamed.getCompiled());
+		} catch (IllegalArgumentException e) {
+			plugin.getLogger().log(Level.WARNING, "Ignoring changes to " + path, e);
+			return;
+		}
+		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+			@Override
+			public void run() {
+				// Discard changes to a configuration that has since been reloaded
+				if (renameConfig == target)
+					applyExternalChanges(streamed.getSettings(), diff);
+			}
+		});
+	}
+	
+	/**
+	 * Determine if any pack could not be parsed after the configuration file was modified by another program.
+	 * @param streamed - the modified packs.
+	 * @return TRUE if the changes must be ignored, FALSE otherwise.
+	 */
+	private boolean hasFailedPacks(PackLoader.StreamedPacks streamed) {
+		if (!streamed.getFailed().isEmpty()) {
+			plugin.getLogger().warning("Ignoring changes to " + path + ": Cannot parse " + 
+					Joiner.on(", ").join(streamed.getFailed()));
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Replace every rename pack and world pack that was changed by another program.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param modified - every setting in the modified configuration, except the packs.
+	 * @param diff - every pack that differs from the current packs.
+	 */
+	private void applyExternalChanges(ConfigurationSection modified, PackDiff diff) {
+		Set<String> unsaved = renameConfig.getUnsavedPacks();
+		Set<String> reloaded = renameConfig.reloadPacks(diff);
+		
+		// The world packs are part of the same file
+		if (!Objects.equal(getDefaultPack(), modified.getString(DEFAULT_PACK)) || 
+			!getWorldPacks(config).getValues(false).equals(getWorldPacks(modified).getValues(false))) {
+			
+			config.set(DEFAULT_PACK, modified.getString(DEFAULT_PACK));
+			config.set(WORLD_PACKS, null);
+			ConfigurationUtils.copySection(getWorldPacks(modified), config.createSection(WORLD_PACKS));
+			onWorldPacksChanged();
+			plugin.getLogger().info("Reloaded world packs from " + path);
+		}
+		if (!reloaded.isEmpty()) {
+			plugin.getLogger().info("Reloaded packs " + Joiner.on(", ").join(reloaded) + " from " + path);
+		}
+		if (!unsaved.isEmpty()) {
+			plugin.getLogger().warning("Kept unsaved changes to packs " + Joiner.on(", ").join(unsaved) + 
+					". They will overwrite " + path + " when saved.");
+		}
+	}
+	
+	/**
+	 * Retrieve the world packs in a given configuration.
+	 * @param source - the configuration.
+	 * @return The world packs, or an empty section.
+	 */
+	private static ConfigurationSection getWorldPacks(ConfigurationSection source) {
+		ConfigurationSection section = source.getConfigurationSection(WORLD_PACKS);
+		return section != null ? section : new MemoryConfiguration();
 	}
 	
 	/**
 	 * Reload the configuration from disk.
 	 */
-	public void reload() {		
-		plugin.reloadConfig();
+	public void reload() {
+		// Don't read a partially saved configuration
+		if (!writer.flush(WRITE_TIMEOUT)) {
+			plugin.getLogger().warning("Timed out while writing " + path);
+		}
 		initializeConfig();
 		
+		// Unsaved changes are discarded by a reload
+		if (journal != null)
+			journal.reset(renameConfig);
+		
+		if (watcher != null)
+			watcher.setKnownHash(PackCache.hash(getFile()));
+		
 		modCount = 0;
 		onSynchronized();
 	}
@@ -95,8 +449,202 @@ public class ItemRenamerConfiguration {
 	}
 	
 	private void initializeConfig() {
+		renameConfig = loadConfig();
+		packSnapshots = ImmutableMap.of();
+		onWorldPacksChanged();
+		loadActivePacks();
+	}
+	
+	/**
+	 * Load every setting, and every rename pack from the pack cache or by streaming the configuration file.
+	 * <p>
+	 * The settings are streamed first, as they determine how the packs are loaded. The packs are never loaded into a 
+	 * configuration tree, unless the file cannot be streamed or a pack cannot be parsed. They are written to the 
+	 * packs section when the configuration is first saved instead.
+	 * @return The loaded rename packs.
+	 */
+	private RenameConfiguration loadConfig() {
+		byte[] hash = PackCache.hash(getFile());
+		
+		try {
+			PackLoader.StreamedPacks settings = streamFile(new PackLoader(plugin.getLogger(), 1), false);
+			
+			config = createConfig(settings.getSettings());
+			loader = new PackLoader(plugin.getLogger(), getLoaderThreads());
+			Map<String, byte[]> compiled = null;
+			
+			if (isPackCacheEnabled()) {
+				compiled = packCache.read(hash);
+			} else {
+				packCache.invalidate();
+			}
+			
+			if (compiled == null) {
+				PackLoader.StreamedPacks packs = streamFile(loader, true);
+				
+				// Keep every pack that cannot be parsed, so it is never overwritten
+				if (!packs.getFailed().isEmpty()) {
+					plugin.getLogger().warning("Cannot parse " + Joiner.on(", ").join(packs.getFailed()) + 
+							". Loading the whole configuration file instead.");
+					return loadConfigTree();
+				}
+				compiled = packs.getCompiled();
+				
+				if (isPackCacheEnabled())
+					writePackCache(hash, compiled);
+			}
+			return new RenameConfiguration(config.createSection(PACKS), changeBus, compiled);
+			
+		} catch (YAMLException e) {
+			plugin.getLogger().log(Level.WARNING, "Cannot stream " + path + ". Loading it instead.", e);
+		} catch (IllegalArgumentException e) {
+			plugin.getLogger().log(Level.WARNING, "Cannot stream " + path + ". Loading it instead.", e);
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Cannot stream " + path + ". Loading it instead.", e);
+		}
+		return loadConfigTree();
+	}
+	
+	/**
+	 * Load the whole configuration file into a configuration tree, along with every rename pack.
+	 * @return The loaded rename packs.
+	 */
+	private RenameConfiguration loadConfigTree() {
+		plugin.reloadConfig();
 		config = plugin.getConfig();
-		renameConfig = new RenameConfiguration(config.getConfigurationSection("packs"));
+		loader = new PackLoader(plugin.getLogger(), getLoaderThreads());
+		return loadRenameConfig(config.getConfigurationSection(PACKS));
+	}
+	
+	/**
+	 * Stream every setting, and optionally every pack, from the configuration file.
+	 * @param packLoader - the pack loader.
+	 * @param readPacks - whether or not to read every pack.
+	 * @return The streamed packs and settings.
+	 * @throws IOException If the file cannot be read.
+	 */
+	private PackLoader.StreamedPacks streamFile(PackLoader packLoader, boolean readPacks) throws IOException {
+		// Same encoding as YamlConfiguration.load()
+		Reader reader = new InputStreamReader(new FileInputStream(getFile()), Charset.defaultCharset());
+		
+		try {
+			return packLoader.stream(reader, readPacks);
+		} finally {
+			Closeables.closeQuietly(reader);
+		}
+	}
+	
+	/**
+	 * Create the configuration that holds every setting, with the same header and defaults as 
+	 * {@link ItemRenamerPlugin#getConfig()}.
+	 * @param settings - every setting outside of the packs section.
+	 * @return The configuration.
+	 * @throws IOException If the header cannot be read.
+	 */
+	private FileConfiguration createConfig(ConfigurationSection settings) throws IOException {
+		YamlConfiguration result = new YamlConfiguration();
+		InputStream defaults = plugin.getResource("config.yml");
+		
+		try {
+			// Only contains the header
+			result.loadFromString(readHeader());
+		} catch (InvalidConfigurationException e) {
+			throw new IllegalArgumentException("Cannot parse header of " + path, e);
+		}
+		if (defaults != null) {
+			result.setDefaults(YamlConfiguration.loadConfiguration(defaults));
+		}
+		ConfigurationUtils.copySection(settings, result);
+		return result;
+	}
+	
+	/**
+	 * Read the comments and blank lines at the start of the configuration file.
+	 * @return The comments.
+	 * @throws IOException If the file cannot be read.
+	 */
+	private String readHeader() throws IOException {
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(getFile()), Charset.defaultCharset()));
+		StringBuilder header = new StringBuilder();
+		
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (!line.startsWith("#") && line.trim().length() > 0)
+					break;
+				header.append(line).append('\n');
+			}
+		} finally {
+			Closeables.closeQuietly(reader);
+		}
+		return header.toString();
+	}
+	
+	/**
+	 * Load the default pack, every world pack and the pack of every online player, so that the first 
+	 * packets after a reload are renamed. Every other pack is loaded on first use.
+	 * <p>
+	 * This must be called on the main thread.
+	 */
+	public void loadActivePacks() {
+		Set<String> packs = Sets.newHashSet();
+		WorldPacks current = worldPacks;
+		
+		packs.add(current.defaultPack);
+		packs.addAll(current.worlds.values());
+		packs.addAll(getPlayerPacks());
+		renameConfig.loadPacks(packs);
+	}
+	
+	/**
+	 * Retrieve the rename pack of every online player.
+	 * <p>
+	 * This is invoked on the main thread when the configuration is loaded.
+	 * @return The rename packs, which may include NULL.
+	 */
+	protected Collection<String> getPlayerPacks() {
+		return Collections.emptySet();
+	}
+	
+	/**
+	 * Load every rename pack from the pack cache, or from the given section if the cache is outdated.
+	 * @param section - the section with every rename pack, loaded from the configuration file.
+	 * @return The loaded rename packs.
+	 */
+	private RenameConfiguration loadRenameConfig(ConfigurationSection section) {
+		if (!isPackCacheEnabled()) {
+			packCache.invalidate();
+			return new RenameConfiguration(section, changeBus);
+		}
+		final byte[] hash = PackCache.hash(getFile());
+		Map<String, byte[]> compiled = packCache.read(hash);
+		
+		if (compiled != null) {
+			return new RenameConfiguration(section, changeBus, compiled);
+		}
+		compiled = loader.compile(section);
+		
+		// Don't cache packs that could not be parsed, so they are reported again
+		if (compiled.size() == section.getKeys(false).size()) {
+			writePackCache(hash, compiled);
+		}
+		return new RenameConfiguration(section, changeBus, compiled);
+	}
+	
+	/**
+	 * Update the pack cache in the background.
+	 * @param hash - the hash of the configuration file.
+	 * @param compiled - the binary representation of every pack.
+	 */
+	private void writePackCache(final byte[] hash, Map<String, byte[]> compiled) {
+		final List<byte[]> data = ImmutableList.copyOf(compiled.values());
+		
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				packCache.write(hash, data);
+			}
+		});
 	}
 	
 	/**
@@ -114,6 +662,7 @@ public class ItemRenamerConfiguration {
 	public void setDefaultPack(String pack) {
 		modCount++;
 		config.set(DEFAULT_PACK, pack);
+		onWorldPacksChanged();
 	}
 	
 	/**
@@ -141,6 +690,7 @@ public class ItemRenamerConfiguration {
 	public void setWorldPack(String world, String pack) {
 		modCount++;
 		config.set(WORLD_PACKS + "." + world, pack);
+		onWorldPacksChanged();
 	}
 	
 	/**
@@ -155,19 +705,56 @@ public class ItemRenamerConfiguration {
 	/**
 	 * Retrieve the effective rename pack for a world.
 	 * <p>
-	 * If a specific world pack is missing, fall back to the default rename pack.
+	 * If a specific world pack is missing, fall back to the default rename pack. This may be called 
+	 * from any thread, as it reads a copy of the world packs.
 	 * @param world - the world to lookup.
 	 * @return The effective world pack.
 	 */
 	public String getEffectiveWorldPack(String world) {
-		String pack = getWorldPack(world);
+		// Safe to call from any thread
+		WorldPacks current = worldPacks;
+		String pack = current.worlds.get(world);
 		
 		if (pack == null) {
-			pack = getDefaultPack();
+			pack = current.defaultPack;
 		}
 		return pack;
 	}
 	
+	/**
+	 * Invoked on the main thread when the world or default packs have been changed or reloaded.
+	 */
+	private void onWorldPacksChanged() {
+		ImmutableMap.Builder<String, String> worlds = ImmutableMap.builder();
+		ConfigurationSection section = getWorldPacks(config);
+		
+		// World names may contain the path separator
+		for (Entry<String, Object> entry : section.getValues(true).entrySet()) {
+			if (entry.getValue() instanceof String)
+				worlds.put(entry.getKey(), (String) entry.getValue());
+		}
+		worldPacks = new WorldPacks(getDefaultPack(), worlds.build());
+		worldPackVersion++;
+	}
+	
+	/**
+	 * Retrieve the number of times the world or default packs have been changed or reloaded.
+	 * <p>
+	 * This is used to invalidate the resolved rename pack of every player.
+	 * @return The current world pack version.
+	 */
+	public int getWorldPackVersion() {
+		return worldPackVersion;
+	}
+	
+	/**
+	 * Retrieve the number of seconds before the rename pack of a player is looked up in Vault again.
+	 * @return The refresh interval in seconds, or zero to never refresh.
+	 */
+	public int getVaultRefreshInterval() {
+		return config.getInt(VAULT_REFRESH, DEFAULT_VAULT_REFRESH);
+	}
+	
 	/**
 	 * Determine if the stack restrictor is enabled.
 	 * @return - the stack restrictor.
@@ -185,6 +772,132 @@ public class ItemRenamerConfiguration {
 		plugin.refreshStackRestrictor();
 	}
 	
+	/**
+	 * Retrieve the maximum number of rendered item stacks to cache.
+	 * @return The maximum number of entries, or zero to disable the cache.
+	 */
+	public int getRenderCacheEntries() {
+		return config.getInt(RENDER_CACHE_ENTRIES, DEFAULT_RENDER_CACHE_ENTRIES);
+	}
+	
+	/**
+	 * Retrieve the maximum total weight of every cached item stack, measured in NBT tags.
+	 * @return The maximum total weight.
+	 */
+	public int getRenderCacheWeight() {
+		return config.getInt(RENDER_CACHE_WEIGHT, DEFAULT_RENDER_CACHE_WEIGHT);
+	}
+	
+	/**
+	 * Retrieve the maximum number of players whose inventory will be refreshed in a single tick.
+	 * @return The maximum number of players, at least one.
+	 */
+	public int getRefreshBudget() {
+		return Math.max(1, config.getInt(REFRESH_BUDGET, DEFAULT_REFRESH_BUDGET));
+	}
+	
+	/**
+	 * Determine if outgoing packets should be processed on worker threads instead of the sending thread.
+	 * @return TRUE if they should, FALSE otherwise.
+	 */
+	public boolean isAsyncProcessing() {
+		return config.getBoolean(ASYNC_ENABLED, false);
+	}
+	
+	/**
+	 * Retrieve the number of worker threads that will process outgoing packets.
+	 * @return The number of worker threads, at least one.
+	 */
+	public int getAsyncThreads() {
+		int threads = config.getInt(ASYNC_THREADS, 0);
+		
+		// Use every core by default
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Retrieve the number of seconds without any changes before the configuration is saved automatically.
+	 * @return The delay in seconds, or zero to disable automatic saves.
+	 */
+	public int getAutoSaveDelay() {
+		return Math.max(0, config.getInt(AUTOSAVE_DELAY, DEFAULT_AUTOSAVE_DELAY));
+	}
+	
+	/**
+	 * Retrieve the maximum number of configuration backups to keep.
+	 * @return The maximum number of backups, or zero to disable backups.
+	 */
+	public int getBackupRetention() {
+		return Math.max(0, config.getInt(BACKUP_RETENTION, DEFAULT_BACKUP_RETENTION));
+	}
+	
+	/**
+	 * Determine if configuration backups should be compressed.
+	 * @return TRUE if they should, FALSE otherwise.
+	 */
+	public boolean isBackupCompressed() {
+		return config.getBoolean(BACKUP_COMPRESS, true);
+	}
+	
+	/**
+	 * Determine if every rule change should be written to a journal before the configuration is saved.
+	 * @return TRUE if it should, FALSE otherwise.
+	 */
+	public boolean isJournalEnabled() {
+		return config.getBoolean(JOURNAL_ENABLED, true);
+	}
+	
+	/**
+	 * Retrieve the number of milliseconds between each time the journal is forced to disk.
+	 * @return The interval in milliseconds, at least one.
+	 */
+	public int getJournalSyncInterval() {
+		return Math.max(1, config.getInt(JOURNAL_SYNC, DEFAULT_JOURNAL_SYNC));
+	}
+	
+	/**
+	 * Determine if compiled rename packs should be cached next to the configuration file.
+	 * @return TRUE if they should, FALSE otherwise.
+	 */
+	public boolean isPackCacheEnabled() {
+		return config.getBoolean(PACK_CACHE, true);
+	}
+	
+	/**
+	 * Retrieve the maximum estimated memory used by loaded rename packs before unused packs are evicted.
+	 * @return The maximum size in bytes, or zero if packs are never evicted.
+	 */
+	public long getPackMemoryLimit() {
+		return Math.max(0, config.getInt(PACK_MEMORY, 0)) * BYTES_PER_MEGABYTE;
+	}
+	
+	/**
+	 * Retrieve the number of threads that will parse rename packs when the pack cache is outdated.
+	 * @return The number of threads, at least one.
+	 */
+	public int getLoaderThreads() {
+		int threads = config.getInt(LOADER_THREADS, 0);
+		
+		// Use every core by default
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Determine if rename packs should be reloaded automatically when the configuration file is modified.
+	 * @return TRUE if they should, FALSE otherwise.
+	 */
+	public boolean isWatchEnabled() {
+		return config.getBoolean(WATCH_ENABLED, false);
+	}
+	
+	/**
+	 * Retrieve the number of milliseconds to wait for further changes to the configuration file before it is reloaded.
+	 * @return The delay in milliseconds, at least one.
+	 */
+	public int getWatchDelay() {
+		return Math.max(1, config.getInt(WATCH_DELAY, DEFAULT_WATCH_DELAY));
+	}
+	
 	/**
 	 * Retrieve a list of the worlds that have been defined in the configuration section.
 	 * @return List of defined worlds in the config.
@@ -208,4 +921,14 @@ public class ItemRenamerConfiguration {
 	public RenameConfiguration getRenameConfig() {
 		return renameConfig;
 	}
+	
+	/**
+	 * Retrieve the event bus that receives a {@link ConfigurationChangeEvent} whenever a rename pack has changed.
+	 * <p>
+	 * The same bus is used after the configuration has been reloaded.
+	 * @return The change bus.
+	 */
+	public EventBus getChangeBus() {
+		return changeBus;
+	}
 }
@@ -0,0 +1,13 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+/**
+ * Represents an observer that is notified whenever a rule in a lookup has been modified.
+ * @param <TKey> - the type that identifies the modified rules.
+ */
+interface LookupObserver<TKey> {
+	/**
+	 * Invoked after the rules identified by the given key have been modified.
+	 * @param key - the modified rules.
+	 */
+	public void onChanged(TKey key);
+}
@@ -1,5 +1,6 @@
 package org.shininet.bukkit.itemrenamer.configuration;
 
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -8,8 +9,11 @@ import org.shininet.bukkit.itemrenamer.configuration.RenameProcessorFactory.Rena
 
 import com.comphenix.protocol.concurrency.AbstractIntervalTree;
 import com.google.common.base.Function;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Range;
+import com.google.common.collect.Ranges;
 
 /**
  * Represents a damage lookup interval tree.
@@ -33,15 +37,41 @@ class MemoryDamageLookup implements DamageLookup {
 		}
 	}
 	
+	/**
+	 * Represents the effective rule of every defined rule and OTHER, after merging in ALL.
+	 * 
+	 * @author Kristian
+	 */
+	private static class MergedRules {
+		private final Map<RenameRule, RenameRule> defined;
+		private final RenameRule other;
+		
+		public MergedRules(Map<RenameRule, RenameRule> defined, RenameRule other) {
+			this.defined = defined;
+			this.other = other;
+		}
+	}
+	
+	/**
+	 * Share identical merged rules between every lookup.
+	 */
+	private static final Interner<RenameRule> MERGED_INTERNER = Interners.newWeakInterner();
+	
 	// Used to store our data
 	private final AbstractIntervalTree<Integer, RenameRule> tree = new IntegerInterval();
 	
 	private RenameRule all;
 	private RenameRule other;
+	
+	// Cached merged rules - NULL if the lookup has changed
+	private volatile MergedRules merged;
 
 	// Whether or not the lookup has changed
 	private int modCount;
 	
+	// Notified of every change
+	private LookupObserver<Range<Integer>> observer;
+	
 	/**
 	 * Construct a new memory damage lookup.
 	 */
@@ -66,6 +96,24 @@ class MemoryDamageLookup implements DamageLookup {
 		modCount = 0;
 	}
 	
+	/**
+	 * Set the observer that will be notified of every modified range of damage values.
+	 * @param observer - the new observer, or NULL.
+	 */
+	void setObserver(LookupObserver<Range<Integer>> observer) {
+		this.observer = observer;
+	}
+	
+	/**
+	 * Notify the observer that the given damage values have changed.
+	 * @param damage - the changed damage values.
+	 */
+	private void notifyChanged(Range<Integer> damage) {
+		if (observer != null) {
+			observer.onChanged(damage);
+		}
+	}
+	
 	@Override
 	public RenameRule getAllRule() {
 		return all;
@@ -78,6 +126,8 @@ class MemoryDamageLookup implements DamageLookup {
 		
 		this.modCount++;
 		this.all = rule;
+		this.merged = null;
+		notifyChanged(Ranges.<Integer>all());
 	}
 	
 	@Override
@@ -92,6 +142,8 @@ class MemoryDamageLookup implements DamageLookup {
 		
 		this.modCount++;
 		this.other = rule;
+		this.merged = null;
+		notifyChanged(Ranges.<Integer>all());
 	}
 
 	@Override
@@ -119,6 +171,7 @@ class MemoryDamageLookup implements DamageLookup {
 		
 		// It's been changed
 		modCount++;
+		merged = null;
 		
 		// Set everything to default
 		setRule(minimum, maximum, defaultRule);
@@ -133,14 +186,45 @@ class MemoryDamageLookup implements DamageLookup {
 	@Override
 	public RenameRule getRule(int damage) {
 		RenameRule value = getDefinedRule(damage);
-		RenameRule all = getAllRule();
+		MergedRules current = getMergedRules();
 		
-		// All is our fallback
+		// Other is our fallback
 		if (value == null) {
-			return RenameRule.merge(getOtherRule(), all);
+			return current.other;
 		} else {
-			return RenameRule.merge(value, all);
+			return current.defined.get(value);
+		}
+	}
+	
+	/**
+	 * Retrieve the merged rules, computing them if the lookup has changed.
+	 * @return The merged rules.
+	 */
+	private MergedRules getMergedRules() {
+		MergedRules current = merged;
+		
+		if (current == null) {
+			Map<RenameRule, RenameRule> defined = new IdentityHashMap<RenameRule, RenameRule>();
+			
+			for (IntegerInterval.Entry entry : tree.entrySet()) {
+				RenameRule rule = entry.getValue();
+				
+				if (!defined.containsKey(rule)) {
+					defined.put(rule, intern(RenameRule.merge(rule, all)));
+				}
+			}
+			merged = current = new MergedRules(defined, intern(RenameRule.merge(other, all)));
 		}
+		return current;
+	}
+	
+	/**
+	 * Retrieve the canonical instance of a given rule.
+	 * @param rule - the rule, or NULL.
+	 * @return The canonical rule, or NULL.
+	 */
+	private static RenameRule intern(RenameRule rule) {
+		return rule != null ? MERGED_INTERNER.intern(rule) : null;
 	}
 	
 	@Override
@@ -167,7 +251,9 @@ class MemoryDamageLookup implements DamageLookup {
 			rule = rule.withSkipRule(true);
 	
 		modCount++;
+		merged = null;
 		tree.put(damage, damage, rule);
+		notifyChanged(Ranges.singleton(damage));
 	}
 	
 	@Override
@@ -180,7 +266,9 @@ class MemoryDamageLookup implements DamageLookup {
 			rule = rule.withSkipRule(true);
 		
 		modCount++;
+		merged = null;
 		tree.put(lowerDamage, upperDamage, rule);
+		notifyChanged(Ranges.closed(lowerDamage, upperDamage));
 	}
 	
 	@Override
@@ -1,10 +1,11 @@
 package org.shininet.bukkit.itemrenamer.configuration;
 
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import org.bukkit.inventory.ItemStack;
-import org.shininet.bukkit.itemrenamer.wrappers.SpecificItemStack;
+import org.shininet.bukkit.itemrenamer.wrappers.ExactItemKey;
 
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
@@ -12,53 +13,96 @@ import com.google.common.collect.Maps;
 
 class MemoryExactLookup implements ExactLookup {
 	// No need to account for concurrency - only the main thread (ought) to both read and write to this map
-	private Map<SpecificItemStack, RenameRule> lookup = Maps.newHashMap();
-	
+	private Map<Integer, Map<ExactItemKey, RenameRule>> lookup = Maps.newHashMap();
+
+	// Item IDs that have at least one rule
+	private BitSet definedTypes = new BitSet();
+
 	// Modifications
 	private int modCount;
 	
+	// Notified of every change
+	private LookupObserver<ItemStack> observer;
+	
+	/**
+	 * Set the observer that will be notified of every modified item stack.
+	 * @param observer - the new observer, or NULL.
+	 */
+	void setObserver(LookupObserver<ItemStack> observer) {
+		this.observer = observer;
+	}
+
 	@Override
 	public RenameRule getRule(ItemStack stack) {
-		return lookup.get(new SpecificItemStack(stack));
+		int id = stack.getTypeId();
+
+		// Most items don't have any exact rules
+		if (id < 0 || !definedTypes.get(id))
+			return null;
+
+		Map<ExactItemKey, RenameRule> rules = lookup.get(id);
+		return rules != null ? rules.get(ExactItemKey.probe(stack)) : null;
 	}
-	
+
 	@Override
 	public void setTransform(ItemStack stack, Function<RenameRule, RenameRule> function) {
 		RenameRule rule = getRule(stack);
-		
+
 		// Process and apply the rule
 		setRule(stack, function.apply(rule != null ? rule : RenameRule.IDENTITY));
 	}
-	
+
 	@Override
 	public void setRule(ItemStack stack, RenameRule rule) {
 		if (stack == null)
 			throw new IllegalArgumentException("stack cannot be NULL.");
 		if (!RenameRule.isIdentity(rule))
 			rule = rule.withSkipRule(false);
-		
-		SpecificItemStack key = new SpecificItemStack(stack);
+
+		ExactItemKey key = ExactItemKey.of(stack);
+		Map<ExactItemKey, RenameRule> rules = lookup.get(key.getId());
 		RenameRule old = null;
 
 		// Associate or remove
-		if (!RenameRule.isIdentity(rule))
-			old = lookup.put(key, rule);
-		else
-			old = lookup.remove(key);
-		
+		if (!RenameRule.isIdentity(rule)) {
+			if (rules == null) {
+				lookup.put(key.getId(), rules = Maps.newHashMap());
+
+				if (key.getId() >= 0)
+					definedTypes.set(key.getId());
+			}
+			old = rules.remove(key);
+			rules.put(key, rule);
+
+		} else if (rules != null) {
+			old = rules.remove(key);
+
+			if (rules.isEmpty()) {
+				lookup.remove(key.getId());
+
+				if (key.getId() >= 0)
+					definedTypes.clear(key.getId());
+			}
+		}
+
 		// We only increment if they are different
 		if (!Objects.equal(rule, old)) {
 			modCount++;
+			
+			if (observer != null)
+				observer.onChanged(stack);
 		}
 	}
 
 	@Override
 	public Map<ItemStack, RenameRule> toLookup() {
 		Map<ItemStack, RenameRule> copy = Maps.newHashMap();
-		
+
 		// Unwrap the lookup map
-		for (Entry<SpecificItemStack, RenameRule> entry : lookup.entrySet()) {
-			copy.put(entry.getKey().getStack(), entry.getValue());
+		for (Map<ExactItemKey, RenameRule> rules : lookup.values()) {
+			for (Entry<ExactItemKey, RenameRule> entry : rules.entrySet()) {
+				copy.put(entry.getKey().getStack(), entry.getValue());
+			}
 		}
 		return copy;
 	}
@@ -66,6 +110,7 @@ class MemoryExactLookup implements ExactLookup {
 	@Override
 	public void clear() {
 		lookup.clear();
+		definedTypes.clear();
 	}
 
 	@Override
@@ -0,0 +1,378 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.wrappers.LeveledEnchantment;
+import org.shininet.bukkit.itemrenamer.wrappers.LeveledEnchantment.CustomEnchantment;
+
+import com.comphenix.protocol.utility.StreamSerializer;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * Represents a binary cache of every compiled rename pack, stored next to the configuration file.
+ * <p>
+ * The cache is tagged with a hash of the configuration file it was compiled from, and is only used if the
+ * configuration file has not changed since. This avoids deserializing every item stack and damage range in the
+ * YAML tree during startup. Each pack is stored with its length, so it can be decoded on first use.
+ */
+class PackCache {
+	/**
+	 * Identifies a pack cache file.
+	 */
+	private static final int MAGIC = 0x49525043;
+
+	/**
+	 * The current format version. Increment whenever the format changes.
+	 */
+	private static final int FORMAT_VERSION = 2;
+
+	// Rule flags
+	private static final byte RULE_NULL = 0;
+	private static final byte RULE_DEFINED = 1;
+
+	// Used to serialize exact item stacks
+	private static final StreamSerializer STACK_SERIALIZER = new StreamSerializer();
+
+	private final File file;
+	private final Logger logger;
+
+	/**
+	 * Construct a new pack cache.
+	 * @param file - the cache file.
+	 * @param logger - the logger that will receive every error.
+	 */
+	public PackCache(File file, Logger logger) {
+		this.file = file;
+		this.logger = logger;
+	}
+
+	/**
+	 * Compute the hash of the given configuration file.
+	 * @param config - the configuration file.
+	 * @return The hash, or NULL if the file could not be read.
+	 */
+	public static byte[] hash(File config) {
+		try {
+			return Files.getDigest(config, MessageDigest.getInstance("SHA-1"));
+		} catch (IOException e) {
+			return null;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not supported.", e);
+		}
+	}
+
+	/**
+	 * Read the binary representation of every pack from the cache.
+	 * <p>
+	 * The packs are not decoded until {@link #decode(byte[])} is called.
+	 * @param hash - the hash of the current configuration file.
+	 * @return The binary representation of every pack by name, or NULL if the cache is missing, outdated or corrupt.
+	 */
+	public Map<String, byte[]> read(byte[] hash) {
+		if (hash == null || !file.exists())
+			return null;
+		FileInputStream stream = null;
+
+		try {
+			stream = new FileInputStream(file);
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Pack cache is too large: " + size + " bytes.");
+
+			// Read into the heap - a mapped file stays open until the buffer is garbage collected
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new IOException("Unexpected end of " + file);
+			}
+			buffer.flip();
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+				return null;
+			byte[] cachedHash = new byte[buffer.getInt()];
+			buffer.get(cachedHash);
+
+			if (!Arrays.equals(hash, cachedHash))
+				return null;
+
+			Map<String, byte[]> compiled = Maps.newHashMap();
+			int count = buffer.getInt();
+
+			for (int i = 0; i < count; i++) {
+				byte[] data = new byte[buffer.getInt()];
+				buffer.get(data);
+
+				// Every pack begins with its name
+				compiled.put(readString(ByteBuffer.wrap(data)), data);
+			}
+			return compiled;
+
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Cannot read pack cache " + file + ". Parsing configuration instead.", e);
+			return null;
+		} finally {
+			Closeables.closeQuietly(stream);
+		}
+	}
+
+	/**
+	 * Write the given compiled packs to the cache.
+	 * <p>
+	 * This may be called from any thread.
+	 * @param hash - the hash of the configuration file the packs were compiled from.
+	 * @param packs - every pack compiled with {@link #compile(RulePack)}.
+	 */
+	public void write(byte[] hash, Collection<byte[]> packs) {
+		if (hash == null)
+			return;
+		File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+		DataOutputStream output = null;
+
+		try {
+			output = new DataOutputStream(new FileOutputStream(temporary));
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			output.writeInt(hash.length);
+			output.write(hash);
+			output.writeInt(packs.size());
+
+			for (byte[] pack : packs) {
+				output.writeInt(pack.length);
+				output.write(pack);
+			}
+			output.close();
+			output = null;
+
+			// Replace the file - Windows will not rename over an existing file
+			if (!temporary.renameTo(file)) {
+				if (!file.delete() || !temporary.renameTo(file)) {
+					throw new IOException("Cannot rename " + temporary + " to " + file);
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot write pack cache " + file, e);
+		} finally {
+			Closeables.closeQuietly(output);
+		}
+	}
+
+	/**
+	 * Delete the cache.
+	 */
+	public void invalidate() {
+		if (file.exists() && !file.delete()) {
+			logger.warning("Cannot delete pack cache " + file);
+		}
+	}
+
+	/**
+	 * Compile the given pack to its binary representation.
+	 * <p>
+	 * Exact rules are serialized by converting each item stack to a new Minecraft item stack. This doesn't touch any 
+	 * state of the server, so packs may be compiled on any thread.
+	 * @param pack - the pack to compile.
+	 * @return The binary representation.
+	 */
+	public static byte[] compile(RulePack pack) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+
+		try {
+			writeString(output, pack.getName());
+			output.writeInt(pack.getRangeLookup().size());
+
+			for (Entry<Integer, DamageLookup> entry : pack.getRangeLookup().entrySet()) {
+				DamageLookup lookup = entry.getValue();
+				Map<Range<Integer>, RenameRule> ranges = lookup.toLookup();
+
+				output.writeInt(entry.getKey());
+				writeRule(output, lookup.getAllRule());
+				writeRule(output, lookup.getOtherRule());
+				output.writeInt(ranges.size());
+
+				for (Entry<Range<Integer>, RenameRule> range : ranges.entrySet()) {
+					output.writeInt(range.getKey().lowerEndpoint());
+					output.writeInt(range.getKey().upperEndpoint());
+					writeRule(output, range.getValue());
+				}
+			}
+
+			Map<ItemStack, RenameRule> exact = pack.getExactLookup().toLookup();
+			output.writeInt(exact.size());
+
+			for (Entry<ItemStack, RenameRule> entry : exact.entrySet()) {
+				ByteArrayOutputStream stack = new ByteArrayOutputStream();
+				STACK_SERIALIZER.serializeItemStack(new DataOutputStream(stack), entry.getKey());
+
+				output.writeInt(stack.size());
+				stack.writeTo(output);
+				writeRule(output, entry.getValue());
+			}
+			return bytes.toByteArray();
+
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot compile pack " + pack.getName(), e);
+		}
+	}
+
+	/**
+	 * Decode a pack from its binary representation.
+	 * <p>
+	 * Exact rules are deserialized into new Minecraft item stacks, so this may be called from any thread.
+	 * @param data - the binary representation, from {@link #compile(RulePack)}.
+	 * @return The decoded pack.
+	 * @throws IllegalArgumentException If the data is corrupt.
+	 */
+	public static RulePack decode(byte[] data) {
+		try {
+			return readPack(ByteBuffer.wrap(data));
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Cannot decode compiled pack.", e);
+		}
+	}
+
+	private static RulePack readPack(ByteBuffer buffer) throws IOException {
+		RulePack pack = new RulePack(readString(buffer));
+		int lookups = buffer.getInt();
+
+		for (int i = 0; i < lookups; i++) {
+			DamageLookup lookup = pack.getOrCreateLookup(buffer.getInt());
+			lookup.setAllRule(readRule(buffer));
+			lookup.setOtherRule(readRule(buffer));
+
+			for (int j = buffer.getInt(); j > 0; j--) {
+				int lower = buffer.getInt();
+				int upper = buffer.getInt();
+				lookup.setRule(lower, upper, readRule(buffer));
+			}
+		}
+
+		for (int i = buffer.getInt(); i > 0; i--) {
+			byte[] data = new byte[buffer.getInt()];
+			buffer.get(data);
+
+			ItemStack stack = STACK_SERIALIZER.deserializeItemStack(new DataInputStream(new ByteArrayInputStream(data)));
+			pack.getExactLookup().setRule(stack, readRule(buffer));
+		}
+		return pack;
+	}
+
+	private static void writeRule(DataOutputStream output, RenameRule rule) throws IOException {
+		if (rule == null) {
+			output.writeByte(RULE_NULL);
+			return;
+		}
+		output.writeByte(RULE_DEFINED);
+		writeString(output, rule.getName());
+		output.writeInt(rule.getLoreSections().size());
+
+		for (String lore : rule.getLoreSections()) {
+			writeString(output, lore);
+		}
+		writeEnchantments(output, rule.getEnchantments());
+		writeEnchantments(output, rule.getDechantments());
+	}
+
+	private static RenameRule readRule(ByteBuffer buffer) {
+		if (buffer.get() == RULE_NULL)
+			return null;
+		String name = readString(buffer);
+		List<String> lore = Lists.newArrayList();
+
+		for (int i = buffer.getInt(); i > 0; i--) {
+			lore.add(readString(buffer));
+		}
+		Set<LeveledEnchantment> enchantments = readEnchantments(buffer);
+		Set<LeveledEnchantment> dechantments = readEnchantments(buffer);
+
+		return RenameRule.newBuilder().
+				name(name).
+				loreSections(lore).
+				enchantments(enchantments).
+				dechantments(dechantments).
+				build();
+	}
+
+	private static void writeEnchantments(DataOutputStream output, Set<LeveledEnchantment> enchantments) throws IOException {
+		output.writeInt(enchantments.size());
+
+		for (LeveledEnchantment leveled : enchantments) {
+			if (leveled.hasCustomEnchantment())
+				writeString(output, leveled.getCustom().name());
+			else
+				writeString(output, leveled.getEnchantment().getName());
+			output.writeInt(leveled.getLevel());
+		}
+	}
+
+	private static Set<LeveledEnchantment> readEnchantments(ByteBuffer buffer) {
+		int count = buffer.getInt();
+
+		// Same as an undefined section
+		if (count == 0)
+			return null;
+		Set<LeveledEnchantment> result = Sets.newHashSet();
+
+		for (int i = 0; i < count; i++) {
+			String name = readString(buffer);
+			int level = buffer.getInt();
+			Enchantment enchantment = Enchantment.getByName(name);
+
+			if (enchantment != null)
+				result.add(new LeveledEnchantment(enchantment, level));
+			else
+				result.add(new LeveledEnchantment(CustomEnchantment.valueOf(name), level));
+		}
+		return result;
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+		} else {
+			byte[] data = value.getBytes(Charsets.UTF_8);
+			output.writeInt(data.length);
+			output.write(data);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+
+		if (length < 0)
+			return null;
+		byte[] data = new byte[length];
+		buffer.get(data);
+		return new String(data, Charsets.UTF_8);
+	}
+}
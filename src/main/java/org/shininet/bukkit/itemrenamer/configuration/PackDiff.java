@@ -0,0 +1,86 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Represents every pack in a modified configuration file that differs from the current rename packs, decoded and
+ * compiled ahead of time.
+ * <p>
+ * A diff is computed on a background thread, so the main thread only has to swap in the decoded packs with
+ * {@link RenameConfiguration#reloadPacks(PackDiff)}.
+ */
+class PackDiff {
+	// The name of every pack in the modified file
+	private final ImmutableSet<String> names;
+
+	// Every added or modified pack
+	private final ImmutableMap<String, RulePack> packs;
+	private final ImmutableMap<String, byte[]> compiled;
+
+	private PackDiff(ImmutableSet<String> names, ImmutableMap<String, RulePack> packs,
+			ImmutableMap<String, byte[]> compiled) {
+		this.names = names;
+		this.packs = packs;
+		this.compiled = compiled;
+	}
+
+	/**
+	 * Find, decode and compile every modified pack that differs from the current binary representation.
+	 * <p>
+	 * This may be called from any thread. Packs without a current binary representation are assumed to differ.
+	 * @param current - the current binary representation of each pack, from
+	 * {@link RenameConfiguration#getCompiledPacks()}.
+	 * @param modified - the binary representation of every pack in the modified file.
+	 * @return The diff.
+	 * @throws IllegalArgumentException If a modified pack cannot be decoded.
+	 */
+	public static PackDiff compute(Map<String, byte[]> current, Map<String, byte[]> modified) {
+		ImmutableMap.Builder<String, RulePack> packs = ImmutableMap.builder();
+		ImmutableMap.Builder<String, byte[]> compiled = ImmutableMap.builder();
+
+		for (Entry<String, byte[]> entry : modified.entrySet()) {
+			if (!Arrays.equals(entry.getValue(), current.get(entry.getKey()))) {
+				RulePack pack = PackCache.decode(entry.getValue());
+
+				// Published as they are by the next commit
+				pack.getRuleTable();
+				pack.getExactTable();
+
+				packs.put(entry.getKey(), pack);
+				compiled.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return new PackDiff(ImmutableSet.copyOf(modified.keySet()), packs.build(), compiled.build());
+	}
+
+	/**
+	 * Retrieve the name of every pack in the modified file, including packs that have not changed.
+	 * @return Every pack name.
+	 */
+	public Set<String> getNames() {
+		return names;
+	}
+
+	/**
+	 * Retrieve every pack that was added or modified.
+	 * @return The decoded packs by name.
+	 */
+	public Map<String, RulePack> getPacks() {
+		return packs;
+	}
+
+	/**
+	 * Retrieve the binary representation of a pack that was added or modified.
+	 * @param pack - the name of the pack.
+	 * @return The binary representation, or NULL if the pack has not changed.
+	 */
+	public byte[] getCompiled(String pack) {
+		return compiled.get(pack);
+	}
+}
@@ -0,0 +1,370 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.MemoryConfiguration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Parses and compiles every rename pack in a configuration section or a YAML document on a fork-join pool.
+ * <p>
+ * Each pack is parsed into its own {@link RulePack}, so the workers share nothing but the section, which is only read.
+ * This includes the exact rules: deserializing and serializing an item stack only creates new objects, and reads 
+ * nothing but the material and serialization registries, which are filled before any plugin is enabled.
+ */
+class PackLoader {
+	/**
+	 * The maximum number of streamed items per thread that have not been parsed yet.
+	 */
+	private static final int MAX_PENDING_ITEMS = 64;
+
+	private final Logger logger;
+	private final int threads;
+
+	/**
+	 * Construct a new pack loader.
+	 * @param logger - the logger that will receive every error and timing.
+	 * @param threads - the maximum number of worker threads.
+	 */
+	public PackLoader(Logger logger, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Must have at least one thread.");
+		this.logger = logger;
+		this.threads = threads;
+	}
+
+	/**
+	 * Represents every rename pack and setting that has been streamed from a YAML document.
+	 */
+	public static class StreamedPacks {
+		private final MemoryConfiguration settings;
+		private final Map<String, byte[]> compiled;
+		private final Set<String> failed;
+
+		private StreamedPacks(MemoryConfiguration settings, Map<String, byte[]> compiled, Set<String> failed) {
+			this.settings = settings;
+			this.compiled = compiled;
+			this.failed = failed;
+		}
+
+		/**
+		 * Retrieve every value outside of the packs section.
+		 * @return Every setting.
+		 */
+		public MemoryConfiguration getSettings() {
+			return settings;
+		}
+
+		/**
+		 * Retrieve the binary representation of every pack that has been compiled.
+		 * @return The binary representation of every pack by name.
+		 */
+		public Map<String, byte[]> getCompiled() {
+			return compiled;
+		}
+
+		/**
+		 * Retrieve the name of every pack that could not be parsed.
+		 * @return The failed packs.
+		 */
+		public Set<String> getFailed() {
+			return failed;
+		}
+
+		/**
+		 * Determine if the document has no packs, except for packs that could not be parsed.
+		 * @return TRUE if it has no packs, FALSE otherwise.
+		 */
+		public boolean isEmpty() {
+			return compiled.isEmpty();
+		}
+	}
+
+	/**
+	 * Represents a task that parses and compiles a range of packs in a section, splitting it until a single pack is 
+	 * left.
+	 */
+	private class CompileTask extends RecursiveTask<Map<String, byte[]>> {
+		private static final long serialVersionUID = 1L;
+
+		private final ConfigurationSection section;
+		private final List<String> names;
+
+		public CompileTask(ConfigurationSection section, List<String> names) {
+			this.section = section;
+			this.names = names;
+		}
+
+		@Override
+		protected Map<String, byte[]> compute() {
+			if (names.size() == 1) {
+				return compilePack(names.get(0));
+			} else if (names.isEmpty()) {
+				return Collections.emptyMap();
+			}
+			int middle = names.size() / 2;
+			CompileTask first = new CompileTask(section, names.subList(0, middle));
+			CompileTask second = new CompileTask(section, names.subList(middle, names.size()));
+
+			first.fork();
+			Map<String, byte[]> compiled = Maps.newHashMap(second.compute());
+			compiled.putAll(first.join());
+			return compiled;
+		}
+
+		/**
+		 * Parse and compile a single pack.
+		 * @param name - the name of the pack.
+		 * @return The binary representation of the pack, or an empty map if it could not be parsed.
+		 */
+		private Map<String, byte[]> compilePack(String name) {
+			long start = System.nanoTime();
+
+			try {
+				RulePack pack = new RulePack(name);
+				pack.load(section);
+
+				byte[] data = PackCache.compile(pack);
+				logger.fine("Loaded pack " + name + " in " + elapsed(start) + " ms.");
+				return Collections.singletonMap(name, data);
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "Cannot load pack " + name, e);
+				return Collections.emptyMap();
+			}
+		}
+	}
+
+	/**
+	 * Represents a task that parses the rules of a single streamed item, or the exact rules, into a pack of its own.
+	 */
+	private static class ItemTask extends RecursiveTask<RulePack> {
+		private static final long serialVersionUID = 1L;
+
+		private final String pack;
+		private final ConfigurationSection items;
+		private final String key;
+		private final Semaphore pending;
+
+		public ItemTask(String pack, ConfigurationSection items, String key, Semaphore pending) {
+			this.pack = pack;
+			this.items = items;
+			this.key = key;
+			this.pending = pending;
+		}
+
+		@Override
+		protected RulePack compute() {
+			try {
+				RulePack result = new RulePack(pack);
+
+				if (RulePack.EXACT.equals(key))
+					StreamingPackReader.loadExactRules(result, items);
+				else
+					result.loadItem(items, key);
+				return result;
+			} finally {
+				pending.release();
+			}
+		}
+	}
+
+	/**
+	 * Represents a task that adds every item of a streamed pack in document order, and compiles the pack.
+	 */
+	private class PackTask extends RecursiveTask<byte[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final RulePack pack;
+		private final List<ForkJoinTask<RulePack>> items;
+		private final long start;
+
+		public PackTask(RulePack pack, List<ForkJoinTask<RulePack>> items, long start) {
+			this.pack = pack;
+			this.items = items;
+			this.start = start;
+		}
+
+		@Override
+		protected byte[] compute() {
+			for (ForkJoinTask<RulePack> item : items) {
+				pack.putAll(item.join());
+			}
+			byte[] data = PackCache.compile(pack);
+			logger.fine("Loaded pack " + pack.getName() + " in " + elapsed(start) + " ms.");
+			return data;
+		}
+	}
+
+	/**
+	 * Parse and compile every pack in the given section.
+	 * <p>
+	 * The calling thread is blocked until every pack has been compiled. The section must not be modified in the 
+	 * meantime.
+	 * @param section - the section with every rename pack.
+	 * @return The binary representation of every pack by name, excluding packs that could not be parsed.
+	 */
+	public Map<String, byte[]> compile(ConfigurationSection section) {
+		List<String> names = ImmutableList.copyOf(section.getKeys(false));
+
+		long start = System.nanoTime();
+		int poolSize = Math.max(1, Math.min(threads, names.size()));
+		ForkJoinPool pool = createPool(poolSize);
+		Map<String, byte[]> compiled;
+
+		try {
+			compiled = Maps.newHashMap(pool.invoke(new CompileTask(section, names)));
+		} finally {
+			pool.shutdownNow();
+		}
+
+		logger.info(String.format("Loaded %s of %s rename packs in %s ms using %s threads.",
+				compiled.size(), names.size(), elapsed(start), poolSize));
+		return compiled;
+	}
+
+	/**
+	 * Stream, parse and compile every pack in the given YAML document.
+	 * <p>
+	 * The document is read on the calling thread. Every item is parsed into a pack of its own as soon as it has been 
+	 * read, so the document is never loaded into memory, and the items of each pack are combined and compiled once 
+	 * the whole pack has been read.
+	 * @param reader - the YAML document.
+	 * @param readPacks - whether or not to read the packs, or just the settings.
+	 * @return Every pack and setting in the document.
+	 * @throws org.yaml.snakeyaml.error.YAMLException If the document is not valid YAML.
+	 * @throws IllegalArgumentException If the document is not a map, or a setting cannot be deserialized.
+	 */
+	public StreamedPacks stream(Reader reader, boolean readPacks) {
+		final ForkJoinPool pool = createPool(threads);
+		final Map<String, List<ForkJoinTask<RulePack>>> items = Maps.newHashMap();
+		final Map<String, Long> started = Maps.newHashMap();
+		final Map<String, ForkJoinTask<byte[]>> packs = Maps.newLinkedHashMap();
+
+		// Limits the number of items that are held in memory
+		final Semaphore pending = new Semaphore(threads * MAX_PENDING_ITEMS);
+
+		final Map<String, RuntimeException> errors = Maps.newLinkedHashMap();
+		final Map<String, byte[]> compiled = Maps.newHashMap();
+		long start = System.nanoTime();
+		MemoryConfiguration settings;
+
+		try {
+			StreamingPackReader packReader = new StreamingPackReader() {
+				@Override
+				protected void onItem(RulePack pack, ConfigurationSection section, String key) {
+					submitItem(pack.getName(), section, key);
+				}
+
+				@Override
+				protected void onPack(RulePack pack, ConfigurationSection exact) {
+					if (exact != null)
+						submitItem(pack.getName(), exact, RulePack.EXACT);
+
+					List<ForkJoinTask<RulePack>> parsed = items.remove(pack.getName());
+					Long packStart = started.remove(pack.getName());
+
+					packs.put(pack.getName(), pool.submit(new PackTask(pack, 
+							parsed != null ? parsed : Collections.<ForkJoinTask<RulePack>>emptyList(), 
+							packStart != null ? packStart : System.nanoTime())));
+				}
+
+				@Override
+				protected void onPackFailed(String pack, RuntimeException e) {
+					items.remove(pack);
+					started.remove(pack);
+					errors.put(pack, e);
+				}
+
+				/**
+				 * Parse the rules of an item on the pool.
+				 * @param pack - the pack name.
+				 * @param section - a section with the rules of the item.
+				 * @param key - the item ID, or {@link RulePack#EXACT}.
+				 */
+				private void submitItem(String pack, ConfigurationSection section, String key) {
+					List<ForkJoinTask<RulePack>> parsed = items.get(pack);
+
+					if (parsed == null) {
+						items.put(pack, parsed = Lists.newArrayList());
+						started.put(pack, System.nanoTime());
+					}
+					pending.acquireUninterruptibly();
+					parsed.add(pool.submit(new ItemTask(pack, section, key, pending)));
+				}
+			};
+			settings = readPacks ? packReader.read(reader) : packReader.readSettings(reader);
+			StreamingPackReader.deserializeObjects(settings);
+
+			// Report every failed pack
+			for (Entry<String, ForkJoinTask<byte[]>> entry : packs.entrySet()) {
+				try {
+					compiled.put(entry.getKey(), entry.getValue().join());
+				} catch (RuntimeException e) {
+					errors.put(entry.getKey(), e);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		for (Entry<String, RuntimeException> entry : errors.entrySet()) {
+			logger.log(Level.SEVERE, "Cannot load pack " + entry.getKey(), entry.getValue());
+		}
+
+		if (readPacks) {
+			int total = Sets.union(packs.keySet(), errors.keySet()).size();
+
+			logger.info(String.format("Streamed %s of %s rename packs in %s ms using %s threads.",
+					compiled.size(), total, elapsed(start), Math.min(threads, Math.max(1, total))));
+		}
+		return new StreamedPacks(settings, compiled, Sets.newHashSet(errors.keySet()));
+	}
+
+	/**
+	 * Create a fork-join pool of loader threads.
+	 * @param parallelism - the number of threads.
+	 * @return The pool.
+	 */
+	private static ForkJoinPool createPool(int parallelism) {
+		return new ForkJoinPool(parallelism, new ForkJoinWorkerThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				// Worker threads are daemon threads
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("ItemRenamer Loader Thread #" + count.incrementAndGet());
+				return thread;
+			}
+		}, null, false);
+	}
+
+	/**
+	 * Retrieve the number of milliseconds since the given time.
+	 * @param start - the start time, from {@link System#nanoTime()}.
+	 * @return The elapsed time in milliseconds.
+	 */
+	private static long elapsed(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+}
@@ -1,40 +1,231 @@
 package org.shininet.bukkit.itemrenamer.configuration;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bukkit.configuration.ConfigurationSection;
+import org.shininet.bukkit.itemrenamer.api.ConfigurationChangeEvent;
+import org.shininet.bukkit.itemrenamer.api.ExactRuleChangedEvent;
+import org.shininet.bukkit.itemrenamer.api.PackAddedEvent;
+import org.shininet.bukkit.itemrenamer.api.PackRemovedEvent;
+import org.shininet.bukkit.itemrenamer.api.RuleChangedEvent;
+import org.shininet.bukkit.itemrenamer.configuration.RuleSnapshot.PackSnapshot;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.EventBus;
 
 /**
  * Store the rename packs from a configuration file.
+ * <p>
+ * This is the working copy of every rename pack, and must only be modified on the main thread. Other threads
+ * must read from the immutable snapshot published by {@link #commit()}. Every change is posted as a
+ * {@link ConfigurationChangeEvent} to the change bus.
+ * <p>
+ * Packs that are in use when the configuration is loaded should be loaded at once by {@link #loadPacks(Collection)}. 
+ * Other packs are loaded on first use, and packs that are neither in use nor modified may be evicted again by 
+ * {@link #evictPacks(Set, long)}. Lookups retrieved from this configuration should therefore not be retained
+ * across ticks.
  * 
  * @author Kristian
  */
 public class RenameConfiguration {
+	/**
+	 * The version of the last snapshot, across every configuration.
+	 */
+	private static final AtomicLong SNAPSHOT_VERSION = new AtomicLong();
+	
 	private final ConfigurationSection section;
 	
-	// Store of every loaded lookup
-	private final Map<String, RulePack> memoryLookup = Maps.newHashMap();
+	// The name of every pack, loaded or not
+	private final Set<String> packIndex = Sets.newHashSet();
+	
+	// Store of every loaded lookup, least recently used first
+	private final Map<String, RulePack> memoryLookup = new LinkedHashMap<String, RulePack>(16, 0.75f, true);
+	
+	// Packs that have been requested by other threads
+	private final Set<String> requestedPacks = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	// Number of times a pack has been loaded or evicted
+	private long loadCount;
+	private long evictionCount;
 	
 	// How many times this configuration has changed
 	private int modCount;
 	
+	// Where every change is posted
+	private final EventBus changeBus;
+	private final LookupObserver<ConfigurationChangeEvent> observer = new LookupObserver<ConfigurationChangeEvent>() {
+		@Override
+		public void onChanged(ConfigurationChangeEvent event) {
+			notifyChanged(event);
+		}
+	};
+	
+	// The current published snapshot
+	private volatile RuleSnapshot snapshot;
+	
+	// Changes that have not been published
+	private RuleChanges.Builder unpublished = RuleChanges.builder();
+	private boolean dirty;
+	
+	// Packs that have changed since they were last saved
+	private final Set<String> unsavedPacks = Sets.newHashSet();
+	
+	// The binary representation of every pack, for the pack cache - read by the loader thread
+	private final Map<String, byte[]> compiledPacks = new ConcurrentHashMap<String, byte[]>();
+	private final Set<String> uncompiledPacks = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	// Packs that are only compiled, and must be written to the section before it is saved
+	private final Set<String> unwrittenPacks = Sets.newHashSet();
+	
+	// Packs whose sections have been rewritten since they were last polled
+	private final Set<String> rewrittenPacks = Sets.newHashSet();
+	
+	// Changes that have been published, but not polled
+	private RuleChanges pendingChanges = RuleChanges.EMPTY;
+	
 	/**
 	 * Construct a new rename configuration from a given section.
 	 * @param section - the underlying configuration section.
 	 */
 	public RenameConfiguration(ConfigurationSection section) {
+		this(section, new EventBus());
+	}
+	
+	/**
+	 * Construct a new rename configuration from a given section.
+	 * @param section - the underlying configuration section.
+	 * @param changeBus - the event bus that will receive every change.
+	 */
+	public RenameConfiguration(ConfigurationSection section, EventBus changeBus) {
+		this.section = section;
+		this.changeBus = changeBus;
+		
+		// Packs are loaded on first use
+		packIndex.addAll(section.getKeys(false));
+		uncompiledPacks.addAll(packIndex);
+		publish();
+	}
+	
+	/**
+	 * Construct a new rename configuration from packs that have already been compiled.
+	 * <p>
+	 * Packs that are missing from the section are written to it when the configuration is first saved.
+	 * @param section - the underlying configuration section.
+	 * @param changeBus - the event bus that will receive every change.
+	 * @param compiled - the binary representation of every pack.
+	 */
+	RenameConfiguration(ConfigurationSection section, EventBus changeBus, Map<String, byte[]> compiled) {
 		this.section = section;
+		this.changeBus = changeBus;
+		
+		// Packs are decoded on first use
+		packIndex.addAll(section.getKeys(false));
+		packIndex.addAll(compiled.keySet());
+		compiledPacks.putAll(compiled);
+		
+		// Packs that could not be compiled must be parsed
+		uncompiledPacks.addAll(Sets.difference(packIndex, compiled.keySet()));
+		unwrittenPacks.addAll(Sets.difference(compiled.keySet(), section.getKeys(false)));
+		publish();
+	}
+	
+	/**
+	 * Publish a new snapshot of every rename pack if the configuration has changed since the last commit.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @return The current snapshot.
+	 */
+	public RuleSnapshot commit() {
+		if (snapshot == null || dirty) {
+			publish();
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Record and post a change to the configuration.
+	 * @param event - the change.
+	 */
+	private void notifyChanged(ConfigurationChangeEvent event) {
+		modCount++;
+		dirty = true;
+		unsavedPacks.add(event.getPack());
+		uncompiledPacks.add(event.getPack());
 		
-		// Load all packs
-		for (String pack : section.getKeys(false)) {
-			loadPack(pack);
+		if (event instanceof RuleChangedEvent) {
+			unpublished.addItems(event.getPack(), ImmutableSet.of(((RuleChangedEvent) event).getItemID()));
+		} else if (event instanceof ExactRuleChangedEvent) {
+			unpublished.addItems(event.getPack(), ImmutableSet.of(((ExactRuleChangedEvent) event).getItemID()));
+		} else {
+			unpublished.addPack(event.getPack());
 		}
+		changeBus.post(event);
+	}
+	
+	/**
+	 * Compile and publish a snapshot of every rename pack.
+	 * <p>
+	 * Packs that have not changed since the previous snapshot are reused as is.
+	 */
+	private void publish() {
+		Map<String, PackSnapshot> packs = Maps.newHashMap();
+		RuleChanges changes = unpublished.build();
+		long version = SNAPSHOT_VERSION.incrementAndGet();
+		
+		for (RulePack pack : memoryLookup.values()) {
+			PackSnapshot previous = snapshot != null ? snapshot.getPack(pack.getName()) : null;
+			
+			if (previous != null && !changes.affectsPack(pack.getName())) {
+				packs.put(pack.getName(), previous);
+			} else {
+				packs.put(pack.getName(), new PackSnapshot(pack.getName(), version, pack.getRuleTable(), pack.getExactTable()));
+			}
+		}
+		pendingChanges = RuleChanges.builder().addAll(pendingChanges).addAll(changes).build();
+		unpublished = RuleChanges.builder();
+		dirty = false;
+		snapshot = new RuleSnapshot(version, packs);
+	}
+	
+	/**
+	 * Determine if the configuration has changed since the last commit.
+	 * @return TRUE if it has, FALSE otherwise.
+	 */
+	public boolean hasUncommittedChanges() {
+		return dirty;
+	}
+	
+	/**
+	 * Retrieve every change that has been published since the last invocation.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @return The published changes.
+	 */
+	public RuleChanges pollChanges() {
+		RuleChanges result = pendingChanges;
+		pendingChanges = RuleChanges.EMPTY;
+		return result;
+	}
+	
+	/**
+	 * Retrieve the last published snapshot of every rename pack.
+	 * <p>
+	 * This may be called from any thread. Changes are not visible until they have been committed.
+	 * @return The current snapshot.
+	 */
+	public RuleSnapshot getSnapshot() {
+		return snapshot;
 	}
 
 	/**
@@ -46,7 +237,7 @@ public class RenameConfiguration {
 	 * @return The damage lookup, or NULL if the item ID has not been registered.
 	 */
 	public DamageLookup getLookup(String pack, int itemID) {
-		RulePack itemLookup = loadPack(pack);
+		RulePack itemLookup = getResidentPack(pack);
 
 		if (itemLookup != null) {
 			return itemLookup.getRangeLookup().get(itemID);
@@ -55,13 +246,30 @@ public class RenameConfiguration {
 		}
 	}
 	
+	/**
+	 * Retrieve a compiled read-only version of every damage lookup in a given pack.
+	 * <p>
+	 * The table is recompiled whenever the pack has been modified.
+	 * @param pack - the pack name.
+	 * @return The compiled damage lookups.
+	 */
+	public RuleTable getRuleTable(String pack) {
+		RulePack itemLookup = getResidentPack(pack);
+		
+		if (itemLookup != null) {
+			return itemLookup.getRuleTable();
+		} else {
+			throw new IllegalArgumentException("Pack " + pack + " doesn't exist.");	
+		}
+	}
+	
 	/**
 	 * Retrieve the exact lookup for a given pack.
 	 * @param pack - the pack name.
 	 * @return The exact lookup.
 	 */
 	public ExactLookup getExact(String pack) {
-		RulePack itemLookup = loadPack(pack);
+		RulePack itemLookup = getResidentPack(pack);
 		
 		if (itemLookup != null) {
 			return itemLookup.getExactLookup();
@@ -75,33 +283,179 @@ public class RenameConfiguration {
 	 * @return Name of every registered pack.
 	 */
 	public Set<String> getPacks() {
-		return ImmutableSet.copyOf(memoryLookup.keySet());
+		return ImmutableSet.copyOf(packIndex);
 	}
 	
 	/**
-	 * Load a given item name pack from the configuration file.
-	 * @param pack - the pack to load.
-	 * @return A map representation of this pack.
+	 * Retrieve a given pack, loading it if it is not in memory.
+	 * @param pack - the pack to retrieve.
+	 * @return The pack, or NULL if it doesn't exist.
 	 */
-	private RulePack loadPack(String pack) {
+	private RulePack getResidentPack(String pack) {
 		RulePack itemLookup = memoryLookup.get(pack);
 		
-		// Initialize item lookup
-		if (itemLookup == null) {
-			itemLookup = new RulePack(pack);
-			itemLookup.load(section);
+		if (itemLookup == null && packIndex.contains(pack)) {
+			itemLookup = readPack(pack);
+			itemLookup.setObserver(observer);
 			memoryLookup.put(pack, itemLookup);
+			loadCount++;
+			
+			// Loading is not a change, but the pack must be published
+			unpublished.addPack(pack);
+			dirty = true;
 		}
 		return itemLookup;
 	}
 	
+	/**
+	 * Read a given pack from the pack cache or the configuration section, without loading it.
+	 * @param pack - the pack to read.
+	 * @return The pack.
+	 */
+	private RulePack readPack(String pack) {
+		byte[] compiled = compiledPacks.get(pack);
+		
+		// The compiled pack is outdated if the pack has changed since
+		if (compiled != null && !uncompiledPacks.contains(pack)) {
+			try {
+				return PackCache.decode(compiled);
+			} catch (IllegalArgumentException e) {
+				// Never replace the pack with an empty section
+				if (unwrittenPacks.contains(pack))
+					throw new IllegalStateException("Cannot decode pack " + pack, e);
+				
+				// Parse the section instead
+				uncompiledPacks.add(pack);
+			}
+		}
+		RulePack itemLookup = new RulePack(pack);
+		itemLookup.load(section);
+		return itemLookup;
+	}
+	
 	/**
 	 * Determine if the given pack exists.
 	 * @param pack - the pack to lookup.
 	 * @return TRUE if it does, FALSE otherwise.
 	 */
 	public boolean hasPack(String pack) {
-		return loadPack(pack) != null;
+		return packIndex.contains(pack);
+	}
+	
+	/**
+	 * Request that the given pack is loaded on the main thread by {@link #loadRequestedPacks()}.
+	 * <p>
+	 * This may be called from any thread.
+	 * @param pack - the pack to load.
+	 */
+	public void requestPack(String pack) {
+		if (!requestedPacks.contains(pack)) {
+			requestedPacks.add(pack);
+		}
+	}
+	
+	/**
+	 * Load every existing pack that has been requested by {@link #requestPack(String)}.
+	 * <p>
+	 * This must be called on the main thread. The loaded packs are published by the next commit.
+	 * @return TRUE if a pack was loaded, FALSE otherwise.
+	 */
+	public boolean loadRequestedPacks() {
+		boolean loaded = false;
+		
+		for (Iterator<String> it = requestedPacks.iterator(); it.hasNext(); ) {
+			String pack = it.next();
+			it.remove();
+			
+			if (packIndex.contains(pack) && !memoryLookup.containsKey(pack)) {
+				getResidentPack(pack);
+				loaded = true;
+			}
+		}
+		return loaded;
+	}
+	
+	/**
+	 * Load and publish the given packs at once, so that they are visible to packet threads before they are needed.
+	 * <p>
+	 * This must be called on the main thread. Packs that don't exist are ignored.
+	 * @param packs - the packs to load.
+	 */
+	public void loadPacks(Collection<String> packs) {
+		for (String pack : packs) {
+			if (pack != null && packIndex.contains(pack)) {
+				getResidentPack(pack);
+			}
+		}
+		commit();
+	}
+	
+	/**
+	 * Evict the least recently used packs until the estimated size of every loaded pack is within the given limit.
+	 * <p>
+	 * Packs that are in use or have unsaved changes are never evicted. Evicted packs are removed from the next
+	 * published snapshot, and loaded again on first use.
+	 * @param inUse - packs that must stay loaded.
+	 * @param maxSize - the maximum estimated size in bytes.
+	 * @return The number of evicted packs.
+	 */
+	public int evictPacks(Set<String> inUse, long maxSize) {
+		long size = getResidentSize();
+		int count = 0;
+		
+		for (Iterator<RulePack> it = memoryLookup.values().iterator(); it.hasNext() && size > maxSize; ) {
+			RulePack pack = it.next();
+			
+			// Never lose unsaved edits
+			if (inUse.contains(pack.getName()) || unsavedPacks.contains(pack.getName()))
+				continue;
+			it.remove();
+			pack.setObserver(null);
+			size -= pack.getEstimatedSize();
+			count++;
+		}
+		if (count > 0) {
+			evictionCount += count;
+			dirty = true;
+		}
+		return count;
+	}
+	
+	/**
+	 * Retrieve the number of times a pack has been loaded into memory.
+	 * @return The number of loads.
+	 */
+	public long getLoadCount() {
+		return loadCount;
+	}
+	
+	/**
+	 * Retrieve the number of times a pack has been evicted from memory.
+	 * @return The number of evictions.
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+	
+	/**
+	 * Retrieve the number of packs that are currently loaded.
+	 * @return The number of loaded packs.
+	 */
+	public int getResidentPackCount() {
+		return memoryLookup.size();
+	}
+	
+	/**
+	 * Retrieve the estimated memory used by every loaded pack.
+	 * @return The estimated size in bytes.
+	 */
+	public long getResidentSize() {
+		long size = 0;
+		
+		for (RulePack pack : memoryLookup.values()) {
+			size += pack.getEstimatedSize();
+		}
+		return size;
 	}
 
 	/**
@@ -123,14 +477,34 @@ public class RenameConfiguration {
 		return loadOrCreatePack(pack).getExactLookup();
 	}
 	
+	/**
+	 * Replace the damage lookup of an item with the content of a configuration section.
+	 * @param pack - package it belongs to.
+	 * @param itemID - item ID.
+	 * @param data - the serialized damage lookup.
+	 */
+	public void replaceLookup(String pack, int itemID, ConfigurationSection data) {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be NULL.");
+		loadOrCreatePack(pack).replaceLookup(itemID, data);
+	}
+	
 	/**
 	 * Delete the pack with the given name.
 	 * @param pack - the pack to remove.
 	 * @return TRUE if a pack was removed, FALSE otherwise.
 	 */
 	public boolean removePack(String pack) {
-		modCount++;
-		return memoryLookup.remove(pack) != null;
+		if (packIndex.remove(pack)) {
+			RulePack removed = memoryLookup.remove(pack);
+			
+			if (removed != null) 
+				removed.setObserver(null);
+			compiledPacks.remove(pack);
+			notifyChanged(new PackRemovedEvent(pack));
+			return true;
+		}
+		return false;
 	}
 	
 	/**
@@ -139,7 +513,7 @@ public class RenameConfiguration {
 	 * @return TRUE if this pack was constructed, FALSE if a pack by this name already exists.
 	 */
 	public boolean createPack(String pack) {
-		if (loadPack(pack) == null) {
+		if (!hasPack(pack)) {
 			loadOrCreatePack(pack);
 			return true;
 		}
@@ -152,12 +526,15 @@ public class RenameConfiguration {
 	 * @return The existing pack, or a new one.
 	 */
 	private RulePack loadOrCreatePack(String pack) {
-		RulePack itemLookup = loadPack(pack);
+		RulePack itemLookup = getResidentPack(pack);
 		
 		// Create a new if we need to
 		if (itemLookup == null) {
-			modCount++;
+			itemLookup = new RulePack(pack);
+			itemLookup.setObserver(observer);
+			packIndex.add(pack);
 			memoryLookup.put(pack, itemLookup);
+			notifyChanged(new PackAddedEvent(pack));
 		}
 		return itemLookup;
 	}
@@ -167,10 +544,12 @@ public class RenameConfiguration {
 	 * @param pack - name pack.
 	 */
 	public void saveLookup(String pack) {
-		RulePack itemLookup = memoryLookup.get(pack);
+		RulePack itemLookup = getResidentPack(pack);
 		
 		if (itemLookup != null) {
 			itemLookup.save(section);
+			unwrittenPacks.remove(pack);
+			rewrittenPacks.add(pack);
 		} else {
 			throw new IllegalArgumentException("Cannot save " + pack + ": It doesn't exist.");
 		}
@@ -181,25 +560,179 @@ public class RenameConfiguration {
 	 * @return The number of individual updates.
 	 */
 	public int getModificationCount() {
-		int totalCount = modCount;
-		
-		for (Entry<String, RulePack> packEntry : memoryLookup.entrySet()) {
-			totalCount += packEntry.getValue().getModificationCount();
-		}
-		return totalCount;
+		return modCount;
+	}
+	
+	/**
+	 * Retrieve the event bus that receives a {@link ConfigurationChangeEvent} whenever the configuration has changed.
+	 * @return The change bus.
+	 */
+	public EventBus getChangeBus() {
+		return changeBus;
 	}
 	
 	/**
 	 * Save every name pack and every setting.
 	 */
 	public void saveAll() {
+		List<RulePack> packs = Lists.newArrayList();
+		
+		// Read packs that are not loaded before their sections are reset
+		for (String pack : packIndex) {
+			RulePack itemLookup = memoryLookup.get(pack);
+			packs.add(itemLookup != null ? itemLookup : readPack(pack));
+		}
+		
 		// Reset everything first
 		for (String key : Lists.newArrayList(section.getKeys(false))) {
 			section.set(key, null);
+			rewrittenPacks.add(key);
+		}
+		
+		for (RulePack pack : packs) {
+			pack.save(section);
+			rewrittenPacks.add(pack.getName());
+		}
+		unsavedPacks.clear();
+		unwrittenPacks.clear();
+	}
+	
+	/**
+	 * Retrieve the binary representation of every pack, compiling only the packs that have changed.
+	 * <p>
+	 * This must be called on the main thread. Packs that cannot be parsed are left out.
+	 * @return The binary representation of every pack.
+	 */
+	List<byte[]> compilePacks() {
+		for (String pack : uncompiledPacks) {
+			compiledPacks.remove(pack);
+			
+			if (packIndex.contains(pack)) {
+				try {
+					RulePack itemLookup = memoryLookup.get(pack);
+					
+					// Don't keep packs that are not in use
+					compiledPacks.put(pack, PackCache.compile(itemLookup != null ? itemLookup : readPack(pack)));
+				} catch (RuntimeException e) {
+					// Reported when the pack is loaded
+				}
+			}
+		}
+		uncompiledPacks.clear();
+		return ImmutableList.copyOf(compiledPacks.values());
+	}
+	
+	/**
+	 * Retrieve the binary representation of every pack that has been compiled since it last changed.
+	 * <p>
+	 * This may be called from any thread. Packs that are compiled or modified on the main thread in the meantime may 
+	 * or may not be included.
+	 * @return The binary representation of each compiled pack by name.
+	 */
+	Map<String, byte[]> getCompiledPacks() {
+		Map<String, byte[]> result = Maps.newHashMap(compiledPacks);
+		
+		result.keySet().removeAll(uncompiledPacks);
+		return result;
+	}
+	
+	/**
+	 * Swap in every pack that was added or modified in the given diff, and remove every pack that is missing from it.
+	 * <p>
+	 * Packs with unsaved changes are never replaced or removed. Replaced packs stay loaded if they were loaded, and
+	 * are published by the next commit. They are written to the section before it is saved. This must be called on 
+	 * the main thread.
+	 * @param diff - the packs that differ from the current packs, computed by another thread.
+	 * @return The name of every pack that was added, replaced or removed.
+	 */
+	Set<String> reloadPacks(PackDiff diff) {
+		Set<String> reloaded = Sets.newHashSet();
+		Map<String, RulePack> modified = diff.getPacks();
+		
+		for (String pack : Sets.union(Sets.difference(packIndex, diff.getNames()), modified.keySet()).immutableCopy()) {
+			RulePack replacement = modified.get(pack);
+			
+			if (unsavedPacks.contains(pack))
+				continue;
+			RulePack previous = memoryLookup.remove(pack);
+			
+			if (previous != null)
+				previous.setObserver(null);
+			section.set(pack, null);
+			rewrittenPacks.add(pack);
+			uncompiledPacks.remove(pack);
+			
+			if (replacement != null) {
+				// The section is written from the compiled pack
+				unwrittenPacks.add(pack);
+				packIndex.add(pack);
+				compiledPacks.put(pack, diff.getCompiled(pack));
+				
+				if (previous != null) {
+					replacement.setObserver(observer);
+					memoryLookup.put(pack, replacement);
+				}
+			} else {
+				unwrittenPacks.remove(pack);
+				packIndex.remove(pack);
+				compiledPacks.remove(pack);
+			}
+			unpublished.addPack(pack);
+			dirty = true;
+			reloaded.add(pack);
+		}
+		return reloaded;
+	}
+	
+	/**
+	 * Retrieve the name of every pack that has changed since it was last saved.
+	 * @return Every unsaved pack.
+	 */
+	Set<String> getUnsavedPacks() {
+		return ImmutableSet.copyOf(unsavedPacks);
+	}
+	
+	/**
+	 * Retrieve and reset the name of every pack whose section has been rewritten since this was last called.
+	 * <p>
+	 * Sections of every other pack are unchanged, so a copy made the last time this was called can be reused.
+	 * @return Every rewritten pack.
+	 */
+	Set<String> pollRewrittenPacks() {
+		Set<String> result = ImmutableSet.copyOf(rewrittenPacks);
+		rewrittenPacks.clear();
+		return result;
+	}
+	
+	/**
+	 * Save every pack that has been added, removed or modified since it was last saved.
+	 * <p>
+	 * Packs that have not been written to the section yet are written as well.
+	 * @return The number of saved packs.
+	 * @throws IllegalStateException If an unwritten pack cannot be decoded.
+	 */
+	public int saveChanges() {
+		int count = unsavedPacks.size();
+		
+		for (String pack : unwrittenPacks) {
+			if (packIndex.contains(pack) && !unsavedPacks.contains(pack)) {
+				RulePack itemLookup = memoryLookup.get(pack);
+				(itemLookup != null ? itemLookup : readPack(pack)).save(section);
+				rewrittenPacks.add(pack);
+			}
 		}
+		unwrittenPacks.clear();
 		
-		for (String pack : memoryLookup.keySet()) {
-			saveLookup(pack);
+		for (String pack : unsavedPacks) {
+			section.set(pack, null);
+			rewrittenPacks.add(pack);
+			
+			// Removed packs only need to be reset
+			if (packIndex.contains(pack)) {
+				saveLookup(pack);
+			}
 		}
+		unsavedPacks.clear();
+		return count;
 	}
 }
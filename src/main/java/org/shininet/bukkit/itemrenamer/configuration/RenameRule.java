@@ -33,6 +33,12 @@ public class RenameRule {
 	// Enchantments to add or remove
 	private final ImmutableSet<LeveledEnchantment> enchantments;
 	private final ImmutableSet<LeveledEnchantment> dechantments;
+	
+	// The compiled rule
+	private final RulePatch patch;
+	
+	// Cached hash code
+	private final int hashCode;
 
 	/**
 	 * Construct the identity rule.
@@ -51,6 +57,8 @@ public class RenameRule {
 		this.loreSections = safeList(builder.loreSections);
 		this.enchantments = safeSet(builder.enchantments);
 		this.dechantments = safeSet(builder.dechantments);
+		this.patch = RulePatch.compile(this);
+		this.hashCode = Objects.hashCode(name, skipCustomNamed, loreSections, enchantments, dechantments);
 	}
 
 	/**
@@ -305,6 +313,15 @@ public class RenameRule {
 		return dechantments;
 	}
 	
+	/**
+	 * Retrieve the precompiled patch that applies this rule to an item stack.
+	 * @return The compiled patch.
+	 */
+	@Nonnull
+	public RulePatch getPatch() {
+		return patch;
+	}
+	
 	/**
 	 * Determine if this rename rule will skip items with custom name or lore.
 	 * @return TRUE it the rule will skip those items, FALSE otherwise.
@@ -327,7 +344,7 @@ public class RenameRule {
 	
 	@Override
 	public int hashCode() {
-		return Objects.hashCode(name, skipCustomNamed, loreSections, enchantments, dechantments);
+		return hashCode;
 	}
 
 	@Override
@@ -339,6 +356,8 @@ public class RenameRule {
 		if (obj instanceof RenameRule) {
 			RenameRule other = (RenameRule) obj;
 
+			if (hashCode != other.hashCode)
+				return false;
 			if (!Objects.equal(name, other.getName()) || skipCustomNamed != other.isSkippingCustomNamed())
 				return false;
 			return CollectionsUtil.equalsMany(loreSections, other.getLoreSections())
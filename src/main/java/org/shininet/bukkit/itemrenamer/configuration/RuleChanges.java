@@ -0,0 +1,152 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Represents an immutable set of rename packs and item IDs that have changed between two snapshots.
+ */
+public class RuleChanges {
+	/**
+	 * A change set without any changes.
+	 */
+	public static final RuleChanges EMPTY = new RuleChanges(
+			ImmutableSet.<String>of(), ImmutableMap.<String, ImmutableSet<Integer>>of());
+
+	/**
+	 * Represents a builder of change sets.
+	 */
+	public static class Builder {
+		private final Set<String> packs = Sets.newHashSet();
+		private final Map<String, Set<Integer>> items = Maps.newHashMap();
+
+		private Builder() {
+			// Use the factory method
+		}
+
+		/**
+		 * Mark every item in the given pack as changed.
+		 * @param pack - the pack, which may have been added or removed.
+		 * @return This builder, for chaining.
+		 */
+		public Builder addPack(String pack) {
+			packs.add(pack);
+			items.remove(pack);
+			return this;
+		}
+
+		/**
+		 * Mark the given item IDs in a pack as changed.
+		 * @param pack - the pack.
+		 * @param ids - the changed item IDs.
+		 * @return This builder, for chaining.
+		 */
+		public Builder addItems(String pack, Set<Integer> ids) {
+			if (ids.isEmpty() || packs.contains(pack))
+				return this;
+			Set<Integer> current = items.get(pack);
+
+			if (current == null)
+				items.put(pack, current = Sets.newHashSet());
+			current.addAll(ids);
+			return this;
+		}
+
+		/**
+		 * Add every change in the given change set.
+		 * @param changes - the changes to add.
+		 * @return This builder, for chaining.
+		 */
+		public Builder addAll(RuleChanges changes) {
+			for (String pack : changes.packs) {
+				addPack(pack);
+			}
+			for (Entry<String, ImmutableSet<Integer>> entry : changes.items.entrySet()) {
+				addItems(entry.getKey(), entry.getValue());
+			}
+			return this;
+		}
+
+		/**
+		 * Construct the change set.
+		 * @return The change set.
+		 */
+		public RuleChanges build() {
+			if (packs.isEmpty() && items.isEmpty())
+				return EMPTY;
+			ImmutableMap.Builder<String, ImmutableSet<Integer>> builder = ImmutableMap.builder();
+
+			for (Entry<String, Set<Integer>> entry : items.entrySet()) {
+				builder.put(entry.getKey(), ImmutableSet.copyOf(entry.getValue()));
+			}
+			return new RuleChanges(ImmutableSet.copyOf(packs), builder.build());
+		}
+	}
+
+	// Packs that have changed entirely
+	private final ImmutableSet<String> packs;
+
+	// Individual item IDs
+	private final ImmutableMap<String, ImmutableSet<Integer>> items;
+
+	private RuleChanges(ImmutableSet<String> packs, ImmutableMap<String, ImmutableSet<Integer>> items) {
+		this.packs = packs;
+		this.items = items;
+	}
+
+	/**
+	 * Construct a new change set builder.
+	 * @return The builder.
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Determine if this change set is empty.
+	 * @return TRUE if it is, FALSE otherwise.
+	 */
+	public boolean isEmpty() {
+		return packs.isEmpty() && items.isEmpty();
+	}
+
+	/**
+	 * Retrieve the name of every changed pack.
+	 * @return Every changed pack.
+	 */
+	public Set<String> getPacks() {
+		return Sets.union(packs, items.keySet());
+	}
+
+	/**
+	 * Determine if any item in the given pack has changed.
+	 * @param pack - the pack name.
+	 * @return TRUE if it has, FALSE otherwise.
+	 */
+	public boolean affectsPack(String pack) {
+		return pack != null && (packs.contains(pack) || items.containsKey(pack));
+	}
+
+	/**
+	 * Retrieve the item IDs that have changed in a given pack.
+	 * @param pack - the pack name.
+	 * @return The changed item IDs, or NULL if every item may have changed.
+	 */
+	public Set<Integer> getItems(String pack) {
+		if (packs.contains(pack))
+			return null;
+		Set<Integer> result = items.get(pack);
+		return result != null ? result : ImmutableSet.<Integer>of();
+	}
+
+	@Override
+	public String toString() {
+		return "RuleChanges[packs: " + packs + ", items: " + items + "]";
+	}
+}
@@ -0,0 +1,480 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.api.ExactRuleChangedEvent;
+import org.shininet.bukkit.itemrenamer.api.PackAddedEvent;
+import org.shininet.bukkit.itemrenamer.api.PackRemovedEvent;
+import org.shininet.bukkit.itemrenamer.api.RuleChangedEvent;
+import org.shininet.bukkit.itemrenamer.serialization.DamageSerializer;
+import org.shininet.bukkit.itemrenamer.serialization.RuleSerializer;
+import org.shininet.bukkit.itemrenamer.utils.ConfigurationUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+import com.google.common.eventbus.Subscribe;
+
+/**
+ * Represents an append-only journal of every rule modification that has not yet been saved to the configuration file.
+ * <p>
+ * Every record contains the complete state of the modified item, so records can safely be replayed more than once.
+ * Records are buffered in memory and written to the current segment file by a background thread, which also forces
+ * them to disk. Segments are deleted once the configuration file contains every change in them.
+ */
+class RuleJournal {
+	/**
+	 * The prefix of every segment file.
+	 */
+	private static final String SEGMENT_PREFIX = "journal";
+
+	/**
+	 * The extension of every segment file.
+	 */
+	private static final String SEGMENT_EXTENSION = ".log";
+
+	/**
+	 * The number of bytes to buffer before writing to the segment file.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Record types
+	private static final byte OP_PACK_ADDED = 1;
+	private static final byte OP_PACK_REMOVED = 2;
+	private static final byte OP_LOOKUP = 3;
+	private static final byte OP_EXACT = 4;
+
+	// Keys in a record payload
+	private static final String PAYLOAD_LOOKUP = "lookup";
+	private static final String PAYLOAD_KEY = "key";
+	private static final String PAYLOAD_VALUE = "value";
+
+	private final File folder;
+	private final Logger logger;
+
+	// The current segment
+	private long segment;
+	private FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	// Forces the journal to disk
+	private ScheduledExecutorService syncExecutor;
+
+	// The configuration that is being journaled
+	private RenameConfiguration source;
+	private boolean replaying;
+
+	/**
+	 * Construct a new rule journal.
+	 * @param folder - the folder that will contain every segment.
+	 * @param logger - the logger that will receive every error.
+	 */
+	public RuleJournal(File folder, Logger logger) {
+		this.folder = folder;
+		this.logger = logger;
+	}
+
+	/**
+	 * Begin writing every segment to disk periodically.
+	 * @param interval - the number of milliseconds between each write.
+	 */
+	public void start(long interval) {
+		if (syncExecutor != null)
+			throw new IllegalStateException("Journal has already been started.");
+
+		syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ItemRenamer Journal Thread");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		syncExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Cannot write rule journal.", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Apply every journaled change to the given configuration, and journal every subsequent change to it.
+	 * @param config - the configuration that was just loaded from disk.
+	 * @return The number of replayed records.
+	 */
+	public synchronized int replay(RenameConfiguration config) {
+		int count = 0;
+		source = config;
+		replaying = true;
+
+		try {
+			for (File file : getSegments()) {
+				count += replaySegment(file, config);
+			}
+		} finally {
+			replaying = false;
+		}
+		return count;
+	}
+
+	/**
+	 * Delete every journaled change, and journal every subsequent change to the given configuration.
+	 * <p>
+	 * This is used when the configuration has been reloaded from disk, discarding every unsaved change.
+	 * @param config - the configuration that was just loaded from disk.
+	 */
+	public synchronized void reset(RenameConfiguration config) {
+		truncate(rotate());
+		source = config;
+	}
+
+	/**
+	 * Replay every record in a segment until the end of the file, or the first corrupt record.
+	 * @param file - the segment file.
+	 * @param config - the configuration to update.
+	 * @return The number of replayed records.
+	 */
+	private int replaySegment(File file, RenameConfiguration config) {
+		DataInputStream input = null;
+		int count = 0;
+
+		try {
+			input = new DataInputStream(new FileInputStream(file));
+			long remaining = file.length();
+
+			while (true) {
+				int length = input.readInt();
+
+				// A garbage length is a torn record too - don't trust it
+				if (length < 0 || length > remaining - 12)
+					break;
+				byte[] record = new byte[length];
+				input.readFully(record);
+				remaining -= length + 12;
+
+				if (input.readLong() != checksum(record)) {
+					logger.warning("Ignoring corrupt record in " + file);
+					break;
+				}
+				applyRecord(new DataInputStream(new ByteArrayInputStream(record)), config);
+				count++;
+			}
+		} catch (EOFException e) {
+			// A partial record is the result of a crash - every record before it is valid
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Cannot replay " + file, e);
+		} finally {
+			Closeables.closeQuietly(input);
+		}
+		return count;
+	}
+
+	private void applyRecord(DataInputStream input, RenameConfiguration config) throws IOException, InvalidConfigurationException {
+		byte op = input.readByte();
+		String pack = input.readUTF();
+
+		switch (op) {
+			case OP_PACK_ADDED:
+				config.createPack(pack);
+				break;
+			case OP_PACK_REMOVED:
+				config.removePack(pack);
+				break;
+			case OP_LOOKUP:
+				int itemID = input.readInt();
+				YamlConfiguration lookup = readPayload(input);
+				config.replaceLookup(pack, itemID, ConfigurationUtils.getSection(lookup, PAYLOAD_LOOKUP));
+				break;
+			case OP_EXACT:
+				YamlConfiguration exact = readPayload(input);
+				ItemStack stack = ItemStack.deserialize(ConfigurationUtils.getSection(exact, PAYLOAD_KEY).getValues(false));
+				config.createExact(pack).setRule(stack, new RuleSerializer(exact).readRule(PAYLOAD_VALUE));
+				break;
+			default:
+				throw new IOException("Unknown journal operation " + op);
+		}
+	}
+
+	@Subscribe
+	public void onPackAdded(PackAddedEvent event) {
+		append(OP_PACK_ADDED, event.getPack(), null);
+	}
+
+	@Subscribe
+	public void onPackRemoved(PackRemovedEvent event) {
+		append(OP_PACK_REMOVED, event.getPack(), null);
+	}
+
+	@Subscribe
+	public void onRuleChanged(RuleChangedEvent event) {
+		if (!isJournaling())
+			return;
+		DamageLookup lookup = source.getLookup(event.getPack(), event.getItemID());
+
+		if (lookup != null) {
+			YamlConfiguration payload = new YamlConfiguration();
+			new DamageSerializer(payload.createSection(PAYLOAD_LOOKUP)).writeLookup(lookup);
+			append(OP_LOOKUP, event.getPack(), event.getItemID(), payload);
+		}
+	}
+
+	@Subscribe
+	public void onExactRuleChanged(ExactRuleChangedEvent event) {
+		if (isJournaling()) {
+			ItemStack stack = event.getStack();
+			YamlConfiguration payload = new YamlConfiguration();
+
+			payload.createSection(PAYLOAD_KEY, stack.serialize());
+			new RuleSerializer(payload).writeRule(PAYLOAD_VALUE, source.getExact(event.getPack()).getRule(stack));
+			append(OP_EXACT, event.getPack(), payload);
+		}
+	}
+
+	/**
+	 * Start a new segment, so that every existing segment can be deleted once the current configuration has been saved.
+	 * @return The last segment that is covered by the current configuration.
+	 */
+	public synchronized long rotate() {
+		long last = segment;
+
+		try {
+			closeChannel();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot close rule journal.", e);
+		}
+		segment++;
+		return last;
+	}
+
+	/**
+	 * Delete every segment up to and including the given segment.
+	 * <p>
+	 * This may be called from any thread.
+	 * @param last - the last segment to delete.
+	 */
+	public synchronized void truncate(long last) {
+		for (File file : getSegments()) {
+			if (getSegmentIndex(file) <= last && !file.delete()) {
+				logger.warning("Cannot delete journal segment " + file);
+			}
+		}
+	}
+
+	/**
+	 * Write every buffered record and force the current segment to disk.
+	 * @throws IOException If the segment could not be written.
+	 */
+	public void sync() throws IOException {
+		FileChannel current;
+
+		synchronized (this) {
+			flushBuffer();
+			current = channel;
+		}
+		// Don't block appends while waiting for the disk
+		if (current != null) {
+			try {
+				current.force(false);
+			} catch (ClosedChannelException e) {
+				// Rotated - closing forced it to disk
+			}
+		}
+	}
+
+	/**
+	 * Write every buffered record and close the journal.
+	 */
+	public synchronized void close() {
+		if (syncExecutor != null) {
+			syncExecutor.shutdown();
+		}
+		try {
+			closeChannel();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot close rule journal.", e);
+		}
+		source = null;
+	}
+
+	/**
+	 * Determine if changes are currently being recorded.
+	 * @return TRUE if they are, FALSE if the journal is closed or being replayed.
+	 */
+	private synchronized boolean isJournaling() {
+		return source != null && !replaying;
+	}
+
+	private void append(byte op, String pack, YamlConfiguration payload) {
+		append(op, pack, -1, payload);
+	}
+
+	/**
+	 * Append a record to the journal buffer.
+	 * @param op - the record type.
+	 * @param pack - the modified pack.
+	 * @param itemID - the modified item ID, or -1 if the record doesn't contain an item ID.
+	 * @param payload - the new state, or NULL.
+	 */
+	private synchronized void append(byte op, String pack, int itemID, YamlConfiguration payload) {
+		if (!isJournaling())
+			return;
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+
+			output.writeByte(op);
+			output.writeUTF(pack);
+
+			if (itemID >= 0) {
+				output.writeInt(itemID);
+			}
+			if (payload != null) {
+				byte[] data = payload.saveToString().getBytes(Charsets.UTF_8);
+				output.writeInt(data.length);
+				output.write(data);
+			}
+			byte[] record = bytes.toByteArray();
+
+			// Length, record and checksum
+			if (buffer.remaining() < record.length + 12) {
+				flushBuffer();
+			}
+			if (buffer.remaining() < record.length + 12) {
+				writeFully(ByteBuffer.allocate(record.length + 12).putInt(record.length).put(record).putLong(checksum(record)));
+			} else {
+				buffer.putInt(record.length).put(record).putLong(checksum(record));
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot append to rule journal.", e);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (buffer.position() > 0) {
+			writeFully(buffer);
+			buffer.clear();
+		}
+	}
+
+	private void writeFully(ByteBuffer data) throws IOException {
+		if (channel == null) {
+			if (!folder.exists() && !folder.mkdirs())
+				throw new IOException("Cannot create journal folder " + folder);
+			channel = new FileOutputStream(getSegmentFile(segment), true).getChannel();
+		}
+		data.flip();
+
+		while (data.hasRemaining()) {
+			channel.write(data);
+		}
+	}
+
+	private void closeChannel() throws IOException {
+		flushBuffer();
+
+		if (channel != null) {
+			try {
+				channel.force(false);
+			} finally {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	private static YamlConfiguration readPayload(DataInputStream input) throws IOException, InvalidConfigurationException {
+		int length = input.readInt();
+
+		// We can trust available in ByteArrayInputStreams
+		if (length < 0 || length > input.available())
+			throw new IOException("Payload length " + length + " exceeds the record.");
+		byte[] data = new byte[length];
+		YamlConfiguration payload = new YamlConfiguration();
+
+		input.readFully(data);
+		payload.loadFromString(new String(data, Charsets.UTF_8));
+		return payload;
+	}
+
+	private static long checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return crc.getValue();
+	}
+
+	/**
+	 * Retrieve every segment file, oldest first. The next segment index is updated accordingly.
+	 * @return Every segment file.
+	 */
+	private File[] getSegments() {
+		File[] files = folder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION) && getSegmentIndex(name) >= 0;
+			}
+		});
+
+		if (files == null)
+			return new File[0];
+		long[] indices = new long[files.length];
+
+		for (int i = 0; i < files.length; i++) {
+			indices[i] = getSegmentIndex(files[i]);
+		}
+		Arrays.sort(indices);
+
+		// Never append to an existing segment
+		if (indices.length > 0 && channel == null) {
+			segment = Math.max(segment, indices[indices.length - 1] + 1);
+		}
+		for (int i = 0; i < indices.length; i++) {
+			files[i] = getSegmentFile(indices[i]);
+		}
+		return files;
+	}
+
+	private File getSegmentFile(long index) {
+		return new File(folder, SEGMENT_PREFIX + index + SEGMENT_EXTENSION);
+	}
+
+	private static long getSegmentIndex(File file) {
+		return getSegmentIndex(file.getName());
+	}
+
+	private static long getSegmentIndex(String name) {
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+}
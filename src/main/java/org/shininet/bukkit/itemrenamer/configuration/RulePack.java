@@ -4,11 +4,17 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.api.ConfigurationChangeEvent;
+import org.shininet.bukkit.itemrenamer.api.ExactRuleChangedEvent;
+import org.shininet.bukkit.itemrenamer.api.RuleChangedEvent;
 import org.shininet.bukkit.itemrenamer.serialization.DamageSerializer;
 import org.shininet.bukkit.itemrenamer.serialization.ExactSerializer;
 import org.shininet.bukkit.itemrenamer.utils.ConfigurationUtils;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.collect.Ranges;
 
 /**
  * Represents a rule pack in memory.
@@ -18,19 +24,34 @@ import com.google.common.collect.Maps;
 class RulePack {
 	public static final String EXACT = "exact";
 	
+	// Rough memory usage of a pack and of each of its rules, in bytes
+	private static final long PACK_OVERHEAD = 1024;
+	private static final long RULE_OVERHEAD = 256;
+	
 	private final String name;
 	
 	// The two different lookups
 	private Map<Integer, DamageLookup> rangeLookup;
-	private ExactLookup exactLookup;
+	private MemoryExactLookup exactLookup;
+	
+	// The compiled damage lookups - NULL if a lookup has changed
+	private RuleTable ruleTable;
+	
+	// The copied exact lookup - NULL if it has changed
+	private ExactTable exactTable;
 	
-	// Number of extra modifications
-	private int modCount; 
+	// The estimated memory usage - negative if a lookup has changed
+	private long estimatedSize = -1;
+	
+	// Notified of every change outside of loading
+	private LookupObserver<ConfigurationChangeEvent> observer;
+	private boolean loading;
 	
 	public RulePack(String name) {
 		this.name = name;
 		this.rangeLookup = Maps.newHashMap();
 		this.exactLookup = new MemoryExactLookup();
+		this.exactLookup.setObserver(createExactObserver());
 	}
 
 	/**
@@ -45,27 +66,174 @@ class RulePack {
 
 	/**
 	 * Load the content of a serialized configuration.
+	 * <p>
+	 * This may be called from any thread as long as the configuration is not modified. The exact rules only create new
+	 * item stacks and item meta, which reads nothing but the material and serialization registries.
 	 * @param parent - the parent configuration.
 	 */
 	public void load(ConfigurationSection parent) {
+		load(parent, true);
+	}
+	
+	/**
+	 * Load every damage rule of a serialized configuration, skipping the exact rules.
+	 * <p>
+	 * The exact rules can be loaded afterwards with {@link #loadItem(ConfigurationSection, String)}.
+	 * @param parent - the parent configuration.
+	 */
+	public void loadDamageRules(ConfigurationSection parent) {
+		load(parent, false);
+	}
+	
+	/**
+	 * Load the content of a serialized configuration.
+	 * @param parent - the parent configuration.
+	 * @param exact - whether or not to load the exact rules.
+	 */
+	private void load(ConfigurationSection parent, boolean exact) {
 		ConfigurationSection items = ConfigurationUtils.getSection(parent, name);
 		
 		// Reset current values
 		rangeLookup.clear();
 		exactLookup.clear();
+		ruleTable = null;
+		exactTable = null;
+		estimatedSize = -1;
 		
-		if (items != null) {	
-			for (String key : items.getKeys(false)) {
-				if (EXACT.equals(key)) {
-					ExactSerializer serializer = new ExactSerializer(
-							ConfigurationUtils.getSection(items, EXACT));
-					serializer.readLookup(exactLookup);
-				} else {
-					parseRange(items, key);
+		// Loading is not a change
+		loading = true;
+		
+		try {
+			if (items != null) {	
+				for (String key : items.getKeys(false)) {
+					if (exact || !EXACT.equals(key))
+						parseItem(items, key);
 				}
 			}
+		} finally {
+			loading = false;
 		}
 	}
+	
+	/**
+	 * Load the rules of a single item, or the exact rules, from a serialized configuration.
+	 * <p>
+	 * Existing rules for other items are kept.
+	 * @param items - the configuration section with the item.
+	 * @param key - the item ID, or {@link #EXACT}.
+	 */
+	public void loadItem(ConfigurationSection items, String key) {
+		ruleTable = null;
+		exactTable = null;
+		estimatedSize = -1;
+		loading = true;
+		
+		try {
+			parseItem(items, key);
+		} finally {
+			loading = false;
+		}
+	}
+	
+	/**
+	 * Parse the given item or exact section.
+	 * @param items - the item section.
+	 * @param key - the item ID, or {@link #EXACT}.
+	 */
+	private void parseItem(ConfigurationSection items, String key) {
+		if (EXACT.equals(key)) {
+			ExactSerializer serializer = new ExactSerializer(
+					ConfigurationUtils.getSection(items, EXACT));
+			serializer.readLookup(exactLookup);
+		} else {
+			parseRange(items, key);
+		}
+	}
+	
+	/**
+	 * Add every rule of a pack with the same name that was loaded separately, replacing the rules of the same items.
+	 * <p>
+	 * This allows the items of a pack to be loaded by different threads, each into a pack of its own. The exact 
+	 * rules are replaced if the other pack has any. The other pack must not be used afterwards.
+	 * @param other - the other pack.
+	 */
+	public void putAll(RulePack other) {
+		for (Entry<Integer, DamageLookup> entry : other.rangeLookup.entrySet()) {
+			MemoryDamageLookup lookup = (MemoryDamageLookup) entry.getValue();
+			
+			// Changes must be reported by this pack
+			lookup.setObserver(createObserver(entry.getKey()));
+			rangeLookup.put(entry.getKey(), lookup);
+		}
+		if (!other.exactLookup.toLookup().isEmpty()) {
+			exactLookup = other.exactLookup;
+			exactLookup.setObserver(createExactObserver());
+		}
+		ruleTable = null;
+		exactTable = null;
+		estimatedSize = -1;
+	}
+	
+	/**
+	 * Set the observer that will be notified whenever a rule in this pack has changed.
+	 * @param observer - the new observer, or NULL.
+	 */
+	public void setObserver(LookupObserver<ConfigurationChangeEvent> observer) {
+		this.observer = observer;
+	}
+	
+	/**
+	 * Notify the observer of the given change, unless the pack is being loaded.
+	 * @param event - the change.
+	 */
+	private void notifyChanged(ConfigurationChangeEvent event) {
+		if (!loading && observer != null) {
+			observer.onChanged(event);
+		}
+	}
+	
+	/**
+	 * Construct a new damage lookup for a given item ID, that will notify the observer of every change.
+	 * @param id - the item ID.
+	 * @return The new damage lookup.
+	 */
+	private DamageLookup createLookup(int id) {
+		MemoryDamageLookup lookup = new MemoryDamageLookup();
+		
+		lookup.setObserver(createObserver(id));
+		return lookup;
+	}
+	
+	/**
+	 * Construct an observer that reports every change to the damage lookup of a given item ID.
+	 * @param id - the item ID.
+	 * @return The new observer.
+	 */
+	private LookupObserver<Range<Integer>> createObserver(final int id) {
+		return new LookupObserver<Range<Integer>>() {
+			@Override
+			public void onChanged(Range<Integer> damage) {
+				ruleTable = null;
+				estimatedSize = -1;
+				notifyChanged(new RuleChangedEvent(name, id, damage));
+			}
+		};
+	}
+	
+	/**
+	 * Construct an observer that reports every change to the exact lookup.
+	 * @return The new observer.
+	 */
+	private LookupObserver<ItemStack> createExactObserver() {
+		return new LookupObserver<ItemStack>() {
+			@Override
+			public void onChanged(ItemStack stack) {
+				exactTable = null;
+				estimatedSize = -1;
+				notifyChanged(new ExactRuleChangedEvent(name, stack));
+			}
+		};
+	}
 
 	/**
 	 * Parse the given item section.
@@ -75,7 +243,7 @@ class RulePack {
 	private void parseRange(ConfigurationSection items, String key) {
 		Integer id = Integer.parseInt(key);
 		DamageSerializer serializer = new DamageSerializer(ConfigurationUtils.getSection(items, key));
-		DamageLookup damage = new MemoryDamageLookup();
+		DamageLookup damage = createLookup(id);
 		
 		// Load and save
 		serializer.readLookup(damage);
@@ -109,12 +277,33 @@ class RulePack {
 		
 		// Create it if it doesn't exist yet
 		if (lookup == null) {
-			modCount++;
-			rangeLookup.put(id, lookup = new MemoryDamageLookup());
+			rangeLookup.put(id, lookup = createLookup(id));
 		}
 		return lookup;
 	}
 	
+	/**
+	 * Replace the damage lookup of a given item ID with the content of a configuration section.
+	 * @param id - the item ID.
+	 * @param data - the serialized damage lookup.
+	 */
+	public void replaceLookup(int id, ConfigurationSection data) {
+		DamageLookup lookup = createLookup(id);
+		
+		// Report a single change
+		loading = true;
+		
+		try {
+			new DamageSerializer(data).readLookup(lookup);
+		} finally {
+			loading = false;
+		}
+		rangeLookup.put(id, lookup);
+		ruleTable = null;
+		estimatedSize = -1;
+		notifyChanged(new RuleChangedEvent(name, id, Ranges.<Integer>all()));
+	}
+	
 	/**
 	 * Retrieve the current range (for both item ID and damage value) lookup.
 	 * @return The range lookup.
@@ -123,6 +312,51 @@ class RulePack {
 		return rangeLookup;
 	}
 	
+	/**
+	 * Retrieve a compiled read-only version of every damage lookup in this pack.
+	 * <p>
+	 * The table is recompiled if a damage lookup has changed since the last invocation.
+	 * @return The compiled damage lookups.
+	 */
+	public RuleTable getRuleTable() {
+		if (ruleTable == null) {
+			ruleTable = new RuleTable(rangeLookup);
+		}
+		return ruleTable;
+	}
+	
+	/**
+	 * Retrieve an immutable copy of the exact lookup in this pack.
+	 * <p>
+	 * The table is copied again if the exact lookup has changed since the last invocation.
+	 * @return The exact rules.
+	 */
+	public ExactTable getExactTable() {
+		if (exactTable == null) {
+			exactTable = new ExactTable(exactLookup);
+		}
+		return exactTable;
+	}
+	
+	/**
+	 * Retrieve a rough estimate of the memory used by this pack.
+	 * <p>
+	 * The estimate is recomputed if a lookup has changed since the last invocation.
+	 * @return The estimated size in bytes.
+	 */
+	public long getEstimatedSize() {
+		if (estimatedSize < 0) {
+			long rules = exactLookup.toLookup().size();
+			
+			// Include the all and other rules
+			for (DamageLookup lookup : rangeLookup.values()) {
+				rules += lookup.toLookup().size() + 2;
+			}
+			estimatedSize = PACK_OVERHEAD + rules * RULE_OVERHEAD;
+		}
+		return estimatedSize;
+	}
+	
 	/**
 	 * Retrieve the exact lookup.
 	 * @return The exact lookup.
@@ -138,19 +372,4 @@ class RulePack {
 	public String getName() {
 		return name;
 	}
-	
-	/**
-	 * Retrieve the total modification count used to track changes across saves and loads.
-	 * @return The total modification count.
-	 */
-	public int getModificationCount() {
-		int totalCount = modCount;
-		
-		for (DamageLookup lookup : rangeLookup.values()) {
-			if (lookup.getModificationCount() > 0) {
-				totalCount += lookup.getModificationCount();
-			}
-		}
-		return exactLookup.getModificationCount() + totalCount;
-	}
 }
@@ -0,0 +1,343 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.util.List;
+
+import org.bukkit.ChatColor;
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.utils.StackUtils;
+import org.shininet.bukkit.itemrenamer.wrappers.LeveledEnchantment;
+
+import com.comphenix.protocol.wrappers.nbt.NbtBase;
+import com.comphenix.protocol.wrappers.nbt.NbtCompound;
+import com.comphenix.protocol.wrappers.nbt.NbtFactory;
+import com.comphenix.protocol.wrappers.nbt.NbtList;
+import com.google.common.collect.Lists;
+
+/**
+ * Represents a rename rule that has been compiled into a list of edits to the NBT tag of an item stack.
+ * <p>
+ * Every string and NBT tag is constructed once, so that applying the patch only requires a single pass
+ * over the tag of the item stack. The patch is equivalent to applying the name, lore, dechantments and
+ * enchantments (in that order) of the original rule.
+ */
+public class RulePatch {
+	// NBT keys
+	private static final String KEY_DISPLAY = "display";
+	private static final String KEY_NAME = "Name";
+	private static final String KEY_LORE = "Lore";
+	private static final String KEY_ENCHANTMENTS = "ench";
+	private static final String KEY_ENCHANTMENT_ID = "id";
+	private static final String KEY_ENCHANTMENT_LEVEL = "lvl";
+	private static final String KEY_ATTRIBUTES = "AttributeModifiers";
+
+	private final boolean skipCustomNamed;
+
+	// The new display name and lore
+	private final String name;
+	private final NbtList<String> lore;
+	private final NbtCompound display;
+
+	// Vanilla enchantments to remove or add
+	private final short[] removedIds;
+	private final short[] addedIds;
+	private final short[] addedLevels;
+
+	// Custom enchantments
+	private final boolean removeGlow;
+	private final boolean removeAttributes;
+	private final boolean addGlow;
+	private final boolean addAttributes;
+	private final Short durability;
+
+	private final boolean identity;
+
+	private RulePatch(RenameRule rule) {
+		this.skipCustomNamed = rule.isSkippingCustomNamed();
+		this.name = rule.getName() != null ?
+				ChatColor.RESET + ChatColor.translateAlternateColorCodes('&', rule.getName()) + ChatColor.RESET : null;
+
+		// Translate color codes as well
+		if (rule.getLoreSections().size() > 0) {
+			List<String> lines = Lists.newArrayList();
+
+			for (String line : rule.getLoreSections()) {
+				lines.add(ChatColor.translateAlternateColorCodes('&', line) + ChatColor.RESET);
+			}
+			this.lore = NbtFactory.ofList(KEY_LORE, lines);
+		} else {
+			this.lore = null;
+		}
+
+		// The display compound used by items without one
+		if (name != null || lore != null) {
+			display = NbtFactory.ofCompound(KEY_DISPLAY);
+
+			if (name != null)
+				display.put(KEY_NAME, name);
+			if (lore != null)
+				display.put(lore);
+		} else {
+			display = null;
+		}
+
+		// Dechantments
+		List<Short> removed = Lists.newArrayList();
+		boolean removeGlow = false;
+		boolean removeAttributes = false;
+
+		for (LeveledEnchantment dechantment : rule.getDechantments()) {
+			switch (dechantment.getCustom()) {
+				case VANILLA: removed.add((short) dechantment.getEnchantment().getId()); break;
+				case GLOW: removeGlow = true; break;
+				case NO_ATTRIBUTES: removeAttributes = true; break;
+				default :
+					// Removing durability doesn't make any sense
+					break;
+			}
+		}
+
+		// Enchantments
+		List<LeveledEnchantment> added = Lists.newArrayList();
+		boolean addGlow = false;
+		boolean addAttributes = false;
+		Short durability = null;
+
+		for (LeveledEnchantment enchantment : rule.getEnchantments()) {
+			switch (enchantment.getCustom()) {
+				case VANILLA: added.add(enchantment); break;
+				case GLOW: addGlow = true; break;
+				case NO_ATTRIBUTES: addAttributes = true; break;
+				case NO_DURABILITY: durability = (short) enchantment.getLevel(); break;
+			}
+		}
+
+		this.removedIds = new short[removed.size()];
+		this.addedIds = new short[added.size()];
+		this.addedLevels = new short[added.size()];
+
+		for (int i = 0; i < removedIds.length; i++) {
+			removedIds[i] = removed.get(i);
+		}
+		for (int i = 0; i < addedIds.length; i++) {
+			addedIds[i] = (short) added.get(i).getEnchantment().getId();
+			addedLevels[i] = (short) added.get(i).getLevel();
+		}
+		this.removeGlow = removeGlow;
+		this.removeAttributes = removeAttributes;
+		this.addGlow = addGlow;
+		this.addAttributes = addAttributes;
+		this.durability = durability;
+
+		this.identity = display == null && removedIds.length == 0 && addedIds.length == 0 &&
+				!removeGlow && !removeAttributes && !addGlow && !addAttributes && durability == null;
+	}
+
+	/**
+	 * Compile the given rename rule into a patch.
+	 * @param rule - the rule to compile.
+	 * @return The compiled patch.
+	 */
+	public static RulePatch compile(RenameRule rule) {
+		if (rule == null)
+			throw new IllegalArgumentException("rule cannot be NULL.");
+		return new RulePatch(rule);
+	}
+
+	/**
+	 * Determine if this patch leaves every item stack unchanged.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	public boolean isIdentity() {
+		return identity;
+	}
+
+	/**
+	 * Apply the current patch to the given item stack.
+	 * <p>
+	 * The given stack may be modified or converted to a CraftItemStack.
+	 * @param stack - the item stack to modify.
+	 * @return The resulting item stack.
+	 */
+	public ItemStack apply(ItemStack stack) {
+		if (stack == null)
+			throw new IllegalArgumentException("stack cannot be NULL.");
+		if (identity)
+			return stack;
+
+		stack = StackUtils.getCraftItemStack(stack);
+
+		NbtCompound tag = stack.hasItemMeta() ? NbtFactory.asCompound(NbtFactory.fromItemTag(stack)) : null;
+		NbtCompound currentDisplay = tag != null ? getCompound(tag, KEY_DISPLAY) : null;
+
+		// Don't overwrite custom names, or any lore
+		if (currentDisplay != null && ((skipCustomNamed && currentDisplay.getValue(KEY_NAME) != null) || 
+				hasElements(currentDisplay.getValue(KEY_LORE)))) {
+			return stack;
+		}
+
+		// Durability is not stored in the tag
+		if (durability != null) {
+			stack.setDurability(durability);
+		}
+		if (display == null && removedIds.length == 0 && addedIds.length == 0 &&
+				!removeGlow && !removeAttributes && !addGlow && !addAttributes) {
+			return stack;
+		}
+		if (tag == null) {
+			tag = NbtFactory.asCompound(NbtFactory.fromItemTag(stack));
+		}
+
+		// Name and lore
+		if (display != null) {
+			if (currentDisplay == null) {
+				tag.put(display.deepClone());
+			} else {
+				if (name != null)
+					currentDisplay.put(KEY_NAME, name);
+				if (lore != null)
+					currentDisplay.put(lore.deepClone());
+			}
+		}
+
+		// Remove enchantments
+		NbtList<?> enchantments = getList(tag, KEY_ENCHANTMENTS);
+
+		if (removedIds.length > 0 && enchantments != null) {
+			enchantments = removeEnchantments(tag, enchantments);
+		}
+		if (removeGlow && enchantments != null && enchantments.size() == 0) {
+			tag.remove(KEY_ENCHANTMENTS);
+			enchantments = null;
+		}
+		if (removeAttributes) {
+			tag.remove(KEY_ATTRIBUTES);
+		}
+
+		// Add enchantments
+		if (addedIds.length > 0) {
+			enchantments = addEnchantments(tag, enchantments);
+		}
+		if (addGlow && (enchantments == null || enchantments.size() == 0)) {
+			tag.put(NbtFactory.ofList(KEY_ENCHANTMENTS));
+		}
+		if (addAttributes) {
+			tag.put(NbtFactory.ofList(KEY_ATTRIBUTES));
+		}
+		return stack;
+	}
+
+	/**
+	 * Remove every dechantment from the given enchantment list.
+	 * @param tag - the item tag.
+	 * @param enchantments - the current enchantment list.
+	 * @return The new enchantment list, or NULL if it was removed.
+	 */
+	@SuppressWarnings("unchecked")
+	private NbtList<?> removeEnchantments(NbtCompound tag, NbtList<?> enchantments) {
+		NbtList<Object> result = NbtFactory.ofList(KEY_ENCHANTMENTS);
+
+		for (NbtBase<?> element : enchantments.getValue()) {
+			if (!(element instanceof NbtCompound) ||
+				indexOf(removedIds, ((NbtCompound) element).getShort(KEY_ENCHANTMENT_ID)) < 0) {
+				result.add((NbtBase<Object>) element);
+			}
+		}
+
+		// Nothing was removed
+		if (result.size() == enchantments.size())
+			return enchantments;
+
+		// Like CraftItemStack, remove the list altogether
+		if (result.size() == 0) {
+			tag.remove(KEY_ENCHANTMENTS);
+			return null;
+		}
+		tag.put(result);
+		return result;
+	}
+
+	/**
+	 * Add or update every vanilla enchantment in the given enchantment list.
+	 * @param tag - the item tag.
+	 * @param enchantments - the current enchantment list, or NULL.
+	 * @return The new enchantment list.
+	 */
+	@SuppressWarnings("unchecked")
+	private NbtList<?> addEnchantments(NbtCompound tag, NbtList<?> enchantments) {
+		NbtList<Object> result = (NbtList<Object>) enchantments;
+		boolean[] updated = new boolean[addedIds.length];
+
+		if (result == null) {
+			tag.put(result = NbtFactory.ofList(KEY_ENCHANTMENTS));
+		}
+
+		// Update the level of existing enchantments
+		for (NbtBase<?> element : result.getValue()) {
+			if (element instanceof NbtCompound) {
+				NbtCompound compound = (NbtCompound) element;
+				int index = indexOf(addedIds, compound.getShort(KEY_ENCHANTMENT_ID));
+
+				if (index >= 0) {
+					compound.put(KEY_ENCHANTMENT_LEVEL, addedLevels[index]);
+					updated[index] = true;
+				}
+			}
+		}
+
+		// Append the rest
+		for (int i = 0; i < addedIds.length; i++) {
+			if (!updated[i]) {
+				NbtCompound compound = NbtFactory.ofCompound("");
+				compound.put(KEY_ENCHANTMENT_ID, addedIds[i]);
+				compound.put(KEY_ENCHANTMENT_LEVEL, addedLevels[i]);
+				result.add((NbtBase<Object>) (NbtBase<?>) compound);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieve the index of a given value in an array.
+	 * @param array - the array to search.
+	 * @param value - the value to find.
+	 * @return The index, or -1 if not found.
+	 */
+	private static int indexOf(short[] array, short value) {
+		for (int i = 0; i < array.length; i++) {
+			if (array[i] == value)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Retrieve the compound with the given key.
+	 * @param parent - the parent compound.
+	 * @param key - the key.
+	 * @return The compound, or NULL if not found or not a compound.
+	 */
+	private static NbtCompound getCompound(NbtCompound parent, String key) {
+		NbtBase<?> value = parent.getValue(key);
+		return value instanceof NbtCompound ? (NbtCompound) value : null;
+	}
+
+	/**
+	 * Retrieve the list with the given key.
+	 * @param parent - the parent compound.
+	 * @param key - the key.
+	 * @return The list, or NULL if not found or not a list.
+	 */
+	private static NbtList<?> getList(NbtCompound parent, String key) {
+		NbtBase<?> value = parent.getValue(key);
+		return value instanceof NbtList ? (NbtList<?>) value : null;
+	}
+
+	/**
+	 * Determine if the given value is a non-empty list.
+	 * @param value - the value to check.
+	 * @return TRUE if it is, FALSE otherwise.
+	 */
+	private static boolean hasElements(NbtBase<?> value) {
+		return value instanceof NbtList && ((NbtList<?>) value).size() > 0;
+	}
+}
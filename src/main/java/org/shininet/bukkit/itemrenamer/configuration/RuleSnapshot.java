@@ -0,0 +1,123 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.inventory.ItemStack;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Represents an immutable and compiled version of every rename pack.
+ * <p>
+ * Snapshots are published by {@link RenameConfiguration#commit()}, and may be read from any thread.
+ */
+public class RuleSnapshot {
+	/**
+	 * Represents the compiled rules of a single rename pack.
+	 */
+	public static class PackSnapshot {
+		private final String name;
+		private final long version;
+		private final RuleTable ruleTable;
+		private final ExactTable exactTable;
+		
+		public PackSnapshot(String name, long version, RuleTable ruleTable, ExactTable exactTable) {
+			this.name = name;
+			this.version = version;
+			this.ruleTable = ruleTable;
+			this.exactTable = exactTable;
+		}
+		
+		/**
+		 * Retrieve the associated rule for the given item stack.
+		 * <p>
+		 * This will first look for exact rules, then damage lookup rules.
+		 * @param input - the item stack.
+		 * @return The associated rule, or NULL if not found.
+		 */
+		public RenameRule getRule(ItemStack input) {
+			if (input == null)
+				return null;
+			RenameRule exactRule = exactTable.getRule(input);
+			
+			// Exact item stacks has priority
+			if (exactRule != null) {
+				return exactRule;
+			}
+			return ruleTable.getRule(input.getTypeId(), input.getDurability());
+		}
+		
+		/**
+		 * Retrieve the name of the pack.
+		 * @return The name of the pack.
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Retrieve the version of the snapshot in which this pack was last changed.
+		 * @return The pack version.
+		 */
+		public long getVersion() {
+			return version;
+		}
+		
+		/**
+		 * Retrieve the compiled damage lookups.
+		 * @return The compiled damage lookups.
+		 */
+		public RuleTable getRuleTable() {
+			return ruleTable;
+		}
+		
+		/**
+		 * Retrieve the exact rules.
+		 * @return The exact rules.
+		 */
+		public ExactTable getExactTable() {
+			return exactTable;
+		}
+	}
+	
+	private final long version;
+	private final ImmutableMap<String, PackSnapshot> packs;
+	
+	/**
+	 * Construct a new rule snapshot.
+	 * @param version - the unique version of this snapshot.
+	 * @param packs - every compiled pack.
+	 */
+	public RuleSnapshot(long version, Map<String, PackSnapshot> packs) {
+		this.version = version;
+		this.packs = ImmutableMap.copyOf(packs);
+	}
+	
+	/**
+	 * Retrieve the version of this snapshot.
+	 * <p>
+	 * Every snapshot has a different version, even across reloads. Later snapshots have a higher version.
+	 * @return The snapshot version.
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Retrieve the compiled rules of a given pack.
+	 * @param pack - the name of the pack.
+	 * @return The compiled rules, or NULL if not found.
+	 */
+	public PackSnapshot getPack(String pack) {
+		return pack != null ? packs.get(pack) : null;
+	}
+	
+	/**
+	 * Retrieve the name of every pack in this snapshot.
+	 * @return Name of every pack.
+	 */
+	public Set<String> getPacks() {
+		return packs.keySet();
+	}
+}
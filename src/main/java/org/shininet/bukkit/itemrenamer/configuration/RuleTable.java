@@ -0,0 +1,197 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+
+/**
+ * Represents a compiled read-only form of the damage lookups in a rule pack.
+ * <p>
+ * Rules are stored in an array indexed by item ID, and each item stores its rules either in a flat
+ * table indexed by damage value, or as sorted primitive intervals. The effective rule of every interval
+ * (including ALL and OTHER) is computed when the table is compiled, so lookups never allocate.
+ */
+public class RuleTable {
+	/**
+	 * The largest item ID that will be stored in the item array.
+	 */
+	private static final int MAX_DENSE_ID = Short.MAX_VALUE;
+
+	/**
+	 * The largest damage table that will be used for a single item.
+	 */
+	private static final int MAX_DENSE_DAMAGE = 2048;
+
+	/**
+	 * The maximum number of damage table entries per defined interval.
+	 */
+	private static final int DENSE_FACTOR = 256;
+
+	/**
+	 * Represents the compiled rules of a single item ID.
+	 */
+	private static class ItemRules {
+		// Used for undefined damage values
+		private final RenameRule other;
+
+		// Flat table of every damage value
+		private final RenameRule[] table;
+
+		// Sorted intervals
+		private final int[] lower;
+		private final int[] upper;
+		private final RenameRule[] rules;
+
+		public ItemRules(DamageLookup lookup) {
+			Map<Range<Integer>, RenameRule> defined = lookup.toLookup();
+			int count = defined.size();
+			int index = 0;
+
+			// Computed as a long, as a range may end at Integer.MAX_VALUE
+			long span = 0;
+
+			// Note that damage values are never negative
+			this.other = lookup.getRule(-1);
+			this.lower = new int[count];
+			this.upper = new int[count];
+			this.rules = new RenameRule[count];
+
+			for (Entry<Range<Integer>, RenameRule> entry : defined.entrySet()) {
+				Range<Integer> range = entry.getKey();
+
+				lower[index] = range.lowerEndpoint();
+				upper[index] = range.upperEndpoint();
+				rules[index] = lookup.getRule(lower[index]);
+				span = Math.max(span, (long) upper[index] + 1);
+				index++;
+			}
+			sortIntervals();
+
+			// Use a flat table for small damage domains - huge ranges stay in the interval list
+			if (span <= MAX_DENSE_DAMAGE && span <= (long) DENSE_FACTOR * Math.max(1, count)) {
+				table = new RenameRule[(int) span];
+				Arrays.fill(table, other);
+
+				for (int i = 0; i < count; i++) {
+					Arrays.fill(table, lower[i], upper[i] + 1, rules[i]);
+				}
+			} else {
+				table = null;
+			}
+		}
+
+		/**
+		 * Sort the intervals by their lower endpoint.
+		 */
+		private void sortIntervals() {
+			// Insertion sort - the intervals are usually sorted already
+			for (int i = 1; i < lower.length; i++) {
+				int currentLower = lower[i];
+				int currentUpper = upper[i];
+				RenameRule currentRule = rules[i];
+				int j = i - 1;
+
+				for (; j >= 0 && lower[j] > currentLower; j--) {
+					lower[j + 1] = lower[j];
+					upper[j + 1] = upper[j];
+					rules[j + 1] = rules[j];
+				}
+				lower[j + 1] = currentLower;
+				upper[j + 1] = currentUpper;
+				rules[j + 1] = currentRule;
+			}
+		}
+
+		/**
+		 * Retrieve the effective rule of a given damage value.
+		 * @param damage - the damage value.
+		 * @return The rule, or NULL if not found.
+		 */
+		public RenameRule getRule(int damage) {
+			if (damage < 0)
+				return other;
+
+			if (table != null) {
+				return damage < table.length ? table[damage] : other;
+			}
+
+			// Find the last interval that starts before or at the damage value
+			int low = 0;
+			int high = lower.length - 1;
+
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+
+				if (lower[middle] <= damage)
+					low = middle + 1;
+				else
+					high = middle - 1;
+			}
+			if (high >= 0 && damage <= upper[high]) {
+				return rules[high];
+			}
+			return other;
+		}
+	}
+
+	// Item IDs within the dense range
+	private final ItemRules[] items;
+
+	// Everything else
+	private final Map<Integer, ItemRules> sparseItems = Maps.newHashMap();
+
+	/**
+	 * Compile the given damage lookups.
+	 * @param lookups - the damage lookup of every item ID.
+	 */
+	public RuleTable(Map<Integer, DamageLookup> lookups) {
+		int maxId = -1;
+
+		for (Integer id : lookups.keySet()) {
+			if (id >= 0 && id <= MAX_DENSE_ID)
+				maxId = Math.max(maxId, id);
+		}
+		items = new ItemRules[maxId + 1];
+
+		for (Entry<Integer, DamageLookup> entry : lookups.entrySet()) {
+			int id = entry.getKey();
+			ItemRules rules = new ItemRules(entry.getValue());
+
+			if (id >= 0 && id <= MAX_DENSE_ID)
+				items[id] = rules;
+			else
+				sparseItems.put(id, rules);
+		}
+	}
+
+	/**
+	 * Retrieve the effective rule of a given item, taking into account the OTHER and ALL rule.
+	 * @param itemID - the item ID.
+	 * @param damage - the damage value.
+	 * @return The rule, or NULL if not found.
+	 */
+	public RenameRule getRule(int itemID, int damage) {
+		ItemRules rules = null;
+
+		if (itemID >= 0 && itemID < items.length) {
+			rules = items[itemID];
+		} else if (!sparseItems.isEmpty()) {
+			rules = sparseItems.get(itemID);
+		}
+		return rules != null ? rules.getRule(damage) : null;
+	}
+
+	/**
+	 * Determine if the given item ID has any associated rules.
+	 * @param itemID - the item ID.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	public boolean hasItem(int itemID) {
+		if (itemID >= 0 && itemID < items.length)
+			return items[itemID] != null;
+		return sparseItems.containsKey(itemID);
+	}
+}
@@ -0,0 +1,486 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.MemoryConfiguration;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.CollectionStartEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.MappingEndEvent;
+import org.yaml.snakeyaml.events.MappingStartEvent;
+import org.yaml.snakeyaml.events.NodeEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.events.SequenceEndEvent;
+import org.yaml.snakeyaml.events.SequenceStartEvent;
+import org.yaml.snakeyaml.events.StreamEndEvent;
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Reads every rename pack from a YAML document as a stream of parser events, without loading the whole document.
+ * <p>
+ * Only the rules of a single item ID, or the exact rules of a single pack, are held in a configuration section at any
+ * time. They are parsed by {@link RulePack#loadItem(ConfigurationSection, String)}, so the result is equivalent to
+ * loading the document into a {@link org.bukkit.configuration.file.YamlConfiguration} and calling
+ * {@link RulePack#load(ConfigurationSection)}.
+ * <p>
+ * Serialized objects such as item meta are never deserialized while the document is read. Instead, the exact rules
+ * of each pack are passed on as they were read, and are loaded with
+ * {@link #loadExactRules(RulePack, ConfigurationSection)}.
+ * <p>
+ * Scalars are converted as by Bukkit's YAML constructor. Aliases to the packs section or to a whole pack are not
+ * supported, as they are never constructed.
+ */
+abstract class StreamingPackReader {
+	/**
+	 * The section that contains every pack.
+	 */
+	private static final String PACKS = "packs";
+
+	// Plain decimal integers, which are parsed directly
+	private static final Pattern DECIMAL = Pattern.compile("[-+]?(0|[1-9][0-9]*)");
+
+	// Boolean values that are TRUE
+	private static final ImmutableSet<String> TRUE_VALUES = ImmutableSet.of("yes", "true", "on");
+
+	// Used to resolve the type of untagged scalars
+	private final Resolver resolver = new Resolver();
+
+	// Used to construct uncommon scalars, like timestamps and octal numbers
+	private final Yaml scalarYaml = new Yaml(new SafeConstructor());
+
+	// Every anchored value that has been constructed
+	private final Map<String, Object> anchors = Maps.newHashMap();
+
+	private Iterator<Event> events;
+
+	// The number of mappings and sequences that have been started but not ended
+	private int depth;
+
+	/**
+	 * Read every pack in the given YAML document.
+	 * <p>
+	 * Each pack is passed to {@link #onPack(RulePack, ConfigurationSection)} as soon as it has been read, or to
+	 * {@link #onPackFailed(String, RuntimeException)} if it could not be parsed.
+	 * @param reader - the YAML document.
+	 * @return Every value outside of the packs section. Serialized objects must be deserialized with
+	 * {@link #deserializeObjects(ConfigurationSection)}.
+	 * @throws org.yaml.snakeyaml.error.YAMLException If the document is not valid YAML.
+	 * @throws IllegalArgumentException If the document is not a map.
+	 */
+	public MemoryConfiguration read(Reader reader) {
+		return read(reader, true);
+	}
+
+	/**
+	 * Read every value outside of the packs section in the given YAML document, skipping every pack.
+	 * @param reader - the YAML document.
+	 * @return Every value outside of the packs section. Serialized objects must be deserialized with
+	 * {@link #deserializeObjects(ConfigurationSection)}.
+	 * @throws org.yaml.snakeyaml.error.YAMLException If the document is not valid YAML.
+	 * @throws IllegalArgumentException If the document is not a map.
+	 */
+	public MemoryConfiguration readSettings(Reader reader) {
+		return read(reader, false);
+	}
+
+	/**
+	 * Read the given YAML document.
+	 * @param reader - the YAML document.
+	 * @param readPacks - whether or not to read the packs section.
+	 * @return Every value outside of the packs section.
+	 */
+	private MemoryConfiguration read(Reader reader, boolean readPacks) {
+		MemoryConfiguration settings = new MemoryConfiguration();
+		events = new Yaml().parse(reader).iterator();
+		depth = 0;
+
+		// Skip the stream and document start
+		next();
+
+		if (next() instanceof StreamEndEvent) {
+			// Empty file
+			return settings;
+		}
+		Event root = next();
+
+		if (root instanceof ScalarEvent && readScalar((ScalarEvent) root) == null) {
+			// Empty document
+			return settings;
+		} else if (!(root instanceof MappingStartEvent)) {
+			throw new IllegalArgumentException("Top level is not a map.");
+		}
+
+		for (Event event = next(); !(event instanceof MappingEndEvent); event = next()) {
+			String key = String.valueOf(readValue(event));
+			Event value = next();
+
+			if (PACKS.equals(key) && value instanceof MappingStartEvent) {
+				if (readPacks)
+					readPacks();
+				else
+					skip();
+			} else {
+				setValue(settings, key, readValue(value));
+			}
+		}
+		return settings;
+	}
+
+	/**
+	 * Invoked when a pack has been read.
+	 * @param pack - the pack, with every damage rule.
+	 * @param exact - the section with the unparsed exact rules of the pack, or NULL if it has none.
+	 */
+	protected abstract void onPack(RulePack pack, ConfigurationSection exact);
+
+	/**
+	 * Invoked when the rules of an item have been read, in document order.
+	 * <p>
+	 * By default, the rules are parsed into the pack at once. Subclasses may parse them on another thread, as long as
+	 * the items of each pack are parsed one at a time in the same order. No item stack is deserialized.
+	 * @param pack - the pack.
+	 * @param items - a section with the rules of the item.
+	 * @param key - the item ID.
+	 */
+	protected void onItem(RulePack pack, ConfigurationSection items, String key) {
+		pack.loadItem(items, key);
+	}
+
+	/**
+	 * Invoked when a pack could not be parsed. The rest of the pack is skipped.
+	 * @param pack - the name of the pack.
+	 * @param e - the error.
+	 */
+	protected abstract void onPackFailed(String pack, RuntimeException e);
+
+	/**
+	 * Read every pack in the packs section, after its mapping start event.
+	 */
+	private void readPacks() {
+		for (Event event = next(); !(event instanceof MappingEndEvent); event = next()) {
+			String name = String.valueOf(readValue(event));
+			Event value = next();
+			RulePack pack = new RulePack(name);
+			ConfigurationSection exact = null;
+
+			if (value instanceof MappingStartEvent) {
+				int level = depth;
+
+				try {
+					exact = readItems(pack);
+				} catch (RuntimeException e) {
+					// Skip the rest of the pack
+					while (depth >= level) {
+						next();
+					}
+					onPackFailed(name, e);
+					continue;
+				}
+			} else if (readValue(value) == null) {
+				// Not defined at all
+				continue;
+			}
+			onPack(pack, exact);
+		}
+	}
+
+	/**
+	 * Read every item in a pack, after its mapping start event.
+	 * @param pack - the pack to populate with every damage rule.
+	 * @return The section with the unparsed exact rules, or NULL if the pack has none.
+	 */
+	private ConfigurationSection readItems(RulePack pack) {
+		ConfigurationSection exact = null;
+
+		for (Event event = next(); !(event instanceof MappingEndEvent); event = next()) {
+			String key = String.valueOf(readValue(event));
+			Object value = readValue(next());
+
+			if (value != null) {
+				MemoryConfiguration items = new MemoryConfiguration();
+				setValue(items, key, value);
+
+				for (String item : items.getKeys(false)) {
+					// Exact rules are passed on as they were read
+					if (RulePack.EXACT.equals(item))
+						exact = items;
+					else
+						onItem(pack, items, item);
+				}
+			}
+		}
+		return exact;
+	}
+
+	/**
+	 * Load the exact rules that were passed to {@link #onPack(RulePack, ConfigurationSection)}.
+	 * <p>
+	 * This may be called from any thread, see {@link RulePack#load(ConfigurationSection)}.
+	 * @param pack - the pack to populate.
+	 * @param exact - the section with the unparsed exact rules.
+	 */
+	public static void loadExactRules(RulePack pack, ConfigurationSection exact) {
+		deserializeObjects(exact);
+		pack.loadItem(exact, RulePack.EXACT);
+	}
+
+	/**
+	 * Deserialize every serialized object in the given section with Bukkit's configuration serialization, like
+	 * Bukkit's YAML constructor.
+	 * @param section - the section to update.
+	 * @throws IllegalArgumentException If an object cannot be deserialized.
+	 */
+	public static void deserializeObjects(ConfigurationSection section) {
+		for (String key : section.getKeys(false)) {
+			Object value = section.get(key);
+
+			if (value instanceof ConfigurationSection) {
+				deserializeObjects((ConfigurationSection) value);
+			} else {
+				section.set(key, deserializeValue(value));
+			}
+		}
+	}
+
+	/**
+	 * Deserialize every serialized object in the given value, starting with the innermost objects.
+	 * @param value - the value.
+	 * @return The deserialized value.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object deserializeValue(Object value) {
+		if (value instanceof Map) {
+			Map<String, Object> map = Maps.newLinkedHashMap();
+
+			for (Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+				map.put(entry.getKey(), deserializeValue(entry.getValue()));
+			}
+			if (isSerialized(map)) {
+				Object result = ConfigurationSerialization.deserializeObject(map);
+
+				if (result == null)
+					throw new IllegalArgumentException("Cannot deserialize object " + map);
+				return result;
+			}
+			return map;
+		} else if (value instanceof List) {
+			List<Object> list = Lists.newArrayList();
+
+			for (Object element : (List<Object>) value) {
+				list.add(deserializeValue(element));
+			}
+			return list;
+		}
+		return value;
+	}
+
+	/**
+	 * Determine if the given map represents a serialized object.
+	 * @param map - the map.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	private static boolean isSerialized(Map<String, Object> map) {
+		return map.containsKey(ConfigurationSerialization.SERIALIZED_TYPE_KEY);
+	}
+
+	/**
+	 * Store a value in a configuration section, converting maps to sections like Bukkit's YAML loader.
+	 * <p>
+	 * Serialized objects are kept as maps.
+	 * @param section - the section.
+	 * @param key - the key.
+	 * @param value - the value.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void setValue(ConfigurationSection section, String key, Object value) {
+		if (value instanceof Map && !isSerialized((Map<String, Object>) value)) {
+			ConfigurationSection child = section.createSection(key);
+
+			for (Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+				setValue(child, entry.getKey(), entry.getValue());
+			}
+		} else {
+			section.set(key, value);
+		}
+	}
+
+	/**
+	 * Construct the value that begins with the given event.
+	 * @param event - the first event of the value.
+	 * @return The constructed value.
+	 */
+	private Object readValue(Event event) {
+		Object value;
+
+		if (event instanceof ScalarEvent) {
+			value = readScalar((ScalarEvent) event);
+		} else if (event instanceof MappingStartEvent) {
+			value = readMapping();
+		} else if (event instanceof SequenceStartEvent) {
+			List<Object> list = Lists.newArrayList();
+
+			for (Event element = next(); !(element instanceof SequenceEndEvent); element = next()) {
+				list.add(readValue(element));
+			}
+			value = list;
+		} else if (event instanceof AliasEvent) {
+			String anchor = ((AliasEvent) event).getAnchor();
+
+			if (!anchors.containsKey(anchor))
+				throw new IllegalArgumentException("Unsupported alias " + anchor);
+			return anchors.get(anchor);
+		} else {
+			throw new IllegalArgumentException("Unexpected event " + event);
+		}
+
+		// Remember anchored values
+		String anchor = ((NodeEvent) event).getAnchor();
+
+		if (anchor != null) {
+			anchors.put(anchor, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Construct a map after its mapping start event.
+	 * <p>
+	 * Maps with a serialized type key are not deserialized.
+	 * @return The map.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object readMapping() {
+		Map<String, Object> map = Maps.newLinkedHashMap();
+		List<Object> merged = Lists.newArrayList();
+
+		for (Event event = next(); !(event instanceof MappingEndEvent); event = next()) {
+			boolean merge = event instanceof ScalarEvent && Tag.MERGE.equals(resolveTag((ScalarEvent) event));
+			Object key = readValue(event);
+			Object value = readValue(next());
+
+			if (merge) {
+				merged.add(value);
+			} else {
+				map.put(String.valueOf(key), value);
+			}
+		}
+
+		// Explicit keys take precedence over merged keys
+		for (Object source : merged) {
+			for (Object element : source instanceof List ? (List<Object>) source : Lists.newArrayList(source)) {
+				if (!(element instanceof Map))
+					throw new IllegalArgumentException("Can only merge maps: " + element);
+
+				for (Entry<String, Object> entry : ((Map<String, Object>) element).entrySet()) {
+					if (!map.containsKey(entry.getKey()))
+						map.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Construct a scalar value.
+	 * @param event - the scalar event.
+	 * @return The constructed value.
+	 */
+	private Object readScalar(ScalarEvent event) {
+		Tag tag = resolveTag(event);
+		String value = event.getValue();
+
+		if (Tag.STR.equals(tag) || Tag.MERGE.equals(tag)) {
+			return value;
+		} else if (Tag.NULL.equals(tag)) {
+			return null;
+		} else if (Tag.BOOL.equals(tag)) {
+			return TRUE_VALUES.contains(value.toLowerCase());
+		} else if (Tag.INT.equals(tag) && DECIMAL.matcher(value).matches()) {
+			return parseInteger(value);
+		} else if (Tag.FLOAT.equals(tag)) {
+			try {
+				return Double.valueOf(value);
+			} catch (NumberFormatException e) {
+				// Infinity, underscores and so on
+			}
+		}
+		// Let SnakeYAML handle the rest
+		return scalarYaml.load(value);
+	}
+
+	/**
+	 * Determine the tag of a scalar, resolving the type of untagged scalars.
+	 * @param event - the scalar event.
+	 * @return The tag.
+	 */
+	private Tag resolveTag(ScalarEvent event) {
+		String tag = event.getTag();
+
+		if (tag == null || "!".equals(tag)) {
+			return resolver.resolve(NodeId.scalar, event.getValue(), event.getImplicit().canOmitTagInPlainScalar());
+		}
+		return new Tag(tag);
+	}
+
+	/**
+	 * Parse a decimal integer into the smallest of Integer, Long or BigInteger, like SnakeYAML.
+	 * @param value - the decimal integer.
+	 * @return The parsed number.
+	 */
+	private static Number parseInteger(String value) {
+		String digits = value.startsWith("+") ? value.substring(1) : value;
+
+		try {
+			return Integer.valueOf(digits);
+		} catch (NumberFormatException e) {
+			try {
+				return Long.valueOf(digits);
+			} catch (NumberFormatException e2) {
+				return new BigInteger(digits);
+			}
+		}
+	}
+
+	/**
+	 * Skip the rest of the current mapping or sequence, after its start event.
+	 */
+	private void skip() {
+		int level = depth;
+
+		while (depth >= level) {
+			next();
+		}
+	}
+
+	/**
+	 * Retrieve the next parser event.
+	 * @return The next event.
+	 */
+	private Event next() {
+		if (!events.hasNext())
+			throw new IllegalArgumentException("Unexpected end of document.");
+		Event event = events.next();
+
+		if (event instanceof CollectionStartEvent)
+			depth++;
+		else if (event instanceof MappingEndEvent || event instanceof SequenceEndEvent)
+			depth--;
+		return event;
+	}
+}
@@ -1,7 +1,9 @@
 package org.shininet.bukkit.itemrenamer.listeners;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.annotation.Nonnull;
 
@@ -9,6 +11,7 @@ import org.bukkit.Bukkit;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.Plugin;
 import org.shininet.bukkit.itemrenamer.AbstractRenameProcessor;
+import org.shininet.bukkit.itemrenamer.utils.NbtProbe;
 
 import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.ProtocolManager;
@@ -26,6 +29,11 @@ class AdvancedStackCleanerComponent extends BasicStackCleanerComponent {
 	 */
 	private static final MinecraftVersion REQUIRED_VERSION = new MinecraftVersion(1, 6, 1);
 	
+	/**
+	 * The size of the ID, count, damage and tag length of a serialized stack.
+	 */
+	private static final int HEADER_SIZE = 7;
+	
 	public AdvancedStackCleanerComponent(@Nonnull AbstractRenameProcessor processor, @Nonnull ProtocolManager manager) {
 		super(processor, manager);
 	}
@@ -62,7 +70,13 @@ class AdvancedStackCleanerComponent extends BasicStackCleanerComponent {
 			else if (event.getPacketType() == PacketType.Play.Client.BLOCK_PLACE)
 				input.skipBytes(10);
 			
-			ItemStack stack = SpigotSafeSerializer.getDefault().deserializeItemStack(input);
+			byte[] data = readRawStack(input);
+
+			// Only stacks with our stash need to be read again
+			if (data == null || !NbtProbe.containsRootKey(data, HEADER_SIZE, data.length - HEADER_SIZE, processor.getCompoundKey()))
+				return;
+			ItemStack stack = SpigotSafeSerializer.getDefault().deserializeItemStack(
+					new DataInputStream(new ByteArrayInputStream(data)));
 
 			// Now we can properly unprocess it
 			processor.unprocess(stack);
@@ -75,4 +89,27 @@ class AdvancedStackCleanerComponent extends BasicStackCleanerComponent {
 			throw new RuntimeException("Cannot undo NBT scrubber.", e);
 		}
 	}
+	
+	/**
+	 * Read the raw bytes of a serialized item stack with a tag.
+	 * @param input - the input stream.
+	 * @return The header and compressed tag, or NULL if the stack is empty or has no tag.
+	 * @throws IOException If the stack is truncated.
+	 */
+	private byte[] readRawStack(DataInputStream input) throws IOException {
+		short id = input.readShort();
+		
+		if (id < 0)
+			return null;
+		byte count = input.readByte();
+		short damage = input.readShort();
+		short tagLength = input.readShort();
+		
+		if (tagLength < 0)
+			return null;
+		byte[] data = new byte[HEADER_SIZE + tagLength];
+		ByteBuffer.wrap(data).putShort(id).put(count).putShort(damage).putShort(tagLength);
+		input.readFully(data, HEADER_SIZE, tagLength);
+		return data;
+	}
 }
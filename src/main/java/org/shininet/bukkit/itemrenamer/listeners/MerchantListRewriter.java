@@ -0,0 +1,241 @@
+package org.shininet.bukkit.itemrenamer.listeners;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.AbstractRenameProcessor;
+
+import com.comphenix.protocol.utility.StreamSerializer;
+import com.google.common.base.Objects;
+
+/**
+ * Represents a transformer that processes every item in a MC|TrList payload, without building a recipe list.
+ * <p>
+ * Item fields are deserialized, processed and serialized one recipe at a time, while every other field is copied
+ * straight through. Rendered lists are cached by rename pack and list content, so reopening an unchanged villager
+ * only costs a hash and a copy. The cache is cleared whenever the rules change.
+ */
+class MerchantListRewriter {
+	// Slot indices of each item in a recipe
+	private static final int MERCHANT_CRAFT_1 = 0;
+	private static final int MERCHANT_CRAFT_2 = 1;
+	private static final int MERCHANT_SELL_1 = 2;
+
+	// The container counter that precedes the list
+	private static final int HEADER_SIZE = 4;
+
+	// Used to write every list
+	private static final ThreadLocal<ReusableByteStream> LIST_BUFFER = ReusableByteStream.newThreadLocal();
+
+	/**
+	 * Represents a rename pack and the content of a recipe list.
+	 */
+	private static class CacheKey {
+		private final String pack;
+		private final byte[] data;
+		private final int offset;
+		private final int length;
+		private final int hash;
+
+		public CacheKey(String pack, byte[] data, int offset) {
+			this.pack = pack;
+			this.data = data;
+			this.offset = offset;
+			this.length = data.length - offset;
+
+			int result = pack != null ? pack.hashCode() : 0;
+
+			for (int i = offset; i < data.length; i++) {
+				result = 31 * result + data[i];
+			}
+			this.hash = result;
+		}
+
+		private CacheKey(String pack, byte[] data, int offset, int hash) {
+			this.pack = pack;
+			this.data = data;
+			this.offset = offset;
+			this.length = data.length - offset;
+			this.hash = hash;
+		}
+
+		/**
+		 * Retrieve a copy of this key that does not refer to the packet data.
+		 * @return The copy.
+		 */
+		public CacheKey copy() {
+			byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			return new CacheKey(pack, copy, 0, hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CacheKey))
+				return false;
+			CacheKey other = (CacheKey) obj;
+
+			if (hash != other.hash || length != other.length || !Objects.equal(pack, other.pack))
+				return false;
+
+			for (int i = 0; i < length; i++) {
+				if (data[offset + i] != other.data[other.offset + i])
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private final StreamSerializer serializer = SpigotSafeSerializer.getDefault();
+	private final AbstractRenameProcessor processor;
+
+	// Rendered lists, excluding the container counter
+	private final LinkedHashMap<CacheKey, byte[]> cache = new LinkedHashMap<CacheKey, byte[]>(16, 0.75f, true);
+	private final int maximumSize;
+	private final long maximumWeight;
+	private long weight;
+
+	// The rule version of every cached list
+	private long version = -1;
+
+	/**
+	 * Construct a new merchant list rewriter.
+	 * @param processor - the rename processor.
+	 * @param maximumSize - the maximum number of cached lists.
+	 * @param maximumWeight - the maximum total size of every cached list, in bytes.
+	 */
+	public MerchantListRewriter(AbstractRenameProcessor processor, int maximumSize, long maximumWeight) {
+		this.processor = processor;
+		this.maximumSize = maximumSize;
+		this.maximumWeight = maximumWeight;
+	}
+
+	/**
+	 * Process every item in the given MC|TrList payload.
+	 * @param player - the receiving player.
+	 * @param data - the payload.
+	 * @return The processed payload.
+	 * @throws IOException If the payload is malformed.
+	 */
+	public byte[] rewrite(Player player, byte[] data) throws IOException {
+		if (data.length < HEADER_SIZE)
+			throw new IOException("Merchant list is truncated.");
+		long version = processor.getRuleVersion();
+		CacheKey key = null;
+
+		// Other plugins may change the output at any time
+		if (processor.isCacheable()) {
+			key = new CacheKey(processor.getPack(player), data, HEADER_SIZE);
+			byte[] cached = get(version, key);
+
+			if (cached != null) {
+				byte[] result = new byte[HEADER_SIZE + cached.length];
+				System.arraycopy(data, 0, result, 0, HEADER_SIZE);
+				System.arraycopy(cached, 0, result, HEADER_SIZE, cached.length);
+				return result;
+			}
+		}
+
+		ReusableByteStream output = ReusableByteStream.acquire(LIST_BUFFER);
+
+		try {
+			writeList(player, data, output);
+			byte[] result = output.toByteArray();
+
+			if (key != null) {
+				put(version, key.copy(), output.copyRange(HEADER_SIZE, result.length));
+			}
+			return result;
+		} finally {
+			output.release();
+		}
+	}
+
+	/**
+	 * Process and write every recipe in the given payload.
+	 * @param player - the receiving player.
+	 * @param data - the payload.
+	 * @param output - the output buffer.
+	 * @throws IOException If the payload is malformed.
+	 */
+	private void writeList(Player player, byte[] data, ReusableByteStream output) throws IOException {
+		ByteArrayInputStream source = new ByteArrayInputStream(data);
+		DataInputStream input = new DataInputStream(source);
+		DataOutputStream dataOutput = output.getDataOutput();
+
+		// Copy the container counter and recipe count
+		input.readInt();
+		int size = input.readByte() & 255;
+		output.write(data, 0, HEADER_SIZE + 1);
+
+		for (int i = 0; i < size; i++) {
+			ItemStack[] stacks = new ItemStack[3];
+			stacks[MERCHANT_CRAFT_1] = serializer.deserializeItemStack(input);
+			stacks[MERCHANT_SELL_1] = serializer.deserializeItemStack(input);
+			boolean hasSecond = input.readBoolean();
+
+			if (hasSecond) {
+				stacks[MERCHANT_CRAFT_2] = serializer.deserializeItemStack(input);
+			}
+			boolean canUse = input.readBoolean();
+
+			// Process the whole recipe at once
+			processor.process(player, player.getOpenInventory(), stacks, 0);
+
+			serializer.serializeItemStack(dataOutput, stacks[MERCHANT_CRAFT_1]);
+			serializer.serializeItemStack(dataOutput, stacks[MERCHANT_SELL_1]);
+			dataOutput.writeBoolean(hasSecond);
+
+			if (hasSecond) {
+				serializer.serializeItemStack(dataOutput, stacks[MERCHANT_CRAFT_2]);
+			}
+			dataOutput.writeBoolean(canUse);
+		}
+
+		// Copy anything that follows the list
+		int position = data.length - source.available();
+		output.write(data, position, data.length - position);
+	}
+
+	private synchronized byte[] get(long version, CacheKey key) {
+		if (this.version != version) {
+			cache.clear();
+			weight = 0;
+			this.version = version;
+		}
+		return cache.get(key);
+	}
+
+	private synchronized void put(long version, CacheKey key, byte[] rendered) {
+		long entryWeight = key.length + rendered.length;
+
+		// Don't cache lists that would evict everything, or that may have been rendered with older rules
+		if (entryWeight > maximumWeight || maximumSize <= 0 || this.version != version)
+			return;
+		byte[] previous = cache.put(key, rendered);
+
+		if (previous != null)
+			weight -= key.length + previous.length;
+		weight += entryWeight;
+
+		// Evict the least recently used entries
+		for (Iterator<Entry<CacheKey, byte[]>> it = cache.entrySet().iterator();
+				it.hasNext() && (cache.size() > maximumSize || weight > maximumWeight); ) {
+			Entry<CacheKey, byte[]> evicted = it.next();
+			weight -= evicted.getKey().length + evicted.getValue().length;
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package org.shininet.bukkit.itemrenamer.listeners;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.shininet.bukkit.itemrenamer.PlayerPackCache;
+import org.shininet.bukkit.itemrenamer.component.AbstractBukkitComponent;
+
+/**
+ * Represents a Bukkit listener component that keeps the resolved rename pack of every player up to date.
+ */
+public class PackCacheComponent extends AbstractBukkitComponent {
+	private final PlayerPackCache packCache;
+
+	public PackCacheComponent(PlayerPackCache packCache) {
+		this.packCache = packCache;
+	}
+
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		packCache.refresh(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+		packCache.refresh(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		packCache.invalidate(event.getPlayer());
+	}
+
+	@Override
+	protected boolean requireBukkit() {
+		return true;
+	}
+
+	@Override
+	protected boolean requireEventBus() {
+		return false;
+	}
+}
@@ -0,0 +1,169 @@
+package org.shininet.bukkit.itemrenamer.listeners;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.entity.Player;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Represents an executor that runs the tasks of each player in submission order, using a bounded pool of worker threads.
+ * <p>
+ * Tasks that belong to different players may execute concurrently. The queue of a player is discarded
+ * once the player object has been garbage collected.
+ */
+public class PlayerSerialExecutor {
+	/**
+	 * Represents a queue of tasks that are executed one after another on the shared pool.
+	 */
+	private class SerialQueue implements Runnable {
+		private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+		private boolean active;
+
+		public void execute(Runnable task) {
+			synchronized (this) {
+				tasks.add(task);
+
+				// Already scheduled
+				if (active)
+					return;
+				active = true;
+			}
+			schedule();
+		}
+
+		@Override
+		public void run() {
+			Runnable task;
+
+			synchronized (this) {
+				task = tasks.poll();
+			}
+			try {
+				task.run();
+			} finally {
+				// Yield to other players between each task
+				synchronized (this) {
+					if (tasks.isEmpty()) {
+						active = false;
+						return;
+					}
+				}
+				schedule();
+			}
+		}
+
+		private void schedule() {
+			try {
+				pool.execute(this);
+			} catch (RejectedExecutionException e) {
+				// Shutting down - run the remaining tasks on the current thread
+				drain();
+			}
+		}
+
+		/**
+		 * Run every remaining task on the current thread, without scheduling them on the pool.
+		 * <p>
+		 * A task that fails does not prevent the tasks after it from running.
+		 */
+		private void drain() {
+			RuntimeException failure = null;
+
+			while (true) {
+				Runnable task;
+
+				synchronized (this) {
+					task = tasks.poll();
+
+					if (task == null) {
+						active = false;
+						break;
+					}
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+			// Report the first failure once every task has run
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	// The shared worker pool
+	private final ThreadPoolExecutor pool;
+
+	// The task queue of each player
+	private final ConcurrentMap<Player, SerialQueue> queues = new MapMaker().weakKeys().makeMap();
+
+	/**
+	 * Construct a new serial executor.
+	 * @param name - the name prefix of each worker thread.
+	 * @param threads - the maximum number of worker threads.
+	 */
+	public PlayerSerialExecutor(final String name, int threads) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be greater than zero.");
+
+		this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, name + " #" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Execute a task after every previously submitted task of the same player.
+	 * @param player - the player the task belongs to.
+	 * @param task - the task to execute.
+	 */
+	public void execute(Player player, Runnable task) {
+		SerialQueue queue = queues.get(player);
+
+		if (queue == null) {
+			SerialQueue created = new SerialQueue();
+			queue = queues.putIfAbsent(player, created);
+
+			if (queue == null) {
+				queue = created;
+			}
+		}
+		queue.execute(task);
+	}
+
+	/**
+	 * Stop accepting new tasks, and wait a short while for the current tasks to complete.
+	 * @param timeout - the maximum number of milliseconds to wait.
+	 * @return TRUE if every task completed, FALSE otherwise.
+	 */
+	public boolean shutdown(long timeout) {
+		pool.shutdown();
+		queues.clear();
+
+		try {
+			return pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
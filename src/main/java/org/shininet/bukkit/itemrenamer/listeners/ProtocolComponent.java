@@ -4,10 +4,6 @@
 
 package org.shininet.bukkit.itemrenamer.listeners;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.logging.Level;
@@ -25,14 +21,14 @@ import org.bukkit.plugin.Plugin;
 import org.shininet.bukkit.itemrenamer.AbstractRenameProcessor;
 import org.shininet.bukkit.itemrenamer.component.AbstractComponent;
 import org.shininet.bukkit.itemrenamer.component.Component;
-import org.shininet.bukkit.itemrenamer.merchant.MerchantRecipe;
-import org.shininet.bukkit.itemrenamer.merchant.MerchantRecipeList;
 import org.shininet.bukkit.itemrenamer.meta.CharCodeStore;
 import org.shininet.bukkit.itemrenamer.meta.CompoundStore;
 
 import com.comphenix.net.sf.cglib.proxy.Factory;
+import com.comphenix.protocol.AsynchronousManager;
 import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.async.AsyncListenerHandler;
 import com.comphenix.protocol.events.ListenerPriority;
 import com.comphenix.protocol.events.PacketAdapter;
 import com.comphenix.protocol.events.PacketContainer;
@@ -79,31 +75,60 @@ public class ProtocolComponent extends AbstractComponent {
 	private final AbstractRenameProcessor processor;
 	private final ProtocolManager protocolManager;
 
-	private static final int MERCHANT_CRAFT_1 = 0;
-	private static final int MERCHANT_CRAFT_2 = 1;
-	private static final int MERCHANT_SELL_1 = 2;
+	// Bounds of the rendered merchant list cache
+	private static final int MERCHANT_CACHE_SIZE = 256;
+	private static final long MERCHANT_CACHE_WEIGHT = 4 * 1024 * 1024;
+	
+	// Milliseconds to wait for asynchronous packets when unregistering
+	private static final long ASYNC_SHUTDOWN_TIMEOUT = 2000;
 	
 	private final Logger logger;
 	
 	// Current listeners
 	private List<PacketListener> listeners = Lists.newArrayList();
 
+	// Processes and caches merchant lists
+	private final MerchantListRewriter merchantRewriter;
+	
 	// Scrubbing creative override
 	private Component stackCleaner;
 	
 	// Spigot workaround
 	private Component spigotWorkaround;
 	
+	// Asynchronous processing
+	private final int asyncThreads;
+	private PlayerSerialExecutor executor;
+	private AsyncListenerHandler asyncHandler;
+	
 	// Possibly change to a builder
 	public ProtocolComponent(AbstractRenameProcessor processor, ProtocolManager protocolManager, Logger logger) {
+		this(processor, protocolManager, logger, 0);
+	}
+	
+	/**
+	 * Construct a new protocol component.
+	 * @param processor - the rename processor.
+	 * @param protocolManager - the current protocol manager.
+	 * @param logger - the logger to report errors to.
+	 * @param asyncThreads - the number of worker threads that process outgoing packets, or zero to process them synchronously.
+	 */
+	public ProtocolComponent(AbstractRenameProcessor processor, ProtocolManager protocolManager, Logger logger, int asyncThreads) {
 		this.processor = Preconditions.checkNotNull(processor, "processor cannot be NULL.");
 		this.protocolManager = Preconditions.checkNotNull(protocolManager, "protocolManager cannot be NULL");
 		this.logger = Preconditions.checkNotNull(logger, "logger cannot be NULL");
+		this.asyncThreads = asyncThreads;
+		this.merchantRewriter = new MerchantListRewriter(processor, MERCHANT_CACHE_SIZE, MERCHANT_CACHE_WEIGHT);
 	}
 	
 	@Override
 	protected void onRegistered(@Nonnull Plugin plugin, EventBus bus) {
-		listeners.add(registerCommonListeners(plugin));
+		if (asyncThreads > 0) {
+			listeners.add(registerEquipmentListener(plugin));
+			asyncHandler = registerAsyncListeners(plugin);
+		} else {
+			listeners.add(registerCommonListeners(plugin));
+		}
 		
 		// Prevent creative from overwriting the item stacks
 		if (PacketType.Legacy.Server.SET_CREATIVE_SLOT.isSupported()) {
@@ -115,7 +140,7 @@ public class ProtocolComponent extends AbstractComponent {
 		stackCleaner = registerStackCleaner(plugin);
 		
 		if (SpigotStackWriterComponent.isRequired()) {
-			spigotWorkaround = new SpigotStackWriterComponent(protocolManager);
+			spigotWorkaround = new SpigotStackWriterComponent(processor, protocolManager);
 			spigotWorkaround.register(plugin, bus);
 		}
 	}
@@ -127,6 +152,18 @@ public class ProtocolComponent extends AbstractComponent {
 		}
 		listeners.clear();
 		
+		if (executor != null) {
+			// Let the worker threads complete the queued packets
+			if (!executor.shutdown(ASYNC_SHUTDOWN_TIMEOUT)) {
+				logger.warning("Timed out waiting for asynchronous packet processing to complete.");
+			}
+			executor = null;
+		}
+		if (asyncHandler != null) {
+			protocolManager.getAsynchronousManager().unregisterAsyncHandler(asyncHandler);
+			asyncHandler = null;
+		}
+		
 		if (stackCleaner != null) {
 			stackCleaner.unregister(plugin);
 		}
@@ -142,25 +179,93 @@ public class ProtocolComponent extends AbstractComponent {
 					PacketType.Play.Server.CUSTOM_PAYLOAD, PacketType.Play.Server.ENTITY_EQUIPMENT) {
 			@Override
 			public void onPacketSending(PacketEvent event) {
-				PacketContainer packet = event.getPacket();
-				
 				// Skip temporary players
 				if (event.getPlayer() instanceof Factory)
 					return;
-				Player player = event.getPlayer();
-				PacketType type = event.getPacketType();
+				handleSending(event);
+			}
+		});
+	}
+	
+	/**
+	 * Register a synchronous listener for entity equipment, as it must look up entities.
+	 * @param plugin - the owner plugin.
+	 * @return The registered listener.
+	 */
+	private PacketListener registerEquipmentListener(Plugin plugin) {
+		return addListener(
+				new PacketAdapter(plugin, ListenerPriority.HIGH, PacketType.Play.Server.ENTITY_EQUIPMENT) {
+			@Override
+			public void onPacketSending(PacketEvent event) {
+				// Skip temporary players
+				if (event.getPlayer() instanceof Factory)
+					return;
+				handleSending(event);
+			}
+		});
+	}
+	
+	/**
+	 * Register an asynchronous listener that processes every window packet on a bounded pool of worker threads.
+	 * <p>
+	 * The packets of each player are processed one after another, and ProtocolLib transmits them in their original order.
+	 * @param plugin - the owner plugin.
+	 * @return The asynchronous listener handler.
+	 */
+	private AsyncListenerHandler registerAsyncListeners(Plugin plugin) {
+		final AsynchronousManager asyncManager = protocolManager.getAsynchronousManager();
+		final PlayerSerialExecutor serialExecutor = new PlayerSerialExecutor("ItemRenamer Worker", asyncThreads);
+		executor = serialExecutor;
+		
+		AsyncListenerHandler handler = asyncManager.registerAsyncHandler(
+				new PacketAdapter(plugin, ListenerPriority.HIGH, 
+					PacketType.Play.Server.SET_SLOT, PacketType.Play.Server.WINDOW_ITEMS, 
+					PacketType.Play.Server.CUSTOM_PAYLOAD) {
+			@Override
+			public void onPacketSending(final PacketEvent event) {
+				// Skip temporary players
+				if (event.getPlayer() instanceof Factory)
+					return;
+				
+				// Delay the transmission until we are done
+				event.getAsyncMarker().incrementProcessingDelay();
 				
-				if (type == PacketType.Play.Server.SET_SLOT) {
-					handleSlot(packet, player);
-				} else if (type == PacketType.Play.Server.WINDOW_ITEMS) {
-					handleWindowItems(packet, player);
-				} else if (type == PacketType.Play.Server.CUSTOM_PAYLOAD) {
-					handleCustomPayload(packet, player);
-				} else if (type == PacketType.Play.Server.ENTITY_EQUIPMENT) {
-					handleEntityEquipment(event, packet, player);
-				}	
+				serialExecutor.execute(event.getPlayer(), new Runnable() {
+					@Override
+					public void run() {
+						try {
+							handleSending(event);
+						} catch (Throwable e) {
+							logger.log(Level.WARNING, "Cannot process " + event.getPacketType() + " packet.", e);
+						} finally {
+							asyncManager.signalPacketTransmission(event);
+						}
+					}
+				});
 			}
 		});
+		handler.start();
+		return handler;
+	}
+	
+	/**
+	 * Process an outgoing packet that contains item stacks.
+	 * @param event - the packet event.
+	 */
+	private void handleSending(PacketEvent event) {
+		PacketContainer packet = event.getPacket();
+		Player player = event.getPlayer();
+		PacketType type = event.getPacketType();
+		
+		if (type == PacketType.Play.Server.SET_SLOT) {
+			handleSlot(packet, player);
+		} else if (type == PacketType.Play.Server.WINDOW_ITEMS) {
+			handleWindowItems(packet, player);
+		} else if (type == PacketType.Play.Server.CUSTOM_PAYLOAD) {
+			handleCustomPayload(packet, player);
+		} else if (type == PacketType.Play.Server.ENTITY_EQUIPMENT) {
+			handleEntityEquipment(event, packet, player);
+		}
 	}
 
 	private void handleEntityEquipment(PacketEvent event, PacketContainer packet, Player player) {
@@ -194,7 +299,7 @@ public class ProtocolComponent extends AbstractComponent {
 		// Make sure this is a merchant list
 		if (packetName.equals("MC|TrList")) {	
 			try {
-				byte[] result = processMerchantList(player, packet.getByteArrays().read(0));
+				byte[] result = merchantRewriter.rewrite(player, packet.getByteArrays().read(0));
 				packet.getByteArrays().write(0, result);
 				
 				// Not needed in 1.7.2
@@ -209,18 +314,22 @@ public class ProtocolComponent extends AbstractComponent {
 
 	private void handleWindowItems(PacketContainer packet, Player player) {
 		StructureModifier<ItemStack[]> smArray = packet.getItemArrayModifier();
+		int windowId = packet.getIntegers().read(0);
 		
 		for (int i = 0; i < smArray.size(); i++) {
-			processor.process(player, smArray.read(i));
+			// Identical or unchanged slots may be replaced by copies
+			smArray.write(i, processor.processWindow(player, windowId, smArray.read(i), 0));
 		}
 	}
 
 	private void handleSlot(PacketContainer packet, Player player) {
 		StructureModifier<ItemStack> sm = packet.getItemModifier();
+		int windowId = packet.getIntegers().read(0);
 		int slot = packet.getIntegers().read(1);
 		
 		for (int i = 0; i < sm.size(); i++) {
-			processor.process(player, sm.read(i), slot);
+			// Unchanged slots may be replaced by copies
+			sm.write(i, processor.processWindow(player, windowId, sm.read(i), slot));
 		}
 	}
 	
@@ -266,11 +375,17 @@ public class ProtocolComponent extends AbstractComponent {
 							return;
 						}
 
+						// Most names are plain text
+						if (!CharCodeStore.containsSegments(data)) {
+							return;
+						}
+						String text = new String(data);
+
 						// Read each segment without decompressing any data
 						CharCodeStore store = new CharCodeStore(CompoundStore.PLUGIN_ID, CharCodeStore.RawPayloadStore.INSTANCE);
-						store.parse(new String(data));
+						store.parse(text);
 
-						// Remove any stored information by our plugin
+						// Remove any stored information by our plugin - other segments are copied verbatim
 						if (store.hasData()) {
 							store.removeData(store.getPluginId());
 							packet.getByteArrays().write(0, store.toString().getBytes());
@@ -300,27 +415,4 @@ public class ProtocolComponent extends AbstractComponent {
 		protocolManager.addPacketListener(listener);
 		return listener;
 	}
-	
-	private byte[] processMerchantList(Player player, byte[] data) throws IOException {
-		ByteArrayInputStream source = new ByteArrayInputStream(data);
-		DataInputStream input = new DataInputStream(source);
-		
-		int containerCounter = input.readInt();
-		MerchantRecipeList list = MerchantRecipeList.readRecipiesFromStream(input);
-		
-		// Process each and every item stack
-		for (MerchantRecipe recipe : list) {
-			recipe.setItemToBuy(processor.process(player, recipe.getItemToBuy(), MERCHANT_CRAFT_1) );
-			recipe.setSecondItemToBuy(processor.process(player, recipe.getSecondItemToBuy(), MERCHANT_CRAFT_2) );
-			recipe.setItemToSell(processor.process(player, recipe.getItemToSell(), MERCHANT_SELL_1) );
-		}
-		
-		// Write the result back
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		DataOutputStream output = new DataOutputStream(buffer);
-		
-		output.writeInt(containerCounter);
-		list.writeRecipiesToStream(output);
-		return buffer.toByteArray();
-	}
 }
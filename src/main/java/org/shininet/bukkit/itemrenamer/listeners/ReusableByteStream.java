@@ -0,0 +1,85 @@
+package org.shininet.bukkit.itemrenamer.listeners;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+/**
+ * Represents a growable byte buffer that is reused by a single thread.
+ * <p>
+ * Retrieve the buffer of the current thread with {@link #acquire(ThreadLocal)}, and call {@link #release()} once done.
+ * Each user must have its own thread local, as a buffer cannot be acquired twice.
+ */
+class ReusableByteStream extends ByteArrayOutputStream {
+	private static final int INITIAL_SIZE = 1024;
+
+	// Buffers larger than this are not kept between packets
+	private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+	private final DataOutputStream dataOutput = new DataOutputStream(this);
+
+	private ReusableByteStream() {
+		super(INITIAL_SIZE);
+	}
+
+	/**
+	 * Construct a thread local that creates a buffer for each thread.
+	 * @return The thread local.
+	 */
+	public static ThreadLocal<ReusableByteStream> newThreadLocal() {
+		return new ThreadLocal<ReusableByteStream>() {
+			@Override
+			protected ReusableByteStream initialValue() {
+				return new ReusableByteStream();
+			}
+		};
+	}
+
+	/**
+	 * Retrieve the empty buffer of the current thread.
+	 * @param local - the thread local of the buffer.
+	 * @return The empty buffer.
+	 */
+	public static ReusableByteStream acquire(ThreadLocal<ReusableByteStream> local) {
+		ReusableByteStream stream = local.get();
+		stream.reset();
+		return stream;
+	}
+
+	/**
+	 * Release the memory of this buffer if it has grown too large.
+	 */
+	public void release() {
+		if (buf.length > MAX_RETAINED_SIZE) {
+			buf = new byte[INITIAL_SIZE];
+		}
+		reset();
+	}
+
+	/**
+	 * Retrieve a data output that writes to this buffer.
+	 * @return The data output.
+	 */
+	public DataOutputStream getDataOutput() {
+		return dataOutput;
+	}
+
+	/**
+	 * Retrieve the underlying array, which is only valid until the next write.
+	 * @return The array, where the first {@link #size()} bytes are valid.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Copy a range of the written bytes to a new array.
+	 * @param start - the index of the first byte.
+	 * @param end - the index after the last byte.
+	 * @return The copied bytes.
+	 */
+	public byte[] copyRange(int start, int end) {
+		byte[] result = new byte[end - start];
+		System.arraycopy(buf, start, result, 0, result.length);
+		return result;
+	}
+}
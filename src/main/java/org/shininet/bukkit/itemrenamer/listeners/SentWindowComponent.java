@@ -0,0 +1,47 @@
+package org.shininet.bukkit.itemrenamer.listeners;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.shininet.bukkit.itemrenamer.OpenViewIndex;
+import org.shininet.bukkit.itemrenamer.SentWindowCache;
+import org.shininet.bukkit.itemrenamer.component.AbstractBukkitComponent;
+
+/**
+ * Represents a Bukkit listener component that releases the sent windows of a player when they are no longer needed.
+ */
+public class SentWindowComponent extends AbstractBukkitComponent {
+	private final SentWindowCache sentWindows;
+	private final OpenViewIndex viewIndex;
+
+	public SentWindowComponent(SentWindowCache sentWindows, OpenViewIndex viewIndex) {
+		this.sentWindows = sentWindows;
+		this.viewIndex = viewIndex;
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onInventoryClose(InventoryCloseEvent event) {
+		if (event.getPlayer() instanceof Player) {
+			sentWindows.closeWindows((Player) event.getPlayer());
+			viewIndex.closeWindows((Player) event.getPlayer());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		sentWindows.invalidate(event.getPlayer());
+		viewIndex.invalidate(event.getPlayer());
+	}
+
+	@Override
+	protected boolean requireBukkit() {
+		return true;
+	}
+
+	@Override
+	protected boolean requireEventBus() {
+		return false;
+	}
+}
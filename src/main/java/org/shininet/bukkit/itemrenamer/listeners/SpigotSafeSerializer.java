@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 
 import org.bukkit.Material;
@@ -26,6 +27,12 @@ public class SpigotSafeSerializer extends StreamSerializer {
 	// Cache the outcome of the following test
 	private static volatile Boolean IS_REQUIRED;
 	
+	// Cache the outcome of the header test
+	private static volatile Boolean DIRECT_HEADER;
+	
+	// Used to write the header of a stack when it cannot be written directly
+	private static final ThreadLocal<ReusableByteStream> HEADER_BUFFER = ReusableByteStream.newThreadLocal();
+	
 	/**
 	 * Retrieve the default Spigot safe serializer.
 	 * @return The appropriate default serializer.
@@ -96,6 +103,39 @@ public class SpigotSafeSerializer extends StreamSerializer {
 		return result;
 	}
 	
+	/**
+	 * Determine if the header of an item stack (ID, count and damage) can be written directly.
+	 * <p>
+	 * This is the case if the default serializer writes the header as a short, byte and short, followed by the tag.
+	 * @return TRUE if it can, FALSE otherwise.
+	 */
+	public static boolean hasDirectHeader() {
+		Boolean result = DIRECT_HEADER;
+		
+		if (result != null) {
+			return result;
+		}
+		
+		try {
+			ItemStack stack = new ItemStack(Material.IRON_AXE, 3, (short) 7);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			DataOutputStream expectedOutput = new DataOutputStream(expected);
+			
+			// The header followed by a missing tag
+			writeHeader(expectedOutput, stack);
+			expectedOutput.writeShort(-1);
+			new StreamSerializer().serializeItemStack(new DataOutputStream(actual), stack);
+			
+			result = Arrays.equals(expected.toByteArray(), actual.toByteArray());
+			DIRECT_HEADER = result;
+			return result;
+			
+		} catch (IOException e) {
+			throw new RuntimeException("Unexpected error during header test.", e);
+		}
+	}
+	
 	@Override
 	public void serializeItemStack(DataOutputStream output, ItemStack stack) throws IOException {
 		// Speed things up if the workaround is not required
@@ -106,16 +146,23 @@ public class SpigotSafeSerializer extends StreamSerializer {
 		NbtCompound tag = stack != null && stack.getType() != Material.AIR ? 
 				NbtFactory.asCompound(NbtFactory.fromItemTag(stack)) : null;
 
-		// Note that we can't write the stack data directly, as 1.8 switched to sending a 
-		// item name instead of an item ID. 
 		if (tag != null) {
-			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			DataOutputStream dataStream = new DataOutputStream(byteStream);
-			ItemStack withoutTag = new ItemStack(stack.getType(), stack.getAmount(), stack.getDurability());
-			
-			// This will write the stack as normal, without its tag compound and the tag field length
-			super.serializeItemStack(dataStream, withoutTag);
-			output.write(byteStream.toByteArray(), 0, byteStream.size() - 2);
+			if (hasDirectHeader()) {
+				writeHeader(output, stack);
+			} else {
+				// Note that we can't always write the stack data directly, as 1.8 switched to sending a 
+				// item name instead of an item ID. 
+				ReusableByteStream buffer = ReusableByteStream.acquire(HEADER_BUFFER);
+				ItemStack withoutTag = new ItemStack(stack.getType(), stack.getAmount(), stack.getDurability());
+				
+				try {
+					// This will write the stack as normal, without its tag compound and the tag field length
+					super.serializeItemStack(buffer.getDataOutput(), withoutTag);
+					output.write(buffer.getBuffer(), 0, buffer.size() - 2);
+				} finally {
+					buffer.release();
+				}
+			}
 			serializeCompound(output, tag);
 
 		} else {
@@ -123,4 +170,16 @@ public class SpigotSafeSerializer extends StreamSerializer {
 			super.serializeItemStack(output, stack);
 		}
 	}
+	
+	/**
+	 * Write the ID, count and damage of an item stack.
+	 * @param output - the output.
+	 * @param stack - the item stack.
+	 * @throws IOException If the output failed.
+	 */
+	private static void writeHeader(DataOutputStream output, ItemStack stack) throws IOException {
+		output.writeShort(stack.getTypeId());
+		output.writeByte(stack.getAmount());
+		output.writeShort(stack.getDurability());
+	}
 }
@@ -1,13 +1,17 @@
 package org.shininet.bukkit.itemrenamer.listeners;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
+import org.bukkit.Material;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.Plugin;
+import org.shininet.bukkit.itemrenamer.AbstractRenameProcessor;
 import org.shininet.bukkit.itemrenamer.component.AbstractComponent;
+import org.shininet.bukkit.itemrenamer.utils.StackUtils;
+import org.shininet.bukkit.itemrenamer.wrappers.StackFingerprint;
 
 import static com.comphenix.protocol.PacketType.Play.Server.*;
 
@@ -30,13 +34,27 @@ import com.google.common.eventbus.EventBus;
  * @author Kristian
  */
 public class SpigotStackWriterComponent extends AbstractComponent {	
+	// The offset of the count in a serialized stack with a direct header
+	private static final int COUNT_OFFSET = 2;
+	
+	// Maximum number of serialized stacks to remember
+	private static final int STACK_CACHE_SIZE = 512;
+	
+	// Used to write every packet
+	private static final ThreadLocal<ReusableByteStream> PACKET_BUFFER = ReusableByteStream.newThreadLocal();
+	
 	private StreamSerializer serializer = SpigotSafeSerializer.getDefault();
 	
+	private AbstractRenameProcessor processor;
 	private ProtocolManager protocolManager;
 	private PacketListener listener;
 	
+	// Previously serialized stacks
+	private final SerializedStackCache stackCache = new SerializedStackCache(STACK_CACHE_SIZE);
+	
 	// Possibly change to a builder
-	public SpigotStackWriterComponent(ProtocolManager protocolManager) {
+	public SpigotStackWriterComponent(AbstractRenameProcessor processor, ProtocolManager protocolManager) {
+		this.processor = processor;
 		this.protocolManager = protocolManager;
 	}
 	
@@ -105,24 +123,63 @@ public class SpigotStackWriterComponent extends AbstractComponent {
 	}
 	
 	private byte[] writeItemPacket(PacketContainer packet, int headerLength, byte[] prefix) throws FieldAccessException, IOException {
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ReusableByteStream output = ReusableByteStream.acquire(PACKET_BUFFER);
 		
-		output.write(prefix, 0, headerLength);
-		serializer.serializeItemStack(new DataOutputStream(output), packet.getItemModifier().read(0));
-		return output.toByteArray();
+		try {
+			output.write(prefix, 0, headerLength);
+			writeStack(output, packet.getItemModifier().read(0));
+			return output.toByteArray();
+		} finally {
+			output.release();
+		}
 	}
 	
 	private byte[] writeItemArrayPacket(PacketContainer packet, int headerLength, byte[] prefix) throws FieldAccessException, IOException {
-		ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-		DataOutputStream dataOutput = new DataOutputStream(byteOutput);
+		ReusableByteStream output = ReusableByteStream.acquire(PACKET_BUFFER);
 		
-		dataOutput.write(prefix, 0, headerLength);
+		try {
+			output.write(prefix, 0, headerLength);
+			
+			// Safely write each item stack
+			for (ItemStack stack : packet.getItemArrayModifier().read(0)) {
+				writeStack(output, stack);
+			}
+			return output.toByteArray();
+		} finally {
+			output.release();
+		}
+	}
+	
+	/**
+	 * Write an item stack, reusing the serialized form of an identical stack if possible.
+	 * @param output - the packet buffer.
+	 * @param stack - the stack to write.
+	 * @throws IOException If the stack could not be serialized.
+	 */
+	private void writeStack(ReusableByteStream output, ItemStack stack) throws IOException {
+		// The count can only be patched if we know where it is
+		if (stack == null || stack.getType() == Material.AIR || !SpigotSafeSerializer.hasDirectHeader()) {
+			serializer.serializeItemStack(output.getDataOutput(), stack);
+			return;
+		}
+		// A missing and an empty tag share a fingerprint, but not their serialized form
+		if (!StackUtils.getCraftItemStack(stack).hasItemMeta()) {
+			serializer.serializeItemStack(output.getDataOutput(), stack);
+			return;
+		}
+		StackFingerprint fingerprint = StackFingerprint.fromStack(stack);
+		byte[] cached = stackCache.get(fingerprint);
 		
-		// Safely write each item stack
-		for (ItemStack stack : packet.getItemArrayModifier().read(0)) {
-			serializer.serializeItemStack(dataOutput, stack);
+		if (cached != null) {
+			output.write(cached, 0, COUNT_OFFSET);
+			output.write(stack.getAmount());
+			output.write(cached, COUNT_OFFSET + 1, cached.length - COUNT_OFFSET - 1);
+		} else {
+			int start = output.size();
+			
+			serializer.serializeItemStack(output.getDataOutput(), stack);
+			stackCache.put(fingerprint.copy(), output.copyRange(start, output.size()));
 		}
-		return byteOutput.toByteArray();
 	}
 	
 	@Override
@@ -141,6 +198,9 @@ public class SpigotStackWriterComponent extends AbstractComponent {
 		@Override
 		public byte[] handle(PacketEvent event, byte[] buffer) {
 			try {
+				// Serialized stacks from older rules are unlikely to be sent again
+				stackCache.validate(processor.getRuleVersion());
+				
 				// Modify the byte array here
 				PacketType type = event.getPacketType();
 				int idSize = event.getNetworkMarker().requireOutputHeader() ? 
@@ -160,6 +220,58 @@ public class SpigotStackWriterComponent extends AbstractComponent {
 		}
 	}
 	
+	/**
+	 * Represents a bounded cache of serialized item stacks, keyed by their fingerprint.
+	 * <p>
+	 * The least recently used stacks are evicted first, and every stack is discarded when the rules change.
+	 */
+	private static class SerializedStackCache {
+		private final LinkedHashMap<StackFingerprint, byte[]> entries = new LinkedHashMap<StackFingerprint, byte[]>(16, 0.75f, true);
+		private final int maximumSize;
+		
+		// The rule version of every entry
+		private long version = -1;
+		
+		public SerializedStackCache(int maximumSize) {
+			this.maximumSize = maximumSize;
+		}
+		
+		/**
+		 * Clear the cache if the entries were serialized under a different rule version.
+		 * @param version - the current rule version.
+		 */
+		public synchronized void validate(long version) {
+			if (this.version != version) {
+				entries.clear();
+				this.version = version;
+			}
+		}
+		
+		/**
+		 * Retrieve the serialized form of a stack.
+		 * @param fingerprint - the fingerprint of the stack.
+		 * @return The serialized stack, or NULL if not found.
+		 */
+		public synchronized byte[] get(StackFingerprint fingerprint) {
+			return entries.get(fingerprint);
+		}
+		
+		/**
+		 * Store the serialized form of a stack.
+		 * @param fingerprint - an immutable fingerprint of the stack.
+		 * @param data - the serialized stack.
+		 */
+		public synchronized void put(StackFingerprint fingerprint, byte[] data) {
+			entries.put(fingerprint, data);
+			
+			// Evict the least recently used entries
+			for (Iterator<byte[]> it = entries.values().iterator(); it.hasNext() && entries.size() > maximumSize; ) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+	
 	/**
 	 * Marker interface used to indicate that an output adapter is a Spigot workaround adapter.
 	 * <p >
@@ -6,6 +6,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -39,7 +40,27 @@ public class CharCodeStore {
 	private static String SEGMENT_DELIMITER = ChatColor.COLOR_CHAR + "" + SEGMENT_DELIMITER_CHAR;;
 	
 	private static int HEADER_SIZE = 8; // bytes
-	
+
+	// The color character in the default character set
+	private static final byte[] COLOR_CHAR_BYTES = String.valueOf(ChatColor.COLOR_CHAR).getBytes();
+
+	// The value of every Base 64 character, or -1 if it is invalid
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(BASE64_VALUES, (byte) -1);
+
+		for (int i = 0; i < 26; i++) {
+			BASE64_VALUES['A' + i] = (byte) i;
+			BASE64_VALUES['a' + i] = (byte) (26 + i);
+		}
+		for (int i = 0; i < 10; i++) {
+			BASE64_VALUES['0' + i] = (byte) (52 + i);
+		}
+		BASE64_VALUES['+'] = 62;
+		BASE64_VALUES['/'] = 63;
+	}
+
 	/*
 	 * Format:
 	 *  Base 64-encoded byte array, interlaced with  so that its skipped by the Minecraft client. 
@@ -96,31 +117,48 @@ public class CharCodeStore {
 	public class DataSegment extends Segment {
 		private final int pluginId;
 		private byte[] data;
-		
+
+		// The text this segment was decoded from, or NULL if it must be encoded
+		private String encoded;
+
 		/**
 		 * Construct a new data segment.
 		 * @param pluginId - the owner plugin ID.
 		 * @param data - the data to store.
 		 */
 		private DataSegment(int pluginId, byte[] data) {
+			this(pluginId, data, null);
+		}
+
+		/**
+		 * Construct a new data segment that was decoded from the given text.
+		 * @param pluginId - the owner plugin ID.
+		 * @param data - the data to store.
+		 * @param encoded - the encoded text, excluding the delimiters.
+		 */
+		private DataSegment(int pluginId, byte[] data, String encoded) {
 			this.pluginId = pluginId;
 			this.data = data;
+			this.encoded = encoded;
 		}
 
 		/**
 		 * Retrieve the data stored in this segment.
+		 * <p>
+		 * Changes to the returned array are only saved by {@link #setBytes(byte[])}.
 		 * @return The data stored in the segment.
 		 */
 		public byte[] getBytes() {
 			return data;
 		}
-		
+
 		/**
 		 * Set the data stored in this segment.
 		 * @param data - the new data to be stored in the segment.
 		 */
 		public void setBytes(byte[] data) {
 			this.data = data;
+			this.encoded = null;
 		}
 		
 		/**
@@ -137,7 +175,7 @@ public class CharCodeStore {
 		 */
 		public void setString(String data) {
 			Preconditions.checkNotNull(data, "data cannot be NULL.");
-			this.data = data.getBytes(Charsets.UTF_8);
+			setBytes(data.getBytes(Charsets.UTF_8));
 		}
 		
 		/**
@@ -157,8 +195,12 @@ public class CharCodeStore {
 		public void pipeTo(StringBuilder output, Segment previous) {
 			if (!(previous != null && previous.needDelimiter()))
 				output.append(SEGMENT_DELIMITER);
-			
-			encode(output, pluginId, data);
+
+			// Reuse the original text if the data is unchanged
+			if (encoded != null)
+				output.append(encoded);
+			else
+				encode(output, pluginId, data);
 			output.append(SEGMENT_DELIMITER);
 		}
 	}
@@ -251,8 +293,11 @@ public class CharCodeStore {
 	protected List<Segment> segments = Lists.newArrayList();
 	protected Map<Integer, DataSegment> lookup = Maps.newHashMap();
 	
-	protected PayloadStore payloadStore = CompressedPayloadStore.INSTANCE;
-		
+	protected PayloadStore payloadStore = PooledPayloadStore.INSTANCE;
+
+	// Reused when decoding each candidate segment
+	private byte[] decodeBuffer = new byte[64];
+
 	/**
 	 * Construct a new encoder with the given plugin ID. 
 	 * <p>
@@ -281,13 +326,63 @@ public class CharCodeStore {
 	 * @return This store, for chaining.
 	 */
 	public CharCodeStore parse(String text) {
+		return parse((CharSequence) text);
+	}
+
+	/**
+	 * Parse the given text for segments.
+	 * @param text - the text to parse.
+	 * @return This store, for chaining.
+	 */
+	public CharCodeStore parse(CharSequence text) {
+		if (!containsSegments(text)) {
+			// Plain text
+			segments = Lists.newArrayList();
+
+			if (text.length() > 0)
+				segments.add(new TextSegment(text.toString()));
+			return this;
+		}
 		segments = decode(text);
-		
+
 		for (DataSegment segment : getDataSegments()) {
 			lookup.put(segment.getPluginId(), segment);
 		}
 		return this;
 	}
+
+	/**
+	 * Determine if the given text may contain any data segments, without allocating any memory.
+	 * <p>
+	 * Text without a segment delimiter, or a trailing color character, never contains a data segment.
+	 * @param text - the text to check.
+	 * @return TRUE if it may contain a data segment, FALSE otherwise.
+	 */
+	public static boolean containsSegments(CharSequence text) {
+		int last = text.length() - 1;
+
+		for (int i = 0; i <= last; i++) {
+			if (text.charAt(i) == ChatColor.COLOR_CHAR) {
+				// A truncated segment, or the delimiter
+				if (i == last || text.charAt(i + 1) == SEGMENT_DELIMITER_CHAR)
+					return true;
+				// Skip the color code
+				i++;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if text in the default character set may contain any data segments, without decoding it.
+	 * <p>
+	 * Text without a color character never contains a data segment.
+	 * @param data - the encoded text.
+	 * @return TRUE if it may contain a data segment, FALSE otherwise.
+	 */
+	public static boolean containsSegments(byte[] data) {
+		return Bytes.indexOf(data, COLOR_CHAR_BYTES) >= 0;
+	}
 	
 	/**
 	 * Clear the current store for data segments.
@@ -457,111 +552,152 @@ public class CharCodeStore {
 	}
 	
 	/**
-	 * Extract and remove every character from the builder.
-	 * @param input - the string builder.
-	 * @return The characters that were removed from the builder.
-	 */
-	private char[] pullChars(StringBuilder input) {
-		char[] result = input.toString().toCharArray();
-		
-		input.setLength(0);
-		return result;
-	}
-	
-	/**
-	 * Decode every encoded byte arrays.
+	 * Decode every encoded byte arrays in a single pass.
+	 * <p>
+	 * Text segments and unmodified data segments refer to the original text, so the output of {@link #toString()} is
+	 * identical to the input unless a segment is changed.
 	 * @param data - the data as text.
-	 * @param onlyOurs - if segments by other plugins should be excluded.
 	 * @return Decoded blocks of data.
 	 */
-	private List<Segment> decode(String data) {
+	private List<Segment> decode(CharSequence data) {
 		List<Segment> output = Lists.newArrayList();
-		StringBuilder dataCandidate = new StringBuilder();
-		StringBuilder textCandidate = new StringBuilder();
-		StringBuilder missingText = new StringBuilder();
-		char[] characters = data.toCharArray();
-
-		for (int i = 0; i < characters.length; i++) {
-			if (characters[i] == ChatColor.COLOR_CHAR) {
-				// This is probably caused by a substring() - assume we got the end anyways
-				boolean missingData = (i >= characters.length - 1);
-				char current = missingData ? SEGMENT_DELIMITER_CHAR : characters[++i];
-				
-				// Build segment until the end
-				if (current == SEGMENT_DELIMITER_CHAR) {
-					DataSegment decoded = decodeDataSegment(dataCandidate.toString());
-					
-					// Add it to the output
-					if (decoded != null) {
-						if (textCandidate.length() > 0) {
-							output.add(new TextSegment(textCandidate.toString()));
-							textCandidate.setLength(0);
-						}
-						
-						dataCandidate.setLength(0);
-						output.add(decoded);
-						continue;
-					} else {
-						// Don't miss this character
-						missingText.append(SEGMENT_DELIMITER_CHAR);
-					}
-					
-				} else {
-					dataCandidate.append(current);
-					continue;
-				}
+		int length = data.length();
+
+		// Start of the pending text, and of the current run of color codes
+		int textStart = 0;
+		int runStart = -1;
+
+		for (int i = 0; i < length; ) {
+			if (data.charAt(i) != ChatColor.COLOR_CHAR) {
+				runStart = -1;
+				i++;
+				continue;
 			}
-			
-			// Unexpected end - must be a text segment then
-			if (dataCandidate.length() > 0) 
-				putEncoded(textCandidate, pullChars(dataCandidate));
-			if (missingText.length() > 0)
-				textCandidate.append(pullChars(missingText));
-			textCandidate.append(characters[i]);
+
+			// This is probably caused by a substring() - assume we got the end anyways
+			boolean missingData = (i >= length - 1);
+
+			if (!missingData && data.charAt(i + 1) != SEGMENT_DELIMITER_CHAR) {
+				// Part of a candidate segment
+				if (runStart < 0)
+					runStart = i;
+				i += 2;
+				continue;
+			}
+
+			// End of the candidate segment
+			int end = missingData ? length : i + 2;
+			DataSegment decoded = runStart >= 0 ? decodeDataSegment(data, runStart, i) : null;
+
+			if (decoded != null) {
+				if (runStart > textStart)
+					output.add(new TextSegment(data.subSequence(textStart, runStart).toString()));
+				output.add(decoded);
+				textStart = end;
+			}
+			runStart = -1;
+			i = end;
 		}
 
 		// Leftovers
-		if (dataCandidate.length() > 0) 
-			putEncoded(textCandidate, pullChars(dataCandidate));
-		if (textCandidate.length() > 0)
-			output.add(new TextSegment(textCandidate.toString()));
+		if (textStart < length)
+			output.add(new TextSegment(data.subSequence(textStart, length).toString()));
 		return output;
 	}
 
 	/**
-	 * Decode a single segment from a string. 
+	 * Decode a single segment from a run of color codes.
 	 * <p>
 	 * Segment delimiter must be excluded.
-	 * @param data - the segment.
-	 * @return The decoded segment.
+	 * @param data - the text.
+	 * @param start - the index of the first color character in the segment.
+	 * @param end - the index after the last color code in the segment.
+	 * @return The decoded segment, or NULL if this is not a data segment.
 	 */
-	private DataSegment decodeDataSegment(String data) {
-		// Correct missing padding
-		while ((data.length() % 4) != 0) {
-			data += "A";
-		}
-		
-		byte[] match = Shorts.toByteArray(MAGIC_CODE);
-		byte[] decoded = Base64Coder.decode(data);
-		DataInputStream input = new DataInputStream(new ByteArrayInputStream(decoded));
-		
+	private DataSegment decodeDataSegment(CharSequence data, int start, int end) {
+		int length = decodeBase64(data, start, end);
+
+		if (length < 0)
+			return null;
+		byte[] buffer = decodeBuffer;
+		byte high = (byte) (MAGIC_CODE >> 8);
+		byte low = (byte) MAGIC_CODE;
+
 		// We can trust available in ByteArrayInputStreams
 		try {
 			// May have to skip a lot of crap
-			while (input.available() >= HEADER_SIZE) {
-				if (input.readByte() != match[0] || input.readByte() != match[1])
+			for (int position = 0; length - position >= HEADER_SIZE; ) {
+				if (buffer[position++] != high || buffer[position++] != low)
 					continue;
-				
+				DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer, position, length - position));
+
 				int uncompressed = input.readShort();
 				int pluginId = input.readInt();
 				byte[] payload = payloadStore.getPayload(uncompressed, input);
-				
+
 				input.close();
-				return new DataSegment(pluginId, payload);
+				return new DataSegment(pluginId, payload, data.subSequence(start, end).toString());
 			}
 			return null;
 		} catch (IOException e) {
 			throw new RuntimeException("Unexpected IOException.", e);
 		}
 	}
+
+	/**
+	 * Decode the Base 64 characters in a run of color codes into the decode buffer.
+	 * <p>
+	 * Missing padding is treated as zero bits.
+	 * @param data - the text.
+	 * @param start - the index of the first color character.
+	 * @param end - the index after the last color code.
+	 * @return The number of decoded bytes, or -1 if the run contains invalid characters.
+	 */
+	private int decodeBase64(CharSequence data, int start, int end) {
+		int count = (end - start) / 2;
+		int padded = (count + 3) / 4 * 4;
+		int inputLength = padded;
+
+		// Explicit padding is only allowed if no padding is missing
+		if (count == padded) {
+			while (inputLength > 0 && data.charAt(start + 2 * inputLength - 1) == '=')
+				inputLength--;
+		}
+		int outputLength = inputLength * 3 / 4;
+
+		if (decodeBuffer.length < outputLength)
+			decodeBuffer = new byte[Math.max(outputLength, decodeBuffer.length * 2)];
+
+		for (int in = 0, out = 0; in < inputLength; in += 4) {
+			int b0 = base64Value(data, start, count, in);
+			int b1 = base64Value(data, start, count, in + 1);
+			int b2 = in + 2 < inputLength ? base64Value(data, start, count, in + 2) : 0;
+			int b3 = in + 3 < inputLength ? base64Value(data, start, count, in + 3) : 0;
+
+			if ((b0 | b1 | b2 | b3) < 0)
+				return -1;
+			decodeBuffer[out++] = (byte) ((b0 << 2) | (b1 >>> 4));
+
+			if (out < outputLength)
+				decodeBuffer[out++] = (byte) (((b1 & 0xF) << 4) | (b2 >>> 2));
+			if (out < outputLength)
+				decodeBuffer[out++] = (byte) (((b2 & 0x3) << 6) | b3);
+		}
+		return outputLength;
+	}
+
+	/**
+	 * Retrieve the value of a Base 64 character in a run of color codes.
+	 * @param data - the text.
+	 * @param start - the index of the first color character.
+	 * @param count - the number of color codes in the run.
+	 * @param index - the index of the color code.
+	 * @return The value, zero for missing padding, or -1 if the character is invalid.
+	 */
+	private static int base64Value(CharSequence data, int start, int count, int index) {
+		if (index >= count)
+			return 0;
+		char character = data.charAt(start + 2 * index + 1);
+		return character < BASE64_VALUES.length ? BASE64_VALUES[character] : -1;
+	}
 }
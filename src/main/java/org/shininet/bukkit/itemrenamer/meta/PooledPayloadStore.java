@@ -0,0 +1,247 @@
+package org.shininet.bukkit.itemrenamer.meta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.shininet.bukkit.itemrenamer.meta.CharCodeStore.PayloadStore;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Yields access to compressed payload, reusing a Deflater and Inflater per thread and an optional preset dictionary.
+ * <p>
+ * Each payload begins with a flag byte. Payloads below the size threshold, or that do not compress, are stored
+ * uncompressed after a {@link #RAW_FLAG}. Otherwise, the payload is a zlib stream, which never begins with this flag.
+ * Payloads written by {@link CharCodeStore.CompressedPayloadStore} are also zlib streams, so they can still be read.
+ * <p>
+ * The dictionary of a store must never change, as payloads compressed with it cannot be read without it.
+ */
+public class PooledPayloadStore implements PayloadStore {
+	/**
+	 * Marks an uncompressed payload. Not a valid zlib compression method.
+	 */
+	public static final int RAW_FLAG = 0;
+
+	/**
+	 * A store with a dictionary of the tags ItemRenamer saves, and a threshold of 32 bytes.
+	 */
+	public static final PooledPayloadStore INSTANCE = new PooledPayloadStore(createNbtDictionary(), 32);
+
+	// Tag types in the binary NBT format
+	private static final int TAG_SHORT = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_STRING = 8;
+	private static final int TAG_LIST = 9;
+	private static final int TAG_COMPOUND = 10;
+
+	// Native zlib contexts are expensive - reuse one per thread
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_COMPRESSION);
+		}
+	};
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private final byte[] dictionary;
+	private final int dictionaryId;
+	private final int threshold;
+
+	/**
+	 * Construct a new payload store.
+	 * @param dictionary - the preset dictionary, or NULL to compress without one.
+	 * @param threshold - the smallest payload, in bytes, that will be compressed.
+	 */
+	public PooledPayloadStore(byte[] dictionary, int threshold) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("Threshold cannot be negative.");
+		this.dictionary = dictionary != null ? dictionary.clone() : null;
+		this.dictionaryId = dictionary != null ? computeAdler(dictionary) : -1;
+		this.threshold = threshold;
+	}
+
+	@Override
+	public OutputStream getPayloadOutputStream(final OutputStream storage) {
+		return new ByteArrayOutputStream() {
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					writePayload(buf, count, storage);
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream getPayloadInputStream(InputStream input) {
+		try {
+			return new ByteArrayInputStream(readPayload(ByteStreams.toByteArray(input), -1));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot decompress payload.", e);
+		}
+	}
+
+	@Override
+	public byte[] getPayload(int uncompressedSize, DataInputStream input) throws IOException {
+		// We can trust available in ByteArrayInputStreams
+		byte[] stored = new byte[input.available()];
+		ByteStreams.readFully(input, stored);
+		return readPayload(stored, uncompressedSize);
+	}
+
+	/**
+	 * Compress and write the given payload.
+	 * @param data - array containing the payload.
+	 * @param length - the length of the payload.
+	 * @param storage - the output.
+	 * @throws IOException If the output failed.
+	 */
+	private void writePayload(byte[] data, int length, OutputStream storage) throws IOException {
+		if (length >= threshold) {
+			Deflater deflater = DEFLATER.get();
+			byte[] compressed = new byte[length + 64];
+			int compressedLength = 0;
+
+			deflater.reset();
+
+			if (dictionary != null)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+
+			// Stop as soon as compression does not pay off
+			while (!deflater.finished() && compressedLength < length) {
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			}
+
+			if (deflater.finished() && compressedLength < length) {
+				storage.write(compressed, 0, compressedLength);
+				storage.close();
+				return;
+			}
+		}
+		storage.write(RAW_FLAG);
+		storage.write(data, 0, length);
+		storage.close();
+	}
+
+	/**
+	 * Read a stored payload.
+	 * @param stored - the stored payload, and possibly trailing padding.
+	 * @param uncompressedSize - the uncompressed size, or -1 if it is unknown.
+	 * @return The payload.
+	 * @throws IOException If the payload is corrupt or was compressed with another dictionary.
+	 */
+	private byte[] readPayload(byte[] stored, int uncompressedSize) throws IOException {
+		if (stored.length == 0)
+			throw new EOFException("Missing payload.");
+
+		if (stored[0] == RAW_FLAG) {
+			int length = stored.length - 1;
+
+			// Only read as much as we can
+			byte[] result = new byte[uncompressedSize >= 0 ? uncompressedSize : length];
+			System.arraycopy(stored, 1, result, 0, Math.min(result.length, length));
+			return result;
+		}
+		Inflater inflater = INFLATER.get();
+		byte[] result = new byte[uncompressedSize >= 0 ? uncompressedSize : Math.max(64, stored.length * 4)];
+		int offset = 0;
+
+		inflater.reset();
+		inflater.setInput(stored);
+
+		try {
+			while (uncompressedSize >= 0 ? offset < uncompressedSize : !inflater.finished()) {
+				if (offset == result.length)
+					result = Arrays.copyOf(result, result.length * 2);
+				int read = inflater.inflate(result, offset, result.length - offset);
+
+				if (read > 0) {
+					offset += read;
+				} else if (inflater.needsDictionary()) {
+					if (dictionary == null || inflater.getAdler() != dictionaryId)
+						throw new IOException("Payload was compressed with an unknown dictionary.");
+					inflater.setDictionary(dictionary);
+				} else if (inflater.finished() || inflater.needsInput()) {
+					throw new EOFException("Payload is truncated.");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Payload is corrupt.", e);
+		}
+		return uncompressedSize >= 0 ? result : Arrays.copyOf(result, offset);
+	}
+
+	/**
+	 * Compute the Adler-32 checksum zlib uses to identify a dictionary.
+	 * @param dictionary - the dictionary.
+	 * @return The checksum.
+	 */
+	private static int computeAdler(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * Create a dictionary of the tag headers that are common in item stacks, in their binary NBT form.
+	 * <p>
+	 * zlib favors the end of a dictionary, so the most common tags are last.
+	 * @return The dictionary.
+	 */
+	private static byte[] createNbtDictionary() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+
+		try {
+			writeTag(output, TAG_LIST, "CustomPotionEffects");
+			writeTag(output, TAG_LIST, "Explosions");
+			writeTag(output, TAG_COMPOUND, "Fireworks");
+			writeTag(output, TAG_STRING, "SkullOwner");
+			writeTag(output, TAG_STRING, "author");
+			writeTag(output, TAG_STRING, "title");
+			writeTag(output, TAG_LIST, "pages");
+			writeTag(output, TAG_INT, "color");
+			writeTag(output, TAG_LIST, "StoredEnchantments");
+			writeTag(output, TAG_INT, "RepairCost");
+			writeTag(output, TAG_SHORT, "lvl");
+			writeTag(output, TAG_SHORT, "id");
+			writeTag(output, TAG_LIST, "ench");
+			output.writeByte(TAG_COMPOUND);
+			writeTag(output, TAG_LIST, "Lore");
+			output.writeByte(TAG_STRING);
+			writeTag(output, TAG_STRING, "Name");
+			writeTag(output, TAG_COMPOUND, "display");
+			output.close();
+			return bytes.toByteArray();
+
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot create dictionary.", e);
+		}
+	}
+
+	private static void writeTag(DataOutputStream output, int type, String name) throws IOException {
+		output.writeByte(type);
+		output.writeUTF(name);
+	}
+}
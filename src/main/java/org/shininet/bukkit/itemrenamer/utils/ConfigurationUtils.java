@@ -1,6 +1,8 @@
 package org.shininet.bukkit.itemrenamer.utils;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.bukkit.configuration.ConfigurationSection;
@@ -54,4 +56,37 @@ public class ConfigurationUtils {
 		}
 		return section;
 	}
+	
+	/**
+	 * Copy every value in a section to another section.
+	 * <p>
+	 * Nested sections and lists are copied, so the destination is unaffected by later changes to the source.
+	 * @param source - the section to copy.
+	 * @param destination - the destination section.
+	 * @return The destination section.
+	 */
+	public static ConfigurationSection copySection(ConfigurationSection source, ConfigurationSection destination) {
+		for (String key : source.getKeys(false)) {
+			copyValue(key, source.get(key), destination);
+		}
+		return destination;
+	}
+	
+	/**
+	 * Copy a single value to a given section.
+	 * <p>
+	 * Nested sections and lists are copied, so the destination is unaffected by later changes to the value.
+	 * @param key - the key of the value in the destination.
+	 * @param value - the value to copy.
+	 * @param destination - the destination section.
+	 */
+	public static void copyValue(String key, Object value, ConfigurationSection destination) {
+		if (value instanceof ConfigurationSection) {
+			copySection((ConfigurationSection) value, destination.createSection(key));
+		} else if (value instanceof List) {
+			destination.set(key, new ArrayList<Object>((List<?>) value));
+		} else {
+			destination.set(key, value);
+		}
+	}
 }
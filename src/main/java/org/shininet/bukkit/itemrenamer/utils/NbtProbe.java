@@ -0,0 +1,186 @@
+package org.shininet.bukkit.itemrenamer.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * Scans serialized NBT tags without constructing them.
+ * <p>
+ * This is much cheaper than deserializing a tag just to look for a single key.
+ */
+public class NbtProbe {
+	// Tag types in the binary NBT format
+	private static final int TAG_END = 0;
+	private static final int TAG_BYTE = 1;
+	private static final int TAG_SHORT = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_LONG = 4;
+	private static final int TAG_FLOAT = 5;
+	private static final int TAG_DOUBLE = 6;
+	private static final int TAG_BYTE_ARRAY = 7;
+	private static final int TAG_STRING = 8;
+	private static final int TAG_LIST = 9;
+	private static final int TAG_COMPOUND = 10;
+	private static final int TAG_INT_ARRAY = 11;
+
+	// Same limit as Minecraft
+	private static final int MAX_DEPTH = 512;
+
+	private NbtProbe() {
+		// Not constructable
+	}
+
+	/**
+	 * Determine if the root compound of a GZIP compressed NBT tag contains the given key.
+	 * <p>
+	 * Only the entries before the key are read, and no tags are constructed.
+	 * @param data - array containing the compressed tag.
+	 * @param offset - the index of the compressed tag.
+	 * @param length - the length of the compressed tag.
+	 * @param key - the key to look for. Only ASCII keys are supported.
+	 * @return TRUE if the root compound contains the key, FALSE otherwise.
+	 * @throws IOException If the tag is malformed.
+	 */
+	public static boolean containsRootKey(byte[] data, int offset, int length, String key) throws IOException {
+		byte[] expected = key.getBytes(Charsets.UTF_8);
+		GZIPInputStream compressed = new GZIPInputStream(new ByteArrayInputStream(data, offset, length));
+
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(compressed));
+
+			if (input.readByte() != TAG_COMPOUND)
+				return false;
+			skipFully(input, input.readUnsignedShort());
+
+			for (int type = input.readByte(); type != TAG_END; type = input.readByte()) {
+				if (readName(input, expected))
+					return true;
+				skipPayload(input, type, 1);
+			}
+			return false;
+		} finally {
+			Closeables.closeQuietly(compressed);
+		}
+	}
+
+	/**
+	 * Read the name of an entry and compare it with the expected name.
+	 * @param input - the input stream, positioned at the name.
+	 * @param expected - the expected name in UTF-8.
+	 * @return TRUE if the name matches, FALSE otherwise.
+	 * @throws IOException If the input ended.
+	 */
+	private static boolean readName(DataInputStream input, byte[] expected) throws IOException {
+		int length = input.readUnsignedShort();
+
+		if (length != expected.length) {
+			skipFully(input, length);
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (input.readByte() != expected[i]) {
+				skipFully(input, length - i - 1);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Skip the payload of a tag.
+	 * @param input - the input stream, positioned at the payload.
+	 * @param type - the tag type.
+	 * @param depth - the current nesting depth.
+	 * @throws IOException If the tag is malformed.
+	 */
+	private static void skipPayload(DataInputStream input, int type, int depth) throws IOException {
+		if (depth > MAX_DEPTH)
+			throw new IOException("Tag is nested too deeply.");
+
+		switch (type) {
+			case TAG_BYTE_ARRAY:
+				skipFully(input, input.readInt());
+				break;
+			case TAG_STRING:
+				skipFully(input, input.readUnsignedShort());
+				break;
+			case TAG_INT_ARRAY:
+				skipFully(input, input.readInt() * 4L);
+				break;
+			case TAG_LIST:
+				int elementType = input.readByte();
+				int count = input.readInt();
+				int size = getFixedSize(elementType);
+
+				// Skip primitive elements at once
+				if (size >= 0) {
+					skipFully(input, (long) count * size);
+				} else {
+					for (int i = 0; i < count; i++) {
+						skipPayload(input, elementType, depth + 1);
+					}
+				}
+				break;
+			case TAG_COMPOUND:
+				for (int child = input.readByte(); child != TAG_END; child = input.readByte()) {
+					skipFully(input, input.readUnsignedShort());
+					skipPayload(input, child, depth + 1);
+				}
+				break;
+			default:
+				int fixed = getFixedSize(type);
+
+				if (fixed < 0)
+					throw new IOException("Unknown tag type " + type);
+				skipFully(input, fixed);
+		}
+	}
+
+	/**
+	 * Retrieve the size of the payload of a fixed size tag.
+	 * @param type - the tag type.
+	 * @return The size in bytes, or -1 if the size is variable.
+	 */
+	private static int getFixedSize(int type) {
+		switch (type) {
+			case TAG_END: return 0;
+			case TAG_BYTE: return 1;
+			case TAG_SHORT: return 2;
+			case TAG_INT: return 4;
+			case TAG_FLOAT: return 4;
+			case TAG_LONG: return 8;
+			case TAG_DOUBLE: return 8;
+			default: return -1;
+		}
+	}
+
+	/**
+	 * Skip exactly the given number of bytes.
+	 * @param input - the input stream.
+	 * @param count - the number of bytes to skip.
+	 * @throws IOException If the input ended, or the count is negative.
+	 */
+	private static void skipFully(DataInputStream input, long count) throws IOException {
+		if (count < 0)
+			throw new IOException("Negative length " + count);
+
+		while (count > 0) {
+			long skipped = input.skip(count);
+
+			if (skipped <= 0) {
+				// Skip may return zero before the end of the stream
+				if (input.read() < 0)
+					throw new EOFException("Unexpected end of tag.");
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package org.shininet.bukkit.itemrenamer.utils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import com.comphenix.protocol.wrappers.nbt.NbtBase;
+import com.comphenix.protocol.wrappers.nbt.NbtCompound;
+import com.comphenix.protocol.wrappers.nbt.NbtList;
+
+/**
+ * Structural hashing and comparison of NBT tags.
+ * <p>
+ * Unlike the equals method of the NBT wrappers, these methods disregard the name of the root tag.
+ */
+public class NbtStructures {
+	// Constants from FNV-1a and MurmurHash3
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private NbtStructures() {
+		// Not constructable
+	}
+
+	/**
+	 * Compute a 64-bit structural hash of the given NBT tag.
+	 * <p>
+	 * The order of the entries in a compound does not affect the result.
+	 * @param tag - the tag to hash, or NULL.
+	 * @return The structural hash.
+	 */
+	public static long hash(NbtBase<?> tag) {
+		if (tag == null)
+			return 0;
+
+		if (tag instanceof NbtCompound) {
+			NbtCompound compound = (NbtCompound) tag;
+			long result = 0;
+
+			// Compounds are unordered, so we must combine the entries commutatively
+			for (String key : compound.getKeys()) {
+				result += mix(hash(key) * 31 + hash(compound.getValue(key)));
+			}
+			return mix(result + compound.getKeys().size());
+
+		} else if (tag instanceof NbtList) {
+			long result = FNV_OFFSET;
+
+			for (NbtBase<?> element : ((NbtList<?>) tag).getValue()) {
+				result = (result ^ hash(element)) * FNV_PRIME;
+			}
+			return mix(result);
+		} else {
+			return mix(tag.getType().ordinal() * FNV_PRIME + hashValue(tag.getValue()));
+		}
+	}
+
+	/**
+	 * Compute a 64-bit hash of a string.
+	 * @param text - the string.
+	 * @return The hash.
+	 */
+	public static long hash(String text) {
+		long result = FNV_OFFSET;
+
+		for (int i = 0; i < text.length(); i++) {
+			result = (result ^ text.charAt(i)) * FNV_PRIME;
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the hash of a primitive NBT value.
+	 * @param value - the value.
+	 * @return The hash.
+	 */
+	private static long hashValue(Object value) {
+		if (value instanceof String) {
+			return hash((String) value);
+		} else if (value instanceof Float || value instanceof Double) {
+			return Double.doubleToLongBits(((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			return ((Number) value).longValue();
+		} else if (value instanceof byte[]) {
+			long result = FNV_OFFSET;
+
+			for (byte element : (byte[]) value) {
+				result = (result ^ element) * FNV_PRIME;
+			}
+			return result;
+		} else if (value instanceof int[]) {
+			long result = FNV_OFFSET;
+
+			for (int element : (int[]) value) {
+				result = (result ^ element) * FNV_PRIME;
+			}
+			return result;
+		}
+		return value != null ? value.hashCode() : 0;
+	}
+
+	/**
+	 * Finalization step of MurmurHash3 - ensures that every bit of the input affects every bit of the output.
+	 * @param value - the value to mix.
+	 * @return The mixed value.
+	 */
+	public static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/**
+	 * Determine if the two given tags are structurally equal, disregarding the name of the tags themselves.
+	 * @param a - the first tag, or NULL.
+	 * @param b - the second tag, or NULL.
+	 * @return TRUE if they are equal, FALSE otherwise.
+	 */
+	public static boolean equals(NbtBase<?> a, NbtBase<?> b) {
+		if (a == b)
+			return true;
+		if (a == null || b == null)
+			return false;
+
+		if (a instanceof NbtCompound && b instanceof NbtCompound) {
+			NbtCompound first = (NbtCompound) a;
+			NbtCompound second = (NbtCompound) b;
+			Set<String> keys = first.getKeys();
+
+			if (!keys.equals(second.getKeys()))
+				return false;
+
+			for (String key : keys) {
+				if (!equals(first.getValue(key), second.getValue(key)))
+					return false;
+			}
+			return true;
+
+		} else if (a instanceof NbtList && b instanceof NbtList) {
+			List<? extends NbtBase<?>> first = ((NbtList<?>) a).getValue();
+			List<? extends NbtBase<?>> second = ((NbtList<?>) b).getValue();
+
+			if (first.size() != second.size())
+				return false;
+
+			for (int i = 0; i < first.size(); i++) {
+				if (!equals(first.get(i), second.get(i)))
+					return false;
+			}
+			return true;
+
+		} else if (a.getType() == b.getType()) {
+			Object first = a.getValue();
+			Object second = b.getValue();
+
+			if (first instanceof byte[] && second instanceof byte[])
+				return Arrays.equals((byte[]) first, (byte[]) second);
+			if (first instanceof int[] && second instanceof int[])
+				return Arrays.equals((int[]) first, (int[]) second);
+			return first != null ? first.equals(second) : second == null;
+		}
+		return false;
+	}
+
+	/**
+	 * Estimate the size of a given tag by counting every tag, including the tag itself.
+	 * <p>
+	 * Strings and arrays count as one tag for every 16 characters or elements.
+	 * @param tag - the tag to weigh, or NULL.
+	 * @return The estimated size.
+	 */
+	public static int weigh(NbtBase<?> tag) {
+		if (tag == null)
+			return 0;
+
+		if (tag instanceof NbtCompound) {
+			NbtCompound compound = (NbtCompound) tag;
+			int result = 1;
+
+			for (String key : compound.getKeys()) {
+				result += weigh(compound.getValue(key));
+			}
+			return result;
+
+		} else if (tag instanceof NbtList) {
+			int result = 1;
+
+			for (NbtBase<?> element : ((NbtList<?>) tag).getValue()) {
+				result += weigh(element);
+			}
+			return result;
+		} else {
+			Object value = tag.getValue();
+
+			if (value instanceof String)
+				return 1 + ((String) value).length() / 16;
+			if (value instanceof byte[])
+				return 1 + ((byte[]) value).length / 16;
+			if (value instanceof int[])
+				return 1 + ((int[]) value).length / 16;
+			return 1;
+		}
+	}
+}
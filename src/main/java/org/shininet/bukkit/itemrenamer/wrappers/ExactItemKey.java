@@ -0,0 +1,175 @@
+package org.shininet.bukkit.itemrenamer.wrappers;
+
+import java.util.Set;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.utils.MaterialUtils;
+import org.shininet.bukkit.itemrenamer.utils.NbtStructures;
+import org.shininet.bukkit.itemrenamer.utils.StackUtils;
+
+import com.comphenix.protocol.wrappers.nbt.NbtBase;
+import com.comphenix.protocol.wrappers.nbt.NbtCompound;
+import com.comphenix.protocol.wrappers.nbt.NbtFactory;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Represents the canonical structure of an item stack, as used by exact rename rules.
+ * <p>
+ * The count, the repair cost and the durability of armor and tools are disregarded. Like ItemMeta, only the 
+ * tags that Bukkit understands are compared, so data added by other plugins is ignored. Keys created by
+ * {@link #probe(ItemStack)} share the live tags of the stack, and must never be stored.
+ */
+public class ExactItemKey {
+	/**
+	 * Item tags that are compared by ItemMeta, except the repair cost.
+	 */
+	private static final Set<String> META_KEYS = ImmutableSet.of(
+			"display", "ench", "AttributeModifiers", "title", "author", "pages", "SkullOwner",
+			"CustomPotionEffects", "StoredEnchantments", "Fireworks", "Explosion", "map_is_scaling");
+
+	/**
+	 * Display tags that are compared by ItemMeta.
+	 */
+	private static final Set<String> DISPLAY_KEYS = ImmutableSet.of("Name", "Lore", "color");
+
+	private static final String KEY_DISPLAY = "display";
+
+	private final int id;
+	private final short damage;
+	private final NbtCompound tag;
+	private final long hash;
+
+	// The stack that was used to create this key, if stored
+	private final ItemStack stack;
+
+	private ExactItemKey(int id, short damage, NbtCompound tag, long hash, ItemStack stack) {
+		this.id = id;
+		this.damage = damage;
+		this.tag = tag;
+		this.hash = hash;
+		this.stack = stack;
+	}
+
+	/**
+	 * Construct a temporary key that refers to the given stack without copying it.
+	 * @param stack - the item stack.
+	 * @return The temporary key.
+	 */
+	public static ExactItemKey probe(ItemStack stack) {
+		if (stack == null)
+			throw new IllegalArgumentException("Cannot create a key of a NULL stack.");
+
+		NbtCompound tag = null;
+		short damage = MaterialUtils.isArmorTool(stack.getType()) ? 0 : stack.getDurability();
+
+		if (stack.getType() != Material.AIR) {
+			ItemStack craft = StackUtils.getCraftItemStack(stack);
+
+			if (craft.hasItemMeta()) {
+				tag = filter(NbtFactory.asCompound(NbtFactory.fromItemTag(craft)), META_KEYS);
+			}
+		}
+		long hash = NbtStructures.mix(stack.getTypeId() * 31L + damage) ^ NbtStructures.hash(tag);
+		return new ExactItemKey(stack.getTypeId(), damage, tag, hash, null);
+	}
+
+	/**
+	 * Construct a key that can be stored, along with a normalized copy of the original stack.
+	 * <p>
+	 * The copy has a count of one, and only contains the tags that are a part of the key.
+	 * @param stack - the item stack.
+	 * @return The stored key.
+	 */
+	public static ExactItemKey of(ItemStack stack) {
+		ExactItemKey probe = probe(stack);
+		NbtCompound tag = probe.tag != null ? NbtFactory.asCompound(probe.tag.deepClone()) : null;
+		ItemStack copy = StackUtils.getCraftItemStack(stack.clone());
+
+		copy.setAmount(1);
+		copy.setDurability(probe.damage);
+		
+		if (tag != null)
+			NbtFactory.setItemTag(copy, NbtFactory.asCompound(tag.deepClone()));
+		else if (copy.hasItemMeta())
+			NbtFactory.setItemTag(copy, null);
+		return new ExactItemKey(probe.id, probe.damage, tag, probe.hash, copy);
+	}
+
+	/**
+	 * Retrieve a compound with only the given keys, sharing the tags of the original compound.
+	 * <p>
+	 * The display compound is filtered as well.
+	 * @param compound - the original compound.
+	 * @param keys - the keys to keep.
+	 * @return The filtered compound, or NULL if it is empty.
+	 */
+	private static NbtCompound filter(NbtCompound compound, Set<String> keys) {
+		NbtCompound result = null;
+		
+		for (String key : compound.getKeys()) {
+			if (!keys.contains(key))
+				continue;
+			NbtBase<?> value = compound.getValue(key);
+			
+			if (KEY_DISPLAY.equals(key) && value instanceof NbtCompound) {
+				value = filter((NbtCompound) value, DISPLAY_KEYS);
+				
+				if (value == null)
+					continue;
+			}
+			if (result == null)
+				result = NbtFactory.ofCompound(compound.getName());
+			result.put(value);
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieve the item ID.
+	 * @return The item ID.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Retrieve the stack that was used to create this key.
+	 * @return The stack, or NULL if this is a temporary key.
+	 */
+	public ItemStack getStack() {
+		return stack;
+	}
+
+	/**
+	 * Retrieve the 64-bit structural hash of this key.
+	 * @return The structural hash.
+	 */
+	public long getHash() {
+		return hash;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (obj instanceof ExactItemKey) {
+			ExactItemKey other = (ExactItemKey) obj;
+
+			// Verify the hash
+			return hash == other.hash && id == other.id && damage == other.damage &&
+				   NbtStructures.equals(tag, other.tag);
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "ExactItemKey[" + id + ":" + damage + ", " + tag + "]";
+	}
+}
@@ -0,0 +1,109 @@
+package org.shininet.bukkit.itemrenamer.wrappers;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.shininet.bukkit.itemrenamer.utils.NbtStructures;
+import org.shininet.bukkit.itemrenamer.utils.StackUtils;
+
+import com.comphenix.protocol.wrappers.nbt.NbtCompound;
+import com.comphenix.protocol.wrappers.nbt.NbtFactory;
+
+/**
+ * Represents the structure of an item stack (ID, damage and tag), disregarding the count.
+ * <p>
+ * Fingerprints created by {@link #fromStack(ItemStack)} refer to the live tag of the stack, and should
+ * only be used as a temporary lookup key. Use {@link #copy()} to retrieve a key that can be stored.
+ */
+public class StackFingerprint {
+	private final int id;
+	private final short damage;
+	private final NbtCompound tag;
+	private final long hash;
+
+	private StackFingerprint(int id, short damage, NbtCompound tag, long hash) {
+		this.id = id;
+		this.damage = damage;
+		this.tag = tag;
+		this.hash = hash;
+	}
+
+	/**
+	 * Construct a fingerprint of the given non-empty item stack.
+	 * <p>
+	 * The fingerprint is only valid until the stack is modified.
+	 * @param stack - the item stack.
+	 * @return The fingerprint.
+	 */
+	public static StackFingerprint fromStack(ItemStack stack) {
+		if (stack == null || stack.getType() == Material.AIR)
+			throw new IllegalArgumentException("Cannot fingerprint an empty stack.");
+
+		ItemStack craft = StackUtils.getCraftItemStack(stack);
+		NbtCompound tag = null;
+
+		// Empty tags are the same as missing tags, though they are not serialized the same way
+		if (craft.hasItemMeta()) {
+			tag = NbtFactory.asCompound(NbtFactory.fromItemTag(craft));
+
+			if (tag.getKeys().isEmpty())
+				tag = null;
+		}
+		long hash = NbtStructures.mix(stack.getTypeId() * 31L + stack.getDurability()) ^ NbtStructures.hash(tag);
+		return new StackFingerprint(stack.getTypeId(), stack.getDurability(), tag, hash);
+	}
+
+	/**
+	 * Retrieve an immutable copy of this fingerprint that is independent of the original stack.
+	 * @return The copy.
+	 */
+	public StackFingerprint copy() {
+		return new StackFingerprint(id, damage,
+				tag != null ? NbtFactory.asCompound(tag.deepClone()) : null, hash);
+	}
+
+	/**
+	 * Retrieve the item ID.
+	 * @return The item ID.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Retrieve the damage value.
+	 * @return The damage value.
+	 */
+	public short getDamage() {
+		return damage;
+	}
+
+	/**
+	 * Retrieve the structural 64-bit hash of this fingerprint.
+	 * @return The 64-bit hash.
+	 */
+	public long getHash() {
+		return hash;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (obj instanceof StackFingerprint) {
+			StackFingerprint other = (StackFingerprint) obj;
+			return hash == other.hash && id == other.id && damage == other.damage &&
+				   NbtStructures.equals(tag, other.tag);
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "Fingerprint[" + id + ":" + damage + ", " + tag + "]";
+	}
+}
@@ -0,0 +1,175 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.shininet.bukkit.itemrenamer.wrappers.LeveledEnchantment;
+import org.shininet.bukkit.itemrenamer.wrappers.LeveledEnchantment.CustomEnchantment;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+public class RuleTableTest {
+	// Largest damage value that is checked
+	private static final int MAX_DAMAGE = 5000;
+
+	@Test
+	public void testFlatTable() {
+		Map<Integer, DamageLookup> lookups = Maps.newHashMap();
+		MemoryDamageLookup lookup = new MemoryDamageLookup();
+
+		lookup.setRule(0, rule(1));
+		lookup.setRule(3, 5, rule(2));
+		lookup.setRule(15, rule(3));
+		lookups.put(1, lookup);
+
+		assertEquivalent(lookups, 4);
+	}
+
+	@Test
+	public void testIntervals() {
+		Map<Integer, DamageLookup> lookups = Maps.newHashMap();
+		MemoryDamageLookup lookup = new MemoryDamageLookup();
+
+		// Too sparse for a flat table
+		lookup.setRule(10, 20, rule(1));
+		lookup.setRule(3000, 4000, rule(2));
+		lookup.setRule(4001, rule(3));
+		lookups.put(276, lookup);
+
+		assertEquivalent(lookups, 300);
+	}
+
+	@Test
+	public void testAllAndOther() {
+		Map<Integer, DamageLookup> lookups = Maps.newHashMap();
+		MemoryDamageLookup flat = new MemoryDamageLookup();
+		MemoryDamageLookup sparse = new MemoryDamageLookup();
+		MemoryDamageLookup fallbackOnly = new MemoryDamageLookup();
+
+		flat.setRule(2, 4, rule(1));
+		flat.setAllRule(glow());
+		flat.setOtherRule(rule(10));
+
+		sparse.setRule(100, rule(2));
+		sparse.setRule(4000, 4500, rule(3));
+		sparse.setAllRule(glow());
+
+		fallbackOnly.setOtherRule(rule(11));
+		lookups.put(1, flat);
+		lookups.put(2, sparse);
+		lookups.put(3, fallbackOnly);
+
+		assertEquivalent(lookups, 4);
+	}
+
+	@Test
+	public void testUnboundedRange() {
+		Map<Integer, DamageLookup> lookups = Maps.newHashMap();
+		MemoryDamageLookup unbounded = new MemoryDamageLookup();
+		MemoryDamageLookup small = new MemoryDamageLookup();
+
+		// Would overflow the span of a flat table
+		unbounded.setRule(1000, Integer.MAX_VALUE, rule(1));
+		small.setRule(0, 2, rule(2));
+		small.setRule(5, Integer.MAX_VALUE, rule(3));
+		small.setOtherRule(rule(4));
+		lookups.put(1, unbounded);
+		lookups.put(2, small);
+
+		RuleTable table = new RuleTable(lookups);
+
+		assertEquivalent(lookups, 4);
+		assertEquals(unbounded.getRule(Integer.MAX_VALUE), table.getRule(1, Integer.MAX_VALUE));
+		assertEquals(small.getRule(Integer.MAX_VALUE), table.getRule(2, Integer.MAX_VALUE));
+		assertEquals(small.getRule(5), table.getRule(2, Integer.MAX_VALUE - 1));
+		assertEquals(small.getRule(4), table.getRule(2, 4));
+	}
+
+	@Test
+	public void testSparseItemIds() {
+		Map<Integer, DamageLookup> lookups = Maps.newHashMap();
+		MemoryDamageLookup lookup = new MemoryDamageLookup();
+
+		lookup.setRule(0, 10, rule(1));
+		lookups.put(Short.MAX_VALUE + 1, lookup);
+		lookups.put(-5, lookup);
+
+		RuleTable table = new RuleTable(lookups);
+
+		assertEquals(lookup.getRule(5), table.getRule(Short.MAX_VALUE + 1, 5));
+		assertEquals(lookup.getRule(5), table.getRule(-5, 5));
+		assertNull(table.getRule(Short.MAX_VALUE + 2, 5));
+		assertFalse(table.hasItem(Short.MAX_VALUE + 2));
+	}
+
+	@Test
+	public void testLargePack() {
+		Map<Integer, DamageLookup> lookups = createLargePack(new Random(1234), 1000);
+
+		assertEquivalent(lookups, 1100);
+	}
+
+	/**
+	 * Create a pack with a mix of single damage values, ranges, ALL and OTHER rules.
+	 * @param random - the random number generator.
+	 * @param itemCount - the number of item IDs.
+	 * @return The damage lookup of every item ID.
+	 */
+	private static Map<Integer, DamageLookup> createLargePack(Random random, int itemCount) {
+		Map<Integer, DamageLookup> lookups = Maps.newHashMap();
+
+		for (int id = 0; id < itemCount; id++) {
+			MemoryDamageLookup lookup = new MemoryDamageLookup();
+			int rules = random.nextInt(8);
+
+			for (int i = 0; i < rules; i++) {
+				int lower = random.nextInt(MAX_DAMAGE);
+
+				if (random.nextBoolean())
+					lookup.setRule(lower, rule(random.nextInt(50)));
+				else
+					lookup.setRule(lower, Math.min(MAX_DAMAGE, lower + random.nextInt(500)), rule(random.nextInt(50)));
+			}
+			if (random.nextInt(4) == 0)
+				lookup.setAllRule(glow());
+			if (random.nextInt(4) == 0)
+				lookup.setOtherRule(rule(100 + random.nextInt(5)));
+			lookups.put(id, lookup);
+		}
+		return lookups;
+	}
+
+	/**
+	 * Assert that the table gives the same rule as each lookup, for every item and damage value.
+	 * @param lookups - the damage lookups.
+	 * @param maxId - the largest item ID to check.
+	 */
+	private static void assertEquivalent(Map<Integer, DamageLookup> lookups, int maxId) {
+		RuleTable table = new RuleTable(lookups);
+
+		for (int id = -1; id <= maxId; id++) {
+			DamageLookup lookup = lookups.get(id);
+			assertEquals("Item " + id, lookup != null, table.hasItem(id));
+
+			for (int damage = -1; damage <= MAX_DAMAGE; damage++) {
+				RenameRule expected = lookup != null ? lookup.getRule(damage) : null;
+				assertEquals("Item " + id + ":" + damage, expected, table.getRule(id, damage));
+			}
+		}
+	}
+
+	// Rules that can be compiled without a running server
+	private static RenameRule rule(int level) {
+		return RenameRule.newBuilder().enchantments(ImmutableSet.of(
+				new LeveledEnchantment(CustomEnchantment.NO_DURABILITY, level))).build();
+	}
+
+	private static RenameRule glow() {
+		return RenameRule.newBuilder().enchantments(ImmutableSet.of(
+				new LeveledEnchantment(CustomEnchantment.GLOW, 1))).build();
+	}
+}
@@ -0,0 +1,296 @@
+package org.shininet.bukkit.itemrenamer.configuration;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+public class StreamingPackReaderTest {
+	private static final Logger LOGGER = Logger.getLogger("ItemRenamerTest");
+
+	// Settings and damage rules with every kind of scalar, merge keys and aliases
+	private static final String DAMAGE_PACKS = Joiner.on('\n').join(
+			"# ItemRenamer configuration",
+			"autoupdate: no",
+			"loaderthreads: 010",
+			"default: '010'",
+			"async:",
+			"  enabled: On",
+			"  threads: 0x2",
+			"base: &base",
+			"  name: Base",
+			"  lore: [1.5, true, ~, '0x10', 017]",
+			"worlds:",
+			"  world: &world simple",
+			"  world_nether: *world",
+			"packs:",
+			"  simple:",
+			"    1:",
+			"      0-5:",
+			"        name: Dagger",
+			"        lore: [First, 'Second']",
+			"        enchantments:",
+			"          GLOW: 1",
+			"      all:",
+			"        enchantments: {NO_DURABILITY: 010}",
+			"    0276:",
+			"      other: {name: '007'}",
+			"      '10': {name: 007}",
+			"    -5:",
+			"      1-2: {name: 1e3, dechantments: {GLOW: 0x3}}",
+			"  merged:",
+			"    '2':",
+			"      all: *base",
+			"      0:",
+			"        <<: *base",
+			"        name: Override",
+			"      1:",
+			"        <<: [{name: First}, *base]",
+			"        lore: [Own]",
+			"  anchored:",
+			"    3: &item",
+			"      '4': {name: Shared}",
+			"    4: *item",
+			"  broken:",
+			"    5:",
+			"      a-b: {name: Broken}",
+			"  empty: ~");
+
+	// Exact rules of item stacks with serialized item meta
+	private static final String EXACT_PACKS = Joiner.on('\n').join(
+			"packs:",
+			"  exact:",
+			"    1:",
+			"      0: {name: Stone}",
+			"    exact:",
+			"      keys:",
+			"        '0':",
+			"          type: DIAMOND_SWORD",
+			"          damage: 5",
+			"          meta: &meta",
+			"            ==: ItemMeta",
+			"            meta-type: UNSPECIFIC",
+			"            display-name: Sword",
+			"            lore: [010, '010']",
+			"        '1':",
+			"          type: STONE",
+			"          amount: 2",
+			"        '2':",
+			"          type: DIAMOND_SWORD",
+			"          meta:",
+			"            <<: *meta",
+			"            display-name: Other",
+			"      values:",
+			"        '0': {name: Excalibur, lore: [Sharp]}",
+			"        '1': {name: 0x10}",
+			"        '2': {enchantments: {GLOW: 1}}");
+
+	@BeforeClass
+	public static void setupServer() {
+		// Item stacks with item meta need an item factory
+		if (Bukkit.getServer() == null) {
+			Bukkit.setServer(proxy(Server.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("getItemFactory"))
+						return proxy(ItemFactory.class, new FactoryHandler());
+					else if (method.getName().equals("getLogger"))
+						return LOGGER;
+					return method.getReturnType() == String.class ? "Test" : null;
+				}
+			}));
+		}
+		ConfigurationSerialization.registerClass(TestMeta.class, "ItemMeta");
+	}
+
+	@Test
+	public void testDamageRules() throws Exception {
+		PackLoader loader = new PackLoader(LOGGER, 2);
+		YamlConfiguration tree = new YamlConfiguration();
+		tree.loadFromString(DAMAGE_PACKS);
+
+		PackLoader.StreamedPacks streamed = loader.stream(new StringReader(DAMAGE_PACKS), true);
+
+		assertCompiled(loader.compile(tree.getConfigurationSection("packs")), streamed.getCompiled());
+		assertEquals(ImmutableSet.of("broken"), streamed.getFailed());
+		assertEquals(flatten(tree, "packs"), flatten(streamed.getSettings(), "packs"));
+	}
+
+	@Test
+	public void testSettings() throws Exception {
+		YamlConfiguration tree = new YamlConfiguration();
+		tree.loadFromString(DAMAGE_PACKS);
+
+		PackLoader.StreamedPacks streamed = new PackLoader(LOGGER, 1).stream(new StringReader(DAMAGE_PACKS), false);
+
+		assertTrue(streamed.isEmpty());
+		assertTrue(streamed.getFailed().isEmpty());
+		assertEquals(8, streamed.getSettings().getInt("loaderthreads"));
+		assertEquals(flatten(tree, "packs"), flatten(streamed.getSettings(), "packs"));
+	}
+
+	@Test
+	public void testExactRules() throws Exception {
+		YamlConfiguration tree = new YamlConfiguration();
+		tree.loadFromString(EXACT_PACKS);
+
+		final Map<String, RulePack> streamed = Maps.newHashMap();
+		final Map<String, byte[]> compiled = Maps.newHashMap();
+
+		new StreamingPackReader() {
+			@Override
+			protected void onPack(RulePack pack, ConfigurationSection exact) {
+				// Only the damage rules can be compiled without a server
+				compiled.put(pack.getName(), PackCache.compile(pack));
+				loadExactRules(pack, exact);
+				streamed.put(pack.getName(), pack);
+			}
+
+			@Override
+			protected void onPackFailed(String pack, RuntimeException e) {
+				throw e;
+			}
+		}.read(new StringReader(EXACT_PACKS));
+
+		RulePack expected = new RulePack("exact");
+		expected.load(tree.getConfigurationSection("packs"));
+		RulePack damage = new RulePack("exact");
+		damage.loadDamageRules(tree.getConfigurationSection("packs"));
+
+		Map<ItemStack, RenameRule> lookup = expected.getExactLookup().toLookup();
+		assertEquals(3, lookup.size());
+		assertEquals(lookup, streamed.get("exact").getExactLookup().toLookup());
+		assertCompiled(ImmutableMap.of("exact", PackCache.compile(damage)), compiled);
+	}
+
+	/**
+	 * Assert that both loaders compiled the same packs into the same binary representation.
+	 * @param expected - the packs compiled from a configuration tree.
+	 * @param actual - the streamed packs.
+	 */
+	private static void assertCompiled(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+
+		for (String pack : expected.keySet()) {
+			assertArrayEquals("Pack " + pack, expected.get(pack), actual.get(pack));
+		}
+	}
+
+	/**
+	 * Retrieve every value that is not a section by its full path.
+	 * @param section - the section.
+	 * @param excluded - a key that is skipped.
+	 * @return Every value by path.
+	 */
+	private static Map<String, Object> flatten(ConfigurationSection section, String excluded) {
+		Map<String, Object> values = Maps.newTreeMap();
+
+		for (Entry<String, Object> entry : section.getValues(true).entrySet()) {
+			if (!(entry.getValue() instanceof ConfigurationSection) && !entry.getKey().startsWith(excluded))
+				values.put(entry.getKey(), entry.getValue());
+		}
+		return values;
+	}
+
+	/**
+	 * Create a proxy that implements the given interface.
+	 * @param type - the interface.
+	 * @param handler - the handler of every method.
+	 * @return The proxy.
+	 */
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	/**
+	 * Represents an item factory that accepts every item meta.
+	 */
+	private static class FactoryHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("equals") && args != null && args.length == 2)
+				return Objects.equal(args[0], args[1]);
+			else if (method.getName().equals("isApplicable"))
+				return true;
+			else if (method.getName().equals("asMetaFor"))
+				return args[0];
+			return defaultValue(method);
+		}
+	}
+
+	/**
+	 * Represents item meta that is only compared by its serialized values.
+	 */
+	public static class TestMeta implements InvocationHandler, ConfigurationSerializable {
+		private final Map<String, Object> values;
+
+		private TestMeta(Map<String, Object> values) {
+			this.values = Maps.newHashMap(values);
+			this.values.remove(ConfigurationSerialization.SERIALIZED_TYPE_KEY);
+		}
+
+		public static ItemMeta deserialize(Map<String, Object> values) {
+			return proxy(ItemMeta.class, new TestMeta(values));
+		}
+
+		@Override
+		public Map<String, Object> serialize() {
+			return values;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("equals")) {
+				Object other = args[0];
+				return other != null && Proxy.isProxyClass(other.getClass()) &&
+						Proxy.getInvocationHandler(other) instanceof TestMeta &&
+						values.equals(((TestMeta) Proxy.getInvocationHandler(other)).values);
+			} else if (method.getName().equals("hashCode")) {
+				return values.hashCode();
+			} else if (method.getName().equals("clone")) {
+				return proxy;
+			} else if (method.getName().equals("serialize")) {
+				return values;
+			} else if (method.getName().equals("toString")) {
+				return values.toString();
+			}
+			return defaultValue(method);
+		}
+	}
+
+	/**
+	 * Retrieve the default value of the return type of the given method.
+	 * @param method - the method.
+	 * @return The default value.
+	 */
+	private static Object defaultValue(Method method) {
+		if (method.getReturnType() == boolean.class)
+			return false;
+		else if (method.getReturnType() == int.class)
+			return 0;
+		return null;
+	}
+}
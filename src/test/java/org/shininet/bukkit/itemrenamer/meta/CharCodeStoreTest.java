@@ -0,0 +1,115 @@
+package org.shininet.bukkit.itemrenamer.meta;
+
+import static org.junit.Assert.*;
+
+import org.bukkit.ChatColor;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+public class CharCodeStoreTest {
+	private static final int FIRST_PLUGIN = 0x12345678;
+	private static final int SECOND_PLUGIN = 0x0ABCDEF0;
+
+	// The segment delimiter
+	private static final String DELIMITER = ChatColor.COLOR_CHAR + "" + ChatColor.COLOR_CHAR;
+
+	@Test
+	public void testRoundTrip() {
+		String text = encode("Sword", FIRST_PLUGIN, "First");
+		CharCodeStore store = new CharCodeStore(FIRST_PLUGIN).parse(text);
+
+		assertEquals("First", store.getData().getString());
+		assertEquals(text, store.toString());
+		assertTrue(text.startsWith("Sword"));
+	}
+
+	@Test
+	public void testInvalidRuns() {
+		String[] texts = {
+			ChatColor.RED + "Red " + ChatColor.BOLD + "Bold",
+			"Name" + DELIMITER + colors("!@#$") + DELIMITER,
+			"Name" + DELIMITER + colors("QUJD") + DELIMITER,
+			"Name" + DELIMITER + DELIMITER + colors("a"),
+			ChatColor.COLOR_CHAR + DELIMITER + colors("Q") + ChatColor.COLOR_CHAR,
+		};
+
+		for (String text : texts) {
+			CharCodeStore store = new CharCodeStore(FIRST_PLUGIN).parse(text);
+
+			assertTrue(text, store.plugins().isEmpty());
+			assertEquals(text, store.toString());
+		}
+	}
+
+	@Test
+	public void testTrailingColorChar() {
+		String text = encode("Sword", FIRST_PLUGIN, "First");
+
+		// Plain text that ends with a color character
+		CharCodeStore store = new CharCodeStore(FIRST_PLUGIN).parse(text + "Name" + ChatColor.COLOR_CHAR);
+		assertEquals("First", store.getData().getString());
+		assertEquals(text + "Name" + ChatColor.COLOR_CHAR, store.toString());
+
+		// A segment that lost the end of its delimiter
+		String truncated = text.substring(0, text.length() - 1);
+		store = new CharCodeStore(FIRST_PLUGIN).parse(truncated);
+		assertEquals("First", store.getData().getString());
+	}
+
+	@Test
+	public void testEncodedText() {
+		String text = encode("Sword", FIRST_PLUGIN, "First");
+
+		assertTrue(CharCodeStore.containsSegments(text.getBytes()));
+		assertFalse(CharCodeStore.containsSegments("Plain Sword".getBytes()));
+		assertFalse(CharCodeStore.containsSegments(new byte[0]));
+	}
+
+	@Test
+	public void testRemoveSegment() {
+		String first = encode("Name", FIRST_PLUGIN, "First");
+		String text = encode(first + " middle", SECOND_PLUGIN, "Second");
+		String second = text.substring(text.indexOf(" middle"));
+
+		CharCodeStore store = new CharCodeStore(FIRST_PLUGIN).parse(text);
+		assertEquals(ImmutableSet.of(FIRST_PLUGIN, SECOND_PLUGIN), ImmutableSet.copyOf(store.plugins()));
+		assertTrue(store.removeData(FIRST_PLUGIN));
+
+		// The other segment is kept as it was
+		String spliced = store.toString();
+		assertTrue(spliced, spliced.startsWith("Name"));
+		assertTrue(spliced, spliced.endsWith(second));
+
+		CharCodeStore parsed = new CharCodeStore(SECOND_PLUGIN).parse(spliced);
+		assertEquals(ImmutableSet.of(SECOND_PLUGIN), ImmutableSet.copyOf(parsed.plugins()));
+		assertEquals("Second", parsed.getData().getString());
+	}
+
+	/**
+	 * Prefix every character with the color character.
+	 * @param characters - the characters.
+	 * @return The color codes.
+	 */
+	private static String colors(String characters) {
+		StringBuilder result = new StringBuilder();
+
+		for (char character : characters.toCharArray()) {
+			result.append(ChatColor.COLOR_CHAR).append(character);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Append a data segment to the given text.
+	 * @param text - the text.
+	 * @param pluginId - the plugin that owns the segment.
+	 * @param data - the data of the segment.
+	 * @return The text with the segment.
+	 */
+	private static String encode(String text, int pluginId, String data) {
+		CharCodeStore store = new CharCodeStore(pluginId).parse(text);
+		store.getData().setString(data);
+		return store.toString();
+	}
+}
@@ -0,0 +1,128 @@
+package org.shininet.bukkit.itemrenamer.meta;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+import org.shininet.bukkit.itemrenamer.meta.CharCodeStore.CompressedPayloadStore;
+import org.shininet.bukkit.itemrenamer.meta.CharCodeStore.PayloadStore;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+public class PooledPayloadStoreTest {
+	// Compressible data that shares most of its content with the dictionary
+	private static final byte[] DICTIONARY = repeat("display Name Lore ", 4).getBytes(Charsets.UTF_8);
+
+	@Test
+	public void testBelowThreshold() throws IOException {
+		PooledPayloadStore store = new PooledPayloadStore(DICTIONARY, 32);
+		byte[] data = "display Name".getBytes(Charsets.UTF_8);
+		byte[] stored = write(store, data);
+
+		assertEquals(PooledPayloadStore.RAW_FLAG, stored[0]);
+		assertEquals(data.length + 1, stored.length);
+		assertArrayEquals(data, read(store, stored, data.length));
+		assertArrayEquals(data, ByteStreams.toByteArray(store.getPayloadInputStream(new ByteArrayInputStream(stored))));
+	}
+
+	@Test
+	public void testIncompressible() throws IOException {
+		PooledPayloadStore store = new PooledPayloadStore(DICTIONARY, 32);
+		byte[] data = new byte[1000];
+		new Random(1234).nextBytes(data);
+		byte[] stored = write(store, data);
+
+		assertEquals(PooledPayloadStore.RAW_FLAG, stored[0]);
+		assertEquals(data.length + 1, stored.length);
+		assertArrayEquals(data, read(store, stored, data.length));
+	}
+
+	@Test
+	public void testCompressed() throws IOException {
+		PooledPayloadStore store = new PooledPayloadStore(DICTIONARY, 32);
+		byte[] data = repeat("display Name Lore ", 10).getBytes(Charsets.UTF_8);
+		byte[] stored = write(store, data);
+
+		assertTrue(stored[0] != PooledPayloadStore.RAW_FLAG);
+		assertTrue(stored.length < data.length);
+		assertArrayEquals(data, read(store, stored, data.length));
+		assertArrayEquals(data, ByteStreams.toByteArray(store.getPayloadInputStream(new ByteArrayInputStream(stored))));
+
+		// Cannot be read without the same dictionary
+		try {
+			read(new PooledPayloadStore(null, 32), stored, data.length);
+			fail("Read a payload without its dictionary.");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testLegacyPayload() throws IOException {
+		byte[] data = repeat("Legacy segment ", 10).getBytes(Charsets.UTF_8);
+		byte[] stored = write(CompressedPayloadStore.INSTANCE, data);
+
+		assertArrayEquals(data, read(PooledPayloadStore.INSTANCE, stored, data.length));
+		assertArrayEquals(data, ByteStreams.toByteArray(
+				PooledPayloadStore.INSTANCE.getPayloadInputStream(new ByteArrayInputStream(stored))));
+	}
+
+	@Test
+	public void testLegacySegment() {
+		CharCodeStore legacy = new CharCodeStore(1, CompressedPayloadStore.INSTANCE).parse("Sword");
+		legacy.getData().setString(repeat("Legacy segment ", 10));
+
+		CharCodeStore current = new CharCodeStore(1).parse(legacy.toString());
+		assertEquals(repeat("Legacy segment ", 10), current.getData().getString());
+	}
+
+	/**
+	 * Repeat the given text.
+	 * @param text - the text.
+	 * @param count - the number of times to repeat it.
+	 * @return The repeated text.
+	 */
+	private static String repeat(String text, int count) {
+		StringBuilder result = new StringBuilder();
+
+		for (int i = 0; i < count; i++) {
+			result.append(text);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Store the given payload.
+	 * @param store - the payload store.
+	 * @param data - the payload.
+	 * @return The stored payload.
+	 * @throws IOException If the payload cannot be stored.
+	 */
+	private static byte[] write(PayloadStore store, byte[] data) throws IOException {
+		ByteArrayOutputStream storage = new ByteArrayOutputStream();
+		OutputStream output = store.getPayloadOutputStream(storage);
+
+		output.write(data);
+		output.close();
+		return storage.toByteArray();
+	}
+
+	/**
+	 * Read a stored payload.
+	 * @param store - the payload store.
+	 * @param stored - the stored payload.
+	 * @param length - the length of the payload.
+	 * @return The payload.
+	 * @throws IOException If the payload cannot be read.
+	 */
+	private static byte[] read(PayloadStore store, byte[] stored, int length) throws IOException {
+		return store.getPayload(length, new DataInputStream(new ByteArrayInputStream(stored)));
+	}
+}